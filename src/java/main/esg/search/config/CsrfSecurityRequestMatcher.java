@@ -19,7 +19,8 @@ public class CsrfSecurityRequestMatcher implements RequestMatcher {
     private RequestMatcher hessianMatcher = new RegexRequestMatcher("/remote/secure/client-cert/hessian/.*", null, true); 
     private RequestMatcher wsMatcher = new RegexRequestMatcher("/ws/.*", null, true);
     private RequestMatcher wgetMatcher = new RegexRequestMatcher("/wget.*", null, true);
-    private RequestMatcher orMatcher = new OrRequestMatcher(hessianMatcher, wsMatcher, wgetMatcher);
+    private RequestMatcher batchMatcher = new RegexRequestMatcher("/search/batch.*", null, true);
+    private RequestMatcher orMatcher = new OrRequestMatcher(hessianMatcher, wsMatcher, wgetMatcher, batchMatcher);
     
     @Override
     public boolean matches(HttpServletRequest request) {
@@ -1,21 +1,24 @@
 package esg.search.feed.web;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletResponse;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
+import esg.search.query.api.MultiSearchService;
 import esg.search.query.api.QueryParameters;
 import esg.search.query.api.SearchInput;
 import esg.search.query.api.SearchOutput;
-import esg.search.query.api.SearchService;
 import esg.search.query.impl.solr.SearchInputImpl;
 
 /**
@@ -31,7 +34,7 @@ public class FeedController {
     /**
      * Service responsible for retrieving feed records.
      */
-    private SearchService searchService;
+    private MultiSearchService searchService;
     
     public final static String DATASETS_RSS_VIEW_NAME = "datasetsRssView";
     public final static String FILES_RSS_VIEW_NAME = "filesRssView";
@@ -116,15 +119,14 @@ public class FeedController {
         final SearchInput input1 = newSearchInput(QueryParameters.TYPE_DATASET, true);
         input1.addConstraint(QueryParameters.FIELD_ID, datasetId); 
         
-        SearchOutput output1 = searchService.search(input1); 
-        model.addAttribute(MODEL_KEY_DATASET, output1);  
-        
         // search for all records of type file, with given parent
         final SearchInput input2 = newSearchInput(QueryParameters.TYPE_FILE, true);
         input2.addConstraint(QueryParameters.FIELD_DATASET_ID, datasetId);
         
-        SearchOutput output2 = searchService.search(input2); 
-        model.addAttribute(MODEL_KEY_FILES, output2);  
+        // execute both searches concurrently
+        final List<SearchOutput> outputs = searchService.search(Arrays.asList(input1, input2)); 
+        model.addAttribute(MODEL_KEY_DATASET, outputs.get(0));  
+        model.addAttribute(MODEL_KEY_FILES, outputs.get(1));  
         
         // redirect to RSS view for single dataset
         return FILES_RSS_VIEW_NAME;
@@ -179,7 +181,7 @@ public class FeedController {
     }
 
     @Autowired
-    public void setSearchService(SearchService searchService) {
+    public void setSearchService(final @Qualifier("feedSearchService") MultiSearchService searchService) {
         this.searchService = searchService;
     }  
 
@@ -0,0 +1,33 @@
+package esg.search.publish.api;
+
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationEvent;
+
+import esg.search.utils.ApplicationContextProvider;
+
+/**
+ * Event published to the Spring application context whenever records are added to,
+ * removed from, retracted or updated in the index, so that any derived state 
+ * (such as cached search results) can be discarded.
+ * 
+ */
+public class IndexUpdateEvent extends ApplicationEvent {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public IndexUpdateEvent(final Object source) {
+        super(source);
+    }
+    
+    /**
+     * Utility method to publish the event from any class, including classes not managed by Spring.
+     * Does nothing if the application context is not available (for example, in command line clients).
+     * 
+     * @param source : the object that modified the index
+     */
+    public static void publish(final Object source) {
+        final ApplicationContext context = ApplicationContextProvider.getApplicationContext();
+        if (context!=null) context.publishEvent(new IndexUpdateEvent(source));
+    }
+
+}
@@ -13,6 +13,7 @@ import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.xpath.XPath;
 
+import esg.search.publish.api.IndexUpdateEvent;
 import esg.search.publish.api.MetadataUpdateService;
 import esg.search.publish.security.AuthorizerAdapter;
 import esg.search.query.api.QueryParameters;
@@ -51,6 +52,17 @@ public class MetadataUpdateServiceImpl implements MetadataUpdateService {
 	}
 
 	public int update(String url, String core, String action, HashMap<String, Map<String,String[]>> doc) throws Exception {
+		
+		try {
+			return _update(url, core, action, doc);
+		} finally {
+			// records may have been updated even in case of error
+			IndexUpdateEvent.publish(this);
+		}
+		
+	}
+	
+	private int _update(String url, String core, String action, HashMap<String, Map<String,String[]>> doc) throws Exception {
 
 		HttpClient httpClient = new HttpClient();
 		XmlParser xmlParser = new XmlParser(false);
@@ -9,6 +9,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
+import esg.search.publish.api.IndexUpdateEvent;
 import esg.search.publish.api.MetadataDeletionService;
 import esg.search.publish.api.MetadataRepositoryCrawlerManager;
 import esg.search.publish.api.MetadataRepositoryType;
@@ -74,6 +75,8 @@ public class PublishingServiceImpl implements PublishingService {
             LOG.error(e.getMessage());
             e.printStackTrace();
             throw new PublishingException(e.getMessage());
+        } finally {
+            IndexUpdateEvent.publish(this);
         }
 		
 	}
@@ -87,6 +90,8 @@ public class PublishingServiceImpl implements PublishingService {
             LOG.error(e.getMessage());
             e.printStackTrace();
             throw new PublishingException(e.getMessage());
+        } finally {
+            IndexUpdateEvent.publish(this);
         }
 
     }
@@ -100,6 +105,8 @@ public class PublishingServiceImpl implements PublishingService {
             LOG.error(e.getMessage());
             e.printStackTrace();
             throw new PublishingException(e.getMessage());
+        } finally {
+            IndexUpdateEvent.publish(this);
         }
 
     }
@@ -113,6 +120,8 @@ public class PublishingServiceImpl implements PublishingService {
             LOG.error(e.getMessage());
             e.printStackTrace();
             throw new PublishingException(e.getMessage());
+        } finally {
+            IndexUpdateEvent.publish(this);
         }
 
     }
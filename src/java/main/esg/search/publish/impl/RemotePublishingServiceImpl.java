@@ -2,6 +2,7 @@ package esg.search.publish.impl;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -14,10 +15,10 @@ import esg.search.publish.api.MetadataRepositoryType;
 import esg.search.publish.api.PublishingException;
 import esg.search.publish.api.PublishingService;
 import esg.search.publish.api.RemotePublishingService;
+import esg.search.query.api.MultiSearchService;
 import esg.search.query.api.QueryParameters;
 import esg.search.query.api.SearchInput;
 import esg.search.query.api.SearchOutput;
-import esg.search.query.api.SearchService;
 import esg.search.query.impl.solr.SearchInputImpl;
 import esg.search.utils.ApplicationContextProvider;
 
@@ -40,7 +41,7 @@ public class RemotePublishingServiceImpl implements RemotePublishingService {
     
     // Identifier of SearchService bean deployed in Spring context
     // The SearchService is needed to query for all datasets matching a given "instance_id" or "master_id".
-    private final static String SEARCH_SERVICE_BEAN = "searchServiceMaster";
+    private final static String SEARCH_SERVICE_BEAN = "publishingSearchService";
 
     /**
      * For the legacy methods, only harvest THREDDS metadata repositories.
@@ -173,13 +174,9 @@ public class RemotePublishingServiceImpl implements RemotePublishingService {
      */
     private List<String> getDatasetsById(final String datasetId, final String dataNode) {
     	
-        List<Record> records = new ArrayList<Record>();
-        
-        // find all datasets matching the given "master_id"
-        records.addAll(getDatasetsByIdType(QueryParameters.FIELD_MASTER_ID, datasetId, dataNode));
-        
-        // find all datasets matching the given "instance_id"
-        records.addAll(getDatasetsByIdType(QueryParameters.FIELD_INSTANCE_ID, datasetId, dataNode));
+        // find all datasets matching the given "master_id" or "instance_id" (concurrently)
+        final List<Record> records = getDatasetsByIdTypes(
+                Arrays.asList(QueryParameters.FIELD_MASTER_ID, QueryParameters.FIELD_INSTANCE_ID), datasetId, dataNode);
 
         // delete all matching datasets
         final List<String> ids = new ArrayList<String>();
@@ -200,27 +197,37 @@ public class RemotePublishingServiceImpl implements RemotePublishingService {
     }
     
     /**
-     * Utility method to retrieve datasets by matching "master_id" or "version_id".
+     * Utility method to retrieve datasets by matching any of the given id fields (e.g. "master_id" or "instance_id"),
+     * with one search per field.
      * 
-     * @param master_id
+     * @param idTypes
+     * @param idValue
+     * @param dataNode
      */
-    private List<Record> getDatasetsByIdType(final String idType, final String idValue, final String dataNode) throws PublishingException {
+    private List<Record> getDatasetsByIdTypes(final List<String> idTypes, final String idValue, final String dataNode) throws PublishingException {
         
-        final SearchService searchService = this.getSearchService();
+        final MultiSearchService searchService = this.getSearchService();
                
         try {
-            final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
-            input.setConstraint(idType, idValue);
-            input.setDistrib(false);
-            
-            if (dataNode != null) {
-                input.setConstraint("data_node", dataNode);
+            final List<SearchInput> inputs = new ArrayList<SearchInput>();
+            for (final String idType : idTypes) {
+                final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+                input.setConstraint(idType, idValue);
+                input.setDistrib(false);
+                
+                if (dataNode != null) {
+                    input.setConstraint("data_node", dataNode);
+                }
+                inputs.add(input);
             }
                                 
-            // execute query
-            final SearchOutput output = searchService.search(input);
+            // execute queries
+            final List<Record> records = new ArrayList<Record>();
+            for (final SearchOutput output : searchService.search(inputs)) {
+                records.addAll(output.getResults());
+            }
             
-            return output.getResults();
+            return records;
             
         } catch(Exception e) {
             throw new PublishingException(e.getMessage());
@@ -237,10 +244,10 @@ public class RemotePublishingServiceImpl implements RemotePublishingService {
     }
     
     /**
-     * Retrieves the configured {@link SearchService} from the Spring application context.
+     * Retrieves the configured {@link MultiSearchService} from the Spring application context.
      * @return
      */
-    protected SearchService getSearchService() {
-        return ApplicationContextProvider.getApplicationContext().getBean(SEARCH_SERVICE_BEAN, SearchService.class);
+    protected MultiSearchService getSearchService() {
+        return ApplicationContextProvider.getApplicationContext().getBean(SEARCH_SERVICE_BEAN, MultiSearchService.class);
     }
 }
@@ -3,7 +3,7 @@ package esg.search.publish.impl;
 import org.springframework.stereotype.Service;
 
 import esg.search.publish.api.PublishingService;
-import esg.search.query.api.SearchService;
+import esg.search.query.api.MultiSearchService;
 import esg.search.utils.ApplicationContextProvider;
 
 /**
@@ -22,7 +22,7 @@ public class RemotePublishingServiceImplLocal extends RemotePublishingServiceImp
     private final static String PUBLISHING_SERVICE_BEAN_LOCAL = "securePublishingServiceLocal";
     
     // Service that searches the local Solr index.
-    private final static String SEARCH_SERVICE_BEAN_LOCAL = "searchServiceLocal";
+    private final static String SEARCH_SERVICE_BEAN_LOCAL = "publishingSearchServiceLocal";
         
     /**
      * @Override
@@ -36,12 +36,12 @@ public class RemotePublishingServiceImplLocal extends RemotePublishingServiceImp
     
     /**
      * @Override
-     * Retrieves the configured {@link SearchService} from the Spring application context.
+     * Retrieves the configured {@link MultiSearchService} from the Spring application context.
      * @return
      */
     @Override
-    protected SearchService getSearchService() {
-        return ApplicationContextProvider.getApplicationContext().getBean(SEARCH_SERVICE_BEAN_LOCAL, SearchService.class);
+    protected MultiSearchService getSearchService() {
+        return ApplicationContextProvider.getApplicationContext().getBean(SEARCH_SERVICE_BEAN_LOCAL, MultiSearchService.class);
     }
     
 }
\ No newline at end of file
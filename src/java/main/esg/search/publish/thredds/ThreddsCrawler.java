@@ -83,7 +83,7 @@ public class ThreddsCrawler implements MetadataRepositoryCrawler {
 	 * @param searchService
 	 */
 	@Autowired
-	public ThreddsCrawler(final ThreddsParserStrategy parser, final @Qualifier("searchServiceMaster") SearchService searchService) {
+	public ThreddsCrawler(final ThreddsParserStrategy parser, final @Qualifier("publishingSearchService") SearchService searchService) {
 		this.parser = parser;
 		this.searchService = searchService;
 	}
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.api;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * API for looking up the values of a facet by prefix (typeahead),
+ * without executing a search for each lookup.
+ */
+public interface FacetSuggestService {
+    
+    /**
+     * Method to return the values of a facet that start with a given prefix (ignoring case),
+     * with their number of records, by decreasing number of records.
+     * 
+     * @param facet : the facet name
+     * @param prefix : the prefix of the facet values (all values if empty)
+     * @param limit : maximum number of values to return
+     * @return : the matching values, as sub-facets with counts (empty if the facet is not known)
+     */
+    public List<Facet> suggest(String facet, String prefix, int limit);
+    
+    /**
+     * Method to return the names of the facets whose values can be looked up.
+     * @return
+     */
+    public Set<String> getFacets();
+    
+    /**
+     * Method to tell whether the facet values have been loaded at least once.
+     * @return
+     */
+    public boolean isLoaded();
+
+}
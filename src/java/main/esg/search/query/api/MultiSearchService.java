@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.api;
+
+import java.util.List;
+
+/**
+ * Extension of the {@link SearchService} API to execute a batch of independent searches concurrently,
+ * for clients that would otherwise send several searches one after the other.
+ * The results are returned in the same order as the inputs.
+ */
+public interface MultiSearchService extends SearchService {
+    
+    /**
+     * Method to execute a batch of searches, and return the results as objects.
+     * 
+     * @param inputs
+     * @return the results of each search, in the same order as the inputs
+     * @throws Exception : the first exception thrown by any of the searches
+     */
+    public List<SearchOutput> search(final List<SearchInput> inputs) throws Exception;
+    
+    /**
+     * Method to execute a batch of searches, and return the results as documents of the given type.
+     * 
+     * @param inputs
+     * @param returnType
+     * @return the documents returned by each search, in the same order as the inputs
+     * @throws Exception : the first exception thrown by any of the searches
+     */
+    public List<String> query(final List<SearchInput> inputs, final SearchReturnType returnType) throws Exception;
+
+}
@@ -24,8 +24,25 @@ public class QueryParameters {
     public final static String FROM = "from";
     public final static String TO = "to";
     public final static String SORT = "sort";
+    public final static String CURSOR = "cursor";
+    // options of the returned facet values: for all facets (&facet_limit=20) and/or for specific facets (&facet_limit=variable:100)
+    public final static String FACET_LIMIT = "facet_limit";
+    public final static String FACET_OFFSET = "facet_offset";
+    public final static String FACET_SORT = "facet_sort";
+    // one record per group of records with the same value of a field: latest version (&collapse=master_id) or best replica (&collapse=instance_id)
+    public final static String COLLAPSE = "collapse";
         
-    public final static List<String> KEYWORDS = Arrays.asList( new String[]{ OFFSET, LIMIT, QUERY, FORMAT, FACETS, FIELDS, DISTRIB, SHARDS, FROM, TO, SORT } );
+    public final static List<String> KEYWORDS = Arrays.asList( new String[]{ OFFSET, LIMIT, QUERY, FORMAT, FACETS, FIELDS, DISTRIB, SHARDS, FROM, TO, SORT, CURSOR,
+                                                                            FACET_LIMIT, FACET_OFFSET, FACET_SORT, COLLAPSE } );
+    
+    // names of the facet options (as in the Solr facet parameters), applied to all facets unless set for a specific facet
+    public final static String FACET_OPTION_LIMIT = "limit";
+    public final static String FACET_OPTION_OFFSET = "offset";
+    public final static String FACET_OPTION_SORT = "sort";
+    public final static String FACET_ALL = "*";
+    // facet values sorted by decreasing count, or in lexicographic order
+    public final static String FACET_SORT_COUNT = "count";
+    public final static String FACET_SORT_INDEX = "index";
              
     // standard metadata fields, always included for each result (if available)
     final public static String FIELD_ID = "id";
@@ -81,6 +98,11 @@ public class QueryParameters {
     public final static String FIELD_VARIABLE_UNITS = "variable_units";
     public final static String FIELD_GEO = "geo";
     public final static String FIELD_GEO_UNITS = "geo_units";
+    
+    // geo-spatial query fields that require the "geo" field to be indexed
+    public final static List<String> GEO_SPATIAL_FIELDS = Arrays.asList( new String[]{ 
+        FIELD_LAT, FIELD_LON, FIELD_RADIUS, FIELD_POLYGON
+    });
         
     // special query fields for open search time extension
     public final static String FIELD_START = "start";
@@ -101,6 +123,11 @@ public class QueryParameters {
             FIELD_START, FIELD_END,
             FIELD_WGET_PATH, FIELD_WGET_EMPTYPATH});
     
+    // high-cardinality fields whose filter queries are unlikely to be repeated, and should not fill the Solr filter cache
+    public final static List<String> UNCACHED_FILTER_FIELDS = Arrays.asList( new String[]{ 
+        FIELD_ID, FIELD_MASTER_ID, FIELD_INSTANCE_ID, FIELD_DATASET_ID, FIELD_TRACKING_ID, FIELD_CHECKSUM
+    });
+    
     // fields that should NOT be used as facets
     public final static List<String> NOT_FACETS = Arrays.asList( new String[]{ 
     	FIELD_ID, FIELD_MASTER_ID, FIELD_INSTANCE_ID,
@@ -168,6 +195,16 @@ public class QueryParameters {
      * Maximum limit on returned results
      */
     public final static int MAX_LIMIT = 10000;
+    
+    /**
+     * Maximum limit on files returned by a bulk export (retrieved in pages with a cursor).
+     */
+    public final static int MAX_EXPORT_LIMIT = 1000000;
+    
+    /**
+     * Initial value of the cursor for deep paging through all results.
+     */
+    public final static String CURSOR_START = "*";
 
     /**
      * Common record types.
@@ -198,7 +235,208 @@ public class QueryParameters {
     // 1 minute read timeout for files
     public final static int DEFAULT_FILES_READ_TIMEOUT = 3600000;
     public final static String PROPERTY_FILES_READ_TIMEOUT = "index.timeout.read.files";
+    // 30 seconds read timeout for the Luke handler (list of facets)
+    public final static int DEFAULT_LUKE_READ_TIMEOUT = 30000;
+    public final static String PROPERTY_LUKE_READ_TIMEOUT = "index.timeout.read.luke";
+    // retry loading the list of facets after 60 seconds while it is empty (e.g. the shards were down at startup)
+    public final static int DEFAULT_LUKE_RETRY_INTERVAL = 60;
+    public final static String PROPERTY_LUKE_RETRY_INTERVAL = "index.luke.retry.interval";
+
+    /*
+     * HTTP connection pool default values and properties for changing them.
+     * The pool is shared by all clients of the Solr servers (searching, publishing, shard probing).
+     * Responses that are streamed to a client (search results, wget scripts, exports) can hold a connection 
+     * for as long as the client takes to read them (up to 1 hour, or longer for wget scripts), so they draw their connections
+     * from a separate streaming pool: a few slow downloads can then never starve the regular searches of connections.
+     * The streaming pool should be sized after the number of concurrent streaming requests (esg.search.async.*.threads).
+     */
+    // maximum number of open connections, across all hosts
+    public final static int DEFAULT_HTTP_MAX_CONNECTIONS = 200;
+    public final static String PROPERTY_HTTP_MAX_CONNECTIONS = "index.http.connections.max";
+    // maximum number of open connections to each single host (i.e. Solr server)
+    public final static int DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST = 20;
+    public final static String PROPERTY_HTTP_MAX_CONNECTIONS_PER_HOST = "index.http.connections.max.per.host";
+    // maximum number of open connections of the streaming pool, across all hosts
+    public final static int DEFAULT_HTTP_STREAMING_MAX_CONNECTIONS = 100;
+    public final static String PROPERTY_HTTP_STREAMING_MAX_CONNECTIONS = "index.http.streaming.connections.max";
+    // maximum number of open connections of the streaming pool to each single host 
+    // (50 /search plus 10 /wget threads by default, see application.properties)
+    public final static int DEFAULT_HTTP_STREAMING_MAX_CONNECTIONS_PER_HOST = 60;
+    public final static String PROPERTY_HTTP_STREAMING_MAX_CONNECTIONS_PER_HOST = "index.http.streaming.connections.max.per.host";
+    // 1 minute before an unused connection is closed
+    public final static int DEFAULT_HTTP_IDLE_TIMEOUT = 60000;
+    public final static String PROPERTY_HTTP_IDLE_TIMEOUT = "index.http.connections.idle.timeout";
+    
+    /*
+     * Search results cache default values and properties for changing them.
+     */
+    // maximum number of cached responses (0 to disable the cache)
+    public final static int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+    public final static String PROPERTY_CACHE_MAX_ENTRIES = "index.cache.max.entries";
+    // 64 MB maximum total size of the cached responses
+    public final static long DEFAULT_CACHE_MAX_SIZE = 64*1024*1024;
+    public final static String PROPERTY_CACHE_MAX_SIZE = "index.cache.max.size";
+    // 1 MB maximum size of a single cached response (larger responses are not cached)
+    public final static int DEFAULT_CACHE_MAX_ENTRY_SIZE = 1024*1024;
+    public final static String PROPERTY_CACHE_MAX_ENTRY_SIZE = "index.cache.max.entry.size";
+    // 5 minutes before a cached response expires
+    public final static long DEFAULT_CACHE_TTL = 300000;
+    public final static String PROPERTY_CACHE_TTL = "index.cache.ttl";
+    
+    /*
+     * Federated search executed by this application (as opposed to Solr distributed search) default values and properties for changing them.
+     */
+    // whether distributed searches (except for files) query each shard in parallel and merge the responses in this application
+    // (collapsed distributed searches always do, as Solr only collapses the records within each shard)
+    public final static boolean DEFAULT_FEDERATION = false;
+    public final static String PROPERTY_FEDERATION = "index.federation";
+    // maximum number of shards queried concurrently, by all searches
+    public final static int DEFAULT_FEDERATION_THREADS = 50;
+    public final static String PROPERTY_FEDERATION_THREADS = "index.federation.threads";
+    // maximum time in milliseconds to wait for the shards (the shards that did not answer in time are skipped)
+    public final static long DEFAULT_FEDERATION_TIMEOUT = 10000;
+    public final static String PROPERTY_FEDERATION_TIMEOUT = "index.federation.timeout";
+    
+    /*
+     * Hedged requests to replica Solr servers default values and properties for changing them.
+     */
+    // comma-separated base URLs of the Solr servers that serve the same index (for example, the master and slave on the same node):
+    // a search service whose URL is in the list sends a duplicate request to another one when its own is slow (empty to disable)
+    // (only the read-only search service of the slave Solr server, never the master used during publication)
+    public final static String DEFAULT_HEDGING_URLS = "";
+    public final static String PROPERTY_HEDGING_URLS = "index.hedging.urls";
+    // percentile of the recent response times of each core after which a duplicate request is sent
+    public final static int DEFAULT_HEDGING_PERCENTILE = 95;
+    public final static String PROPERTY_HEDGING_PERCENTILE = "index.hedging.percentile";
+    // minimum delay in milliseconds before a duplicate request is sent
+    public final static long DEFAULT_HEDGING_MIN_DELAY = 50;
+    public final static String PROPERTY_HEDGING_MIN_DELAY = "index.hedging.delay.min";
     
+    /*
+     * Coalescing of identical concurrent searches default values and properties for changing them.
+     */
+    // maximum time in milliseconds a search waits for the identical search in progress, before executing its own (0 to disable coalescing)
+    public final static long DEFAULT_COALESCING_MAX_WAIT = 30000;
+    public final static String PROPERTY_COALESCING_MAX_WAIT = "index.coalescing.wait.max";
+    // 4 MB maximum size of a streamed response shared with the waiting searches (which execute their own search otherwise)
+    public final static int DEFAULT_COALESCING_MAX_SIZE = 4*1024*1024;
+    public final static String PROPERTY_COALESCING_MAX_SIZE = "index.coalescing.max.size";
+    
+    /*
+     * Concurrent execution of batches of searches (see MultiSearchService).
+     */
+    // maximum number of searches of a batch executed by background threads at any time (further searches are executed by the calling thread)
+    public final static int DEFAULT_MULTI_SEARCH_THREADS = 10;
+    public final static String PROPERTY_MULTI_SEARCH_THREADS = "index.multi.threads";
+    
+    /*
+     * Shard health monitoring default values and properties for changing them.
+     */
+    // 1 minute between successive probes of all shards
+    public final static long DEFAULT_SHARDS_PROBE_INTERVAL = 60000;
+    public final static String PROPERTY_SHARDS_PROBE_INTERVAL = "index.shards.probe.interval";
+    // maximum number of shards probed concurrently
+    public final static int DEFAULT_SHARDS_PROBE_THREADS = 10;
+    public final static String PROPERTY_SHARDS_PROBE_THREADS = "index.shards.probe.threads";
+    // 1 second before a second (hedged) probe is sent to a shard that has not yet answered
+    public final static long DEFAULT_SHARDS_PROBE_HEDGE_DELAY = 1000;
+    public final static String PROPERTY_SHARDS_PROBE_HEDGE_DELAY = "index.shards.probe.hedge.delay";
+    // number of consecutive failed probes before a shard is excluded from distributed searches
+    public final static int DEFAULT_SHARDS_MAX_FAILURES = 2;
+    public final static String PROPERTY_SHARDS_MAX_FAILURES = "index.shards.failures.max";
+    // 95th percentile of the probe elapsed time above which a shard is excluded from distributed searches
+    public final static long DEFAULT_SHARDS_SLOW_THRESHOLD = 3000;
+    public final static String PROPERTY_SHARDS_SLOW_THRESHOLD = "index.shards.slow.threshold";
+    // comma-separated facets whose values held by each shard are used to leave out the shards that cannot match a search (empty to disable)
+    public final static String DEFAULT_SHARDS_PRUNE_FACETS = "";
+    public final static String PROPERTY_SHARDS_PRUNE_FACETS = "index.shards.prune.facets";
+    // 10 minutes between successive updates of the facet values held by each shard
+    public final static long DEFAULT_SHARDS_PRUNE_INTERVAL = 600000;
+    public final static String PROPERTY_SHARDS_PRUNE_INTERVAL = "index.shards.prune.interval";
+    
+    /*
+     * Typeahead of facet values default values and properties for changing them.
+     */
+    // comma-separated facets whose values can be looked up (empty for all the facets of the facet profile)
+    public final static String DEFAULT_SUGGEST_FACETS = "";
+    public final static String PROPERTY_SUGGEST_FACETS = "index.suggest.facets";
+    // 10 minutes between successive reloads of the facet values
+    public final static long DEFAULT_SUGGEST_INTERVAL = 600000;
+    public final static String PROPERTY_SUGGEST_INTERVAL = "index.suggest.interval";
+    
+    /*
+     * Collapsed searches default values and properties for changing them.
+     */
+    // data node whose records are preferred to the other replicas (e.g. the local data node), empty for the original records only
+    public final static String DEFAULT_COLLAPSE_DATA_NODE = "";
+    public final static String PROPERTY_COLLAPSE_DATA_NODE = "index.collapse.data_node";
+    
+    /*
+     * Partial results of distributed searches: 
+     * maximum search time (timeAllowed) and tolerance of shard errors (shards.tolerant).
+     */
+    // 5 seconds, so that Solr returns before the datasets read timeout
+    public final static int DEFAULT_SHARDS_TIME_ALLOWED = DEFAULT_DATASETS_READ_TIMEOUT/2;
+    public final static String PROPERTY_SHARDS_TIME_ALLOWED = "index.shards.time.allowed";
+    public final static boolean DEFAULT_SHARDS_TOLERANT = true;
+    public final static String PROPERTY_SHARDS_TOLERANT = "index.shards.tolerant";
+    
+    /**
+     * HTTP response header listing the shards that were left out of a distributed search.
+     */
+    public final static String HEADER_SKIPPED_SHARDS = "X-ESGF-Skipped-Shards";
+    
+    /*
+     * Circuit breaker for distributed searches: default values and properties for changing them.
+     */
+    // number of consecutive failed distributed searches before falling back to local searches
+    public final static int DEFAULT_CIRCUIT_MAX_FAILURES = 3;
+    public final static String PROPERTY_CIRCUIT_MAX_FAILURES = "index.circuit.failures.max";
+    // 30 seconds of local searches before a distributed search is attempted again
+    public final static long DEFAULT_CIRCUIT_OPEN_TIME = 30000;
+    public final static String PROPERTY_CIRCUIT_OPEN_TIME = "index.circuit.open.time";
+    // the open time doubles after each failed attempt, up to 10 minutes
+    public final static long DEFAULT_CIRCUIT_MAX_OPEN_TIME = 600000;
+    public final static String PROPERTY_CIRCUIT_MAX_OPEN_TIME = "index.circuit.open.time.max";
+    
+    /*
+     * Geo-spatial search on the "geo" field, which the publisher fills with the ENVELOPE of the record coverage:
+     * if enabled, bbox constraints are sent as native Intersects filters, and lat/lon/radius and polygon constraints are supported.
+     * Disabled by default, because records published before the field was introduced do not have it.
+     */
+    public final static boolean DEFAULT_GEO_SPATIAL = false;
+    public final static String PROPERTY_GEO_SPATIAL = "index.geo.spatial";
+    
+    /*
+     * Rounding of relative dates (NOW) in temporal filter queries, so that the filters are reused from the Solr filter cache:
+     * a date math unit ("MINUTE", "HOUR", "DAY") or "NONE" for no rounding.
+     * Lower bounds are rounded down and upper bounds up, so that no matching records are left out
+     * (records up to one hour outside of the range may be included).
+     */
+    public final static String DEFAULT_DATE_ROUNDING = "HOUR";
+    public final static String PROPERTY_DATE_ROUNDING = "index.date.rounding";
+    public final static String DATE_ROUNDING_NONE = "NONE";
+    
+    /*
+     * Concurrency limits (bulkheads) by workload: dataset searches, file searches, wget scripts, feeds, publishing lookups.
+     * Properties are formatted with the name of the workload (e.g. "index.bulkhead.wget.permits").
+     */
+    // maximum number of searches executed concurrently (default set per workload in the application context)
+    public final static String PROPERTY_BULKHEAD_PERMITS = "index.bulkhead.%s.permits";
+    // maximum number of searches waiting for a permit, any further search is rejected immediately
+    public final static String PROPERTY_BULKHEAD_QUEUE = "index.bulkhead.%s.queue";
+    // maximum time in milliseconds a search waits for a permit before being rejected
+    public final static long DEFAULT_BULKHEAD_MAX_WAIT = 5000;
+    public final static String PROPERTY_BULKHEAD_MAX_WAIT = "index.bulkhead.%s.wait.max";
+    
+    /*
+     * Parser used to convert Solr/XML responses into search results:
+     * "stax" (default) for the streaming parser, "jdom" for the tree-based parser.
+     */
+    public final static String XML_PARSER_STAX = "stax";
+    public final static String XML_PARSER_JDOM = "jdom";
+    public final static String PROPERTY_XML_PARSER = "index.xml.parser";
+
     // schema URIs
     public final static String SCHEMA_ESGF = "esgf";
     public final static String SCHEMA_GEO = "geo";
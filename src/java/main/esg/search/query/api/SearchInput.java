@@ -157,6 +157,29 @@ public interface SearchInput {
 	 */
 	public void setFacets(List<String> facets);
 	
+	/**
+	 * Method to set an option of the values returned for a facet 
+	 * (see {@link QueryParameters#FACET_OPTION_LIMIT}, {@link QueryParameters#FACET_OPTION_OFFSET}, {@link QueryParameters#FACET_OPTION_SORT}).
+	 * @param facet : the facet name, or {@link QueryParameters#FACET_ALL} for all facets
+	 * @param option
+	 * @param value
+	 */
+	public void setFacetOption(String facet, String option, String value);
+	
+	/**
+	 * Getter method for the facet options, by facet name (or {@link QueryParameters#FACET_ALL}) and option name.
+	 * @return
+	 */
+	public Map<String, Map<String, String>> getFacetOptions();
+	
+	/**
+	 * Method to return the value of an option for a facet, either set for that facet or for all facets (null if not set).
+	 * @param facet
+	 * @param option
+	 * @return
+	 */
+	public String getFacetOption(String facet, String option);
+	
 	/**
 	 * Setter method for the list of optional fields to be returned for each result
 	 * (in addition to the standard fields which are always returned).
@@ -245,4 +268,59 @@ public interface SearchInput {
      */
     public void setSort(boolean sort);
     
+    /**
+     * Getter method for the cursor used to page through the results in constant time,
+     * i.e. the "next cursor" returned by the previous page, or "*" for the first page (null if not used).
+     * @return
+     */
+    public String getCursor();
+    
+    /**
+     * Setter method for the cursor used to page through the results in constant time.
+     * Note that when a cursor is used, the offset is ignored.
+     * @param cursor
+     */
+    public void setCursor(String cursor);
+    
+    /**
+     * Getter method for the field used to collapse the results to a single record per group of records with the same value,
+     * i.e. {@link QueryParameters#FIELD_MASTER_ID} for the latest version of each dataset, 
+     * or {@link QueryParameters#FIELD_INSTANCE_ID} for the best replica of each dataset version (null if not used).
+     * @return
+     */
+    public String getCollapse();
+    
+    /**
+     * Setter method for the field used to collapse the results.
+     * @param collapse
+     */
+    public void setCollapse(String collapse);
+    
+    /**
+     * Getter method for the shards that were left out of the distributed search because they were unavailable or slow
+     * (set by the search service when the query is executed).
+     * @return
+     */
+    public Set<String> getSkippedShards();
+    
+    /**
+     * Setter method for the shards that were left out of the distributed search.
+     * @param skippedShards
+     */
+    public void setSkippedShards(Set<String> skippedShards);
+    
+    /**
+     * Getter method for the flag that a distributed search may return partial results 
+     * (tolerating shard errors and limiting the search time) instead of failing or stalling.
+     * @return
+     */
+    public boolean isPartialAllowed();
+    
+    /**
+     * Setter method for the flag that a distributed search may return partial results
+     * (only set for interactive searches).
+     * @param partialAllowed
+     */
+    public void setPartialAllowed(boolean partialAllowed);
+    
 }
\ No newline at end of file
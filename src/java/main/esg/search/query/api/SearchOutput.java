@@ -53,6 +53,32 @@ public interface SearchOutput {
 	 */
 	public void setOffset(int offset);
 	
+	/**
+	 * Getter method for the cursor to be used to retrieve the next page of results
+	 * (only returned if a cursor was specified in the search input, null otherwise).
+	 * @return
+	 */
+	public String getNextCursor();
+	
+	/**
+	 * Setter method for the cursor to be used to retrieve the next page of results.
+	 * @param nextCursor
+	 */
+	public void setNextCursor(String nextCursor);
+	
+	/**
+	 * Getter method for the flag that the results are partial 
+	 * (the response header of a distributed search was flagged with "partialResults").
+	 * @return
+	 */
+	public boolean isPartial();
+	
+	/**
+	 * Setter method for the flag that the results are partial.
+	 * @param partial
+	 */
+	public void setPartial(boolean partial);
+	
 	/**
 	 * Method to return the results list.
 	 * @return
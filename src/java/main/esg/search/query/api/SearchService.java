@@ -18,6 +18,7 @@
  ******************************************************************************/
 package esg.search.query.api;
 
+import java.io.OutputStream;
 
 /**
  * Interface defining the API for mix faceted/text search.
@@ -45,6 +46,17 @@ public interface SearchService {
 	 */
 	public String query(final SearchInput input, final SearchReturnType returnType) throws Exception;
 	
+	/**
+	 * Method to search for results and/or facets matching the given constraints, and write the results in serialized form
+	 * directly to the given output stream, without buffering the whole response in memory.
+	 * 
+	 * @param input
+	 * @param returnType
+	 * @param out
+	 * @throws Exception
+	 */
+	public void query(final SearchInput input, final SearchReturnType returnType, final OutputStream out) throws Exception;
+	
 	/**
 	 * Hook to run recovery procedures in case the query results in an error.
 	 * 
@@ -0,0 +1,39 @@
+package esg.search.query.api;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * API for monitoring the health of the shards targeted by distributed searches.
+ * Implementations are expected to probe the shards in the background,
+ * so that the health of the shards is already known when a search is executed.
+ *
+ */
+public interface ShardHealthService {
+    
+    /**
+     * Method to select the shards that are currently available for searching.
+     * 
+     * @param shards : the configured shards
+     * @return : the subset of available shards, in the same order
+     */
+    public LinkedHashSet<String> getAvailableShards(final Set<String> shards);
+    
+    /**
+     * Method to select the shards that may hold records matching the constraints of a search,
+     * based on the facet values that each shard is known to hold.
+     * Shards whose facet values are not known are always selected.
+     * 
+     * @param shards : the candidate shards
+     * @param input : the search input
+     * @return : the subset of shards that may match, in the same order
+     */
+    public LinkedHashSet<String> getMatchingShards(final Set<String> shards, final SearchInput input);
+    
+    /**
+     * Method to request that all shards be probed again as soon as possible.
+     * This method does not wait for the probes to complete.
+     */
+    public void probe();
+
+}
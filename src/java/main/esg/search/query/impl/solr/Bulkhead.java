@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpStatus;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.StringUtils;
+
+import esg.common.util.ESGFProperties;
+import esg.search.query.api.QueryParameters;
+import esg.search.utils.HttpStatusException;
+
+/**
+ * Class that limits the number of searches of one workload (for example, wget scripts) executed concurrently,
+ * so that a burst of expensive searches cannot starve the other workloads.
+ * 
+ * A search that cannot obtain a permit immediately waits for one up to a maximum time, unless too many searches
+ * are already waiting: in both cases it is rejected with an {@link HttpStatusException} with status 503,
+ * so that clients are told to retry later instead of piling up.
+ * 
+ * Saturation statistics are exposed through JMX.
+ */
+@ManagedResource(description="Concurrency limit of a search workload")
+public class Bulkhead {
+    
+    private final String name;
+    
+    private final Semaphore permits;
+    
+    /**
+     * Configuration.
+     */
+    private final int maxPermits;
+    private final int maxQueue;
+    private long maxWait = QueryParameters.DEFAULT_BULKHEAD_MAX_WAIT;
+    
+    /**
+     * Statistics.
+     */
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicInteger peak = new AtomicInteger(0);
+    private final AtomicLong accepted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    
+    private static final Log LOG = LogFactory.getLog(Bulkhead.class);
+    
+    /**
+     * Constructor with mandatory arguments.
+     * 
+     * @param name : name of the workload
+     * @param permits : default maximum number of concurrent searches
+     * @param queue : default maximum number of waiting searches
+     * @param props : properties file to override the default values
+     */
+    public Bulkhead(final String name, final int permits, final int queue, final ESGFProperties props) {
+        
+        this.name = name;
+        
+        final String _permits = props.getProperty(String.format(QueryParameters.PROPERTY_BULKHEAD_PERMITS, name));
+        this.maxPermits = StringUtils.hasText(_permits) ? Integer.parseInt(_permits) : permits;
+        final String _queue = props.getProperty(String.format(QueryParameters.PROPERTY_BULKHEAD_QUEUE, name));
+        this.maxQueue = StringUtils.hasText(_queue) ? Integer.parseInt(_queue) : queue;
+        final String _maxWait = props.getProperty(String.format(QueryParameters.PROPERTY_BULKHEAD_MAX_WAIT, name));
+        if (StringUtils.hasText(_maxWait)) this.maxWait = Long.parseLong(_maxWait);
+        
+        this.permits = new Semaphore(this.maxPermits, true);
+        
+        if (LOG.isInfoEnabled()) LOG.info("Bulkhead "+name+": permits="+this.maxPermits+" queue="+this.maxQueue+" max wait="+this.maxWait);
+        
+    }
+    
+    /**
+     * Method to obtain a permit to execute a search, which must be released when the search completes.
+     * 
+     * @throws HttpStatusException : with status 503 if no permit could be obtained
+     * @throws InterruptedException
+     */
+    public void acquire() throws HttpStatusException, InterruptedException {
+        
+        if (!permits.tryAcquire()) {
+            
+            // wait in line, unless the line is full already
+            if (waiting.incrementAndGet()>maxQueue) {
+                waiting.decrementAndGet();
+                throw reject("queue is full");
+            }
+            try {
+                if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) throw reject("no permit within "+maxWait+" ms");
+            } finally {
+                waiting.decrementAndGet();
+            }
+            
+        }
+        
+        accepted.incrementAndGet();
+        final int active = maxPermits - permits.availablePermits();
+        int _peak = peak.get();
+        while (active>_peak && !peak.compareAndSet(_peak, active)) _peak = peak.get();
+        
+    }
+    
+    /**
+     * Method to release a permit obtained by {@link #acquire()}.
+     */
+    public void release() {
+        permits.release();
+    }
+    
+    private HttpStatusException reject(final String reason) {
+        rejected.incrementAndGet();
+        if (LOG.isWarnEnabled()) LOG.warn("Bulkhead "+name+" rejected search: "+reason);
+        return new HttpStatusException(HttpStatus.SC_SERVICE_UNAVAILABLE, 
+                                       "Too many concurrent "+name+" requests, please try again later");
+    }
+    
+    @ManagedAttribute(description="Name of the workload")
+    public String getName() {
+        return name;
+    }
+    
+    @ManagedAttribute(description="Maximum number of concurrent searches")
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+    
+    @ManagedAttribute(description="Number of searches in progress")
+    public int getActive() {
+        return maxPermits - permits.availablePermits();
+    }
+    
+    @ManagedAttribute(description="Number of searches waiting for a permit")
+    public int getWaiting() {
+        return waiting.get();
+    }
+    
+    @ManagedAttribute(description="Highest number of concurrent searches")
+    public int getPeak() {
+        return peak.get();
+    }
+    
+    @ManagedAttribute(description="Fraction of the permits in use")
+    public double getSaturation() {
+        return maxPermits>0 ? ((double)getActive())/maxPermits : 1.0;
+    }
+    
+    @ManagedAttribute(description="Number of searches executed")
+    public long getAccepted() {
+        return accepted.get();
+    }
+    
+    @ManagedAttribute(description="Number of searches rejected")
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    @Override
+    public String toString() {
+        return name+": active="+getActive()+"/"+maxPermits+" waiting="+getWaiting()+" rejected="+getRejected();
+    }
+
+}
@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.io.OutputStream;
+
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchOutput;
+import esg.search.query.api.SearchReturnType;
+import esg.search.query.api.SearchService;
+
+/**
+ * Implementation of {@link SearchService} that limits the number of concurrent calls to another {@link SearchService}
+ * through a {@link Bulkhead}, so that each workload (dataset searches, file searches, wget scripts, feeds, publishing lookups)
+ * is isolated from the others.
+ * 
+ * The bulkhead is either fixed, or chosen for each search by the requested record type: 
+ * searches for files use the file bulkhead, all other searches use the dataset bulkhead.
+ * Searches that are rejected by the bulkhead fail with an HTTP status 503.
+ * 
+ * If the underlying search service is a {@link CachingSearchServiceImpl}, the bulkhead effectively sits behind the cache:
+ * searches that are served from the cache do not need a permit (an entry that expires or is evicted in the meantime
+ * is then retrieved without a permit).
+ */
+public class BulkheadSearchServiceImpl implements SearchService {
+    
+    /**
+     * The underlying search service.
+     */
+    private final SearchService searchService;
+    
+    /**
+     * The bulkheads for searches of datasets (or any type other than File) and of files.
+     */
+    private final Bulkhead datasetBulkhead;
+    private final Bulkhead fileBulkhead;
+    
+    /**
+     * The underlying search service if it is a cache, null otherwise.
+     */
+    private final CachingSearchServiceImpl cache;
+    
+    /**
+     * Constructor for a single workload.
+     * 
+     * @param searchService : the search service whose concurrent calls are limited
+     * @param bulkhead : the bulkhead used for all searches
+     */
+    public BulkheadSearchServiceImpl(final SearchService searchService, final Bulkhead bulkhead) {
+        this(searchService, bulkhead, bulkhead);
+    }
+    
+    /**
+     * Constructor that separates searches by the requested record type.
+     * 
+     * @param searchService : the search service whose concurrent calls are limited
+     * @param datasetBulkhead : the bulkhead used for searches of datasets (or any type other than File)
+     * @param fileBulkhead : the bulkhead used for searches of files
+     */
+    public BulkheadSearchServiceImpl(final SearchService searchService, final Bulkhead datasetBulkhead, final Bulkhead fileBulkhead) {
+        this.searchService = searchService;
+        this.datasetBulkhead = datasetBulkhead;
+        this.fileBulkhead = fileBulkhead;
+        this.cache = (searchService instanceof CachingSearchServiceImpl ? (CachingSearchServiceImpl)searchService : null);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SearchOutput search(final SearchInput input) throws Exception {
+        
+        if (isCached(input, SearchReturnType.SOLR_XML)) return searchService.search(input);
+        
+        final Bulkhead bulkhead = getBulkhead(input);
+        bulkhead.acquire();
+        try {
+            return searchService.search(input);
+        } finally {
+            bulkhead.release();
+        }
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String query(final SearchInput input, final SearchReturnType returnType) throws Exception {
+        
+        if (isCached(input, returnType)) return searchService.query(input, returnType);
+        
+        final Bulkhead bulkhead = getBulkhead(input);
+        bulkhead.acquire();
+        try {
+            return searchService.query(input, returnType);
+        } finally {
+            bulkhead.release();
+        }
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The permit is held until the whole response has been written to the output stream.
+     */
+    @Override
+    public void query(final SearchInput input, final SearchReturnType returnType, final OutputStream out) throws Exception {
+        
+        if (isCached(input, returnType)) {
+            searchService.query(input, returnType, out);
+            return;
+        }
+        
+        final Bulkhead bulkhead = getBulkhead(input);
+        bulkhead.acquire();
+        try {
+            searchService.query(input, returnType, out);
+        } finally {
+            bulkhead.release();
+        }
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recover(final SearchInput input) throws Exception {
+        searchService.recover(input);
+    }
+    
+    private boolean isCached(final SearchInput input, final SearchReturnType returnType) {
+        return cache!=null && cache.isCached(input, returnType);
+    }
+    
+    private Bulkhead getBulkhead(final SearchInput input) {
+        return QueryParameters.TYPE_FILE.equalsIgnoreCase(input.getConstraint(QueryParameters.FIELD_TYPE)) ? fileBulkhead : datasetBulkhead;
+    }
+
+}
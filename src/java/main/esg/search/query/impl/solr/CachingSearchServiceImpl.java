@@ -0,0 +1,472 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.StringUtils;
+
+import esg.common.util.ESGFProperties;
+import esg.search.publish.api.IndexUpdateEvent;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchOutput;
+import esg.search.query.api.SearchReturnType;
+import esg.search.query.api.SearchService;
+
+/**
+ * Implementation of {@link SearchService} that caches the serialized responses of another {@link SearchService}.
+ * 
+ * Responses are cached by a canonical form of the {@link SearchInput} (so that, for example, 
+ * the same constraints or fields specified in a different order result in the same cache entry),
+ * and evicted in least-recently-used order when the maximum number of entries or the maximum total size is exceeded.
+ * Entries expire after a configurable time, and the whole cache is cleared whenever the index
+ * is modified through this application (see {@link IndexUpdateEvent}).
+ * 
+ * Responses are not cached if they exceed the maximum entry size, or if they are partial results of a distributed search
+ * (i.e. some shards were skipped, for example because the underlying service had to fall back to a non-distributed search, 
+ * or did not answer in time).
+ * 
+ * Hit and miss counters are exposed through JMX.
+ */
+@ManagedResource(objectName="esg.search:type=SearchCache,name=searchService", description="Search results cache")
+public class CachingSearchServiceImpl implements SearchService, ApplicationListener<IndexUpdateEvent> {
+    
+    /**
+     * The underlying search service.
+     */
+    private final SearchService searchService;
+    
+    /**
+     * The parser used to convert cached Solr/XML responses into objects.
+     */
+    private final SolrXmlParser xmlParser;
+    
+    /**
+     * Cache entries, in access order.
+     */
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    
+    /**
+     * Configuration.
+     */
+    private int maxEntries = QueryParameters.DEFAULT_CACHE_MAX_ENTRIES;
+    private long maxSize = QueryParameters.DEFAULT_CACHE_MAX_SIZE;
+    private int maxEntrySize = QueryParameters.DEFAULT_CACHE_MAX_ENTRY_SIZE;
+    private long ttl = QueryParameters.DEFAULT_CACHE_TTL;
+    
+    /**
+     * Statistics (guarded by the cache lock).
+     */
+    private long size = 0;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+    
+    private final static String UTF8 = "UTF-8";
+    
+    private final static String PARTIAL_RESULTS = SolrXmlPars.ATTRIBUTE_VALUE_PARTIAL_RESULTS;
+    private final static String JSON_RESPONSE_HEADER = SolrXmlPars.ATTRIBUTE_VALUE_RESPONSE_HEADER;
+    
+    private static final Log LOG = LogFactory.getLog(CachingSearchServiceImpl.class);
+    
+    /**
+     * Constructor with mandatory arguments.
+     * 
+     * @param searchService : the search service whose responses are cached
+     * @param props : properties file to set the configurable cache bounds
+     */
+    public CachingSearchServiceImpl(final SearchService searchService, final ESGFProperties props) {
+        
+        this.searchService = searchService;
+        this.xmlParser = SolrXmlParser.getInstance(props);
+        
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CACHE_MAX_ENTRIES)))
+            this.maxEntries = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_CACHE_MAX_ENTRIES));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CACHE_MAX_SIZE)))
+            this.maxSize = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_CACHE_MAX_SIZE));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CACHE_MAX_ENTRY_SIZE)))
+            this.maxEntrySize = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_CACHE_MAX_ENTRY_SIZE));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CACHE_TTL)))
+            this.ttl = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_CACHE_TTL));
+        
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Search Cache max entries="+this.maxEntries);
+            LOG.info("Search Cache max size="+this.maxSize);
+            LOG.info("Search Cache max entry size="+this.maxEntrySize);
+            LOG.info("Search Cache ttl="+this.ttl);
+        }
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The results are parsed from the (possibly cached) Solr/XML response.
+     */
+    @Override
+    public SearchOutput search(final SearchInput input) throws Exception {
+        
+        final String response = this.query(input, SearchReturnType.SOLR_XML);
+        return xmlParser.parse(response, input);
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String query(final SearchInput input, final SearchReturnType returnType) throws Exception {
+        
+        final String key = getKey(input, returnType);
+        final byte[] data = this.get(key);
+        if (data!=null) return new String(data, UTF8);
+        
+        final long generation = this.getGeneration();
+        final String response = searchService.query(input, returnType);
+        
+        // the UTF-8 encoding is never shorter than the number of chars, so larger responses are not even encoded
+        if (response.length()<=maxEntrySize && !isPartial(input, response)) {
+            final byte[] _data = response.getBytes(UTF8);
+            if (_data.length<=maxEntrySize) this.put(key, _data, generation);
+        }
+        
+        return response;
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     * On a cache miss, the response is copied to the cache while it is streamed to the output stream,
+     * unless it grows beyond the maximum entry size.
+     */
+    @Override
+    public void query(final SearchInput input, final SearchReturnType returnType, final OutputStream out) throws Exception {
+        
+        final String key = getKey(input, returnType);
+        final byte[] data = this.get(key);
+        if (data!=null) {
+            out.write(data);
+            return;
+        }
+        
+        final long generation = this.getGeneration();
+        final TeeOutputStream tee = new TeeOutputStream(out, maxEntrySize);
+        searchService.query(input, returnType, tee);
+        
+        final byte[] _data = tee.getCopy();
+        if (_data!=null && !isPartial(input, new String(_data, UTF8))) this.put(key, _data, generation);
+        
+    }
+    
+    /**
+     * Method to detect partial results of a distributed search: 
+     * either some shards were skipped by the search service, or Solr flagged the response header
+     * with "partialResults" (which can only happen if the search allowed partial results).
+     */
+    private boolean isPartial(final SearchInput input, final String response) throws Exception {
+        
+        if (!input.getSkippedShards().isEmpty()) return true;
+        if (!input.isPartialAllowed() || !input.isDistrib()) return false;
+        if (input.getFormat().equals(SearchReturnType.SOLR_JSON.getMimeType())) {
+            return isPartialJson(response);
+        } else {
+            return xmlParser.parse(response, input).isPartial();
+        }
+        
+    }
+    
+    /**
+     * Method to read the "partialResults" flag of the top-level "responseHeader" object of a Solr/JSON response,
+     * ignoring any other occurrence of the name (for example in the echoed request parameters or in the results).
+     */
+    static boolean isPartialJson(final String json) {
+        
+        int depth = 0;
+        boolean header = false;
+        String name = null;
+        for (int i=0; i<json.length(); i++) {
+            final char c = json.charAt(i);
+            if (c=='"') {
+                // read string
+                final StringBuilder sb = new StringBuilder();
+                for (i++; i<json.length() && json.charAt(i)!='"'; i++) {
+                    if (json.charAt(i)=='\\') i++;
+                    if (i<json.length()) sb.append(json.charAt(i));
+                }
+                name = sb.toString();
+            } else if (c=='{' || c=='[') {
+                if (depth==1) header = JSON_RESPONSE_HEADER.equals(name);
+                depth++;
+                name = null;
+            } else if (c=='}' || c==']') {
+                depth--;
+                // the response header is over
+                if (header && depth==1) return false;
+                name = null;
+            } else if (c==':' && header && depth==2 && PARTIAL_RESULTS.equals(name)) {
+                return json.startsWith("true", skipWhitespace(json, i+1));
+            } else if (c==',') {
+                name = null;
+            }
+        }
+        return false;
+        
+    }
+    
+    private static int skipWhitespace(final String s, int i) {
+        while (i<s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        return i;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recover(final SearchInput input) throws Exception {
+        searchService.recover(input);
+    }
+    
+    /**
+     * Clears the cache when the index is modified.
+     */
+    @Override
+    public void onApplicationEvent(final IndexUpdateEvent event) {
+        
+        if (LOG.isInfoEnabled()) LOG.info("Index updated by "+event.getSource().getClass().getSimpleName()+", clearing search cache");
+        synchronized (cache) {
+            invalidations++;
+            this.clear();
+        }
+        
+    }
+    
+    /**
+     * Removes all entries from the cache.
+     * Responses to requests that were already in progress will not be cached either.
+     */
+    @ManagedOperation(description="Removes all entries from the cache")
+    public void clear() {
+        
+        synchronized (cache) {
+            cache.clear();
+            size = 0;
+            generation++;
+        }
+        
+    }
+    
+    @ManagedAttribute(description="Number of requests served from the cache")
+    public long getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+    
+    @ManagedAttribute(description="Number of requests forwarded to the search service")
+    public long getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+    
+    @ManagedAttribute(description="Number of entries evicted to respect the cache bounds")
+    public long getEvictions() {
+        synchronized (cache) {
+            return evictions;
+        }
+    }
+    
+    @ManagedAttribute(description="Number of times the cache was cleared because the index was modified")
+    public long getInvalidations() {
+        synchronized (cache) {
+            return invalidations;
+        }
+    }
+    
+    @ManagedAttribute(description="Number of cached responses")
+    public int getEntries() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+    
+    @ManagedAttribute(description="Total size of the cached responses in bytes")
+    public long getSize() {
+        synchronized (cache) {
+            return size;
+        }
+    }
+    
+    /**
+     * Method to check whether a search would currently be served from the cache,
+     * without counting a hit or a miss.
+     * 
+     * @param input
+     * @param returnType
+     * @return
+     */
+    public boolean isCached(final SearchInput input, final SearchReturnType returnType) {
+        
+        if (maxEntries<=0) return false;
+        
+        final String key = getKey(input, returnType);
+        synchronized (cache) {
+            final Entry entry = cache.get(key);
+            return entry!=null && System.currentTimeMillis()-entry.created <= ttl;
+        }
+        
+    }
+    
+    /**
+     * Returns the cached response for the given key, or null if not cached or expired.
+     */
+    private byte[] get(final String key) {
+        
+        if (maxEntries<=0) return null;
+        
+        synchronized (cache) {
+            final Entry entry = cache.get(key);
+            if (entry!=null && System.currentTimeMillis()-entry.created <= ttl) {
+                hits++;
+                return entry.data;
+            }
+            if (entry!=null) {
+                cache.remove(key);
+                size -= entry.data.length;
+            }
+            misses++;
+            return null;
+        }
+        
+    }
+    
+    private long getGeneration() {
+        synchronized (cache) {
+            return generation;
+        }
+    }
+    
+    /**
+     * Stores a response in the cache, evicting the least recently used entries if necessary.
+     * The response is discarded if the cache was cleared after the request was started.
+     */
+    private void put(final String key, final byte[] data, final long generation) {
+        
+        if (maxEntries<=0) return;
+        
+        synchronized (cache) {
+            
+            if (generation!=this.generation) return;
+            
+            final Entry old = cache.put(key, new Entry(data));
+            if (old!=null) size -= old.data.length;
+            size += data.length;
+            
+            final Iterator<Map.Entry<String, Entry>> iter = cache.entrySet().iterator();
+            while ((cache.size()>maxEntries || size>maxSize) && iter.hasNext()) {
+                final Entry eldest = iter.next().getValue();
+                iter.remove();
+                size -= eldest.data.length;
+                evictions++;
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Method to build a canonical representation of the search input and requested format:
+     * constraint names, fields and shards are sorted, so that equivalent requests map to the same key.
+     * Note that the order of the facets and of the values of each constraint is preserved, 
+     * since it determines the content of the response.
+     * 
+     * @param input
+     * @param returnType
+     * @return
+     */
+    static String getKey(final SearchInput input, final SearchReturnType returnType) {
+        
+        final StringBuilder sb = new StringBuilder();
+        sb.append("returnType=").append(returnType.getMimeType())
+          .append("|format=").append(input.getFormat())
+          .append("|query=").append(input.getQuery())
+          .append("|offset=").append(input.getOffset())
+          .append("|limit=").append(input.getLimit())
+          .append("|distrib=").append(input.isDistrib())
+          .append("|sort=").append(input.isSort())
+          .append("|from=").append(input.getFrom())
+          .append("|to=").append(input.getTo())
+          .append("|cursor=").append(input.getCursor())
+          .append("|collapse=").append(input.getCollapse())
+          .append("|partial=").append(input.isPartialAllowed())
+          .append("|geo=").append(input.getGeospatialRangeConstraint())
+          .append("|time=").append(input.getTemporalRangeConstraint());
+        
+        // constraints: sorted by name
+        final Map<String, List<String>> constraints = new TreeMap<String, List<String>>(input.getConstraints());
+        for (final Map.Entry<String, List<String>> constraint : constraints.entrySet()) {
+            sb.append("|").append(constraint.getKey()).append("=").append(constraint.getValue());
+        }
+        
+        sb.append("|facets=").append(input.getFacets());
+        sb.append("|facetOptions=").append(input.getFacetOptions());
+        sb.append("|fields=").append(sorted(input.getFields()));
+        sb.append("|shards=").append(sorted(input.getShards()));
+        
+        return sb.toString();
+        
+    }
+    
+    private static List<String> sorted(final Iterable<String> values) {
+        final List<String> list = new ArrayList<String>();
+        for (final String value : values) list.add(value);
+        Collections.sort(list);
+        return list;
+    }
+    
+    /**
+     * A cached response.
+     */
+    private static class Entry {
+        
+        final byte[] data;
+        final long created = System.currentTimeMillis();
+        
+        Entry(final byte[] data) {
+            this.data = data;
+        }
+        
+    }
+
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+/**
+ * Circuit breaker guarding the distributed searches to a single Solr core.
+ * 
+ * The circuit is closed as long as distributed searches succeed. After a number of consecutive failures 
+ * the circuit opens, and distributed searches are not attempted until the open time has elapsed. 
+ * Then the circuit becomes half-open: a single trial search is allowed through, which either closes the circuit
+ * or opens it again for twice as long (up to a maximum open time).
+ */
+public class CircuitBreaker {
+    
+    public enum State { CLOSED, OPEN, HALF_OPEN };
+    
+    private final int maxFailures;
+    private final long openTime;
+    private final long maxOpenTime;
+    
+    /**
+     * State (guarded by this).
+     */
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long backoff;
+    private long openUntil = 0;
+    private boolean trial = false;
+    
+    /**
+     * Statistics (guarded by this).
+     */
+    private long opened = 0;
+    private long rejected = 0;
+    
+    /**
+     * @param maxFailures : number of consecutive failures that open the circuit
+     * @param openTime : initial time (in milliseconds) the circuit stays open
+     * @param maxOpenTime : maximum time (in milliseconds) the circuit stays open
+     */
+    public CircuitBreaker(final int maxFailures, final long openTime, final long maxOpenTime) {
+        this.maxFailures = maxFailures;
+        this.openTime = openTime;
+        this.maxOpenTime = maxOpenTime;
+        this.backoff = openTime;
+    }
+    
+    /**
+     * Method to check whether a request may be attempted.
+     * Note that if this method returns true, the outcome of the request must be recorded 
+     * with either {@link #recordSuccess()} or {@link #recordFailure()}.
+     */
+    public synchronized boolean allowRequest() {
+        
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis()>=openUntil) {
+                state = State.HALF_OPEN;
+                trial = true;
+                return true;
+            }
+            break;
+        case HALF_OPEN:
+            // only one trial request at a time
+            if (!trial) {
+                trial = true;
+                return true;
+            }
+            break;
+        }
+        rejected++;
+        return false;
+        
+    }
+    
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+        backoff = openTime;
+        trial = false;
+    }
+    
+    /**
+     * Method to record a request that failed for reasons unrelated to the guarded resource
+     * (for example, an invalid request).
+     */
+    public synchronized void recordIgnored() {
+        trial = false;
+    }
+    
+    public synchronized void recordFailure() {
+        
+        failures++;
+        if (state==State.HALF_OPEN) {
+            // trial failed: back off exponentially
+            backoff = Math.min(backoff*2, maxOpenTime);
+            open();
+        } else if (state==State.CLOSED && failures>=maxFailures) {
+            open();
+        }
+        
+    }
+    
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + backoff;
+        trial = false;
+        opened++;
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+    
+    /**
+     * @return : the number of times the circuit has been opened
+     */
+    public synchronized long getOpened() {
+        return opened;
+    }
+    
+    /**
+     * @return : the number of requests rejected while the circuit was open
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "state="+state+" consecutive failures="+failures+" opened="+opened+" rejected="+rejected
+              +(state!=State.CLOSED ? " open time="+backoff : "");
+    }
+
+}
@@ -0,0 +1,427 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.StringUtils;
+
+import esg.common.util.ESGFProperties;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchOutput;
+import esg.search.query.api.SearchReturnType;
+import esg.search.query.api.SearchService;
+
+/**
+ * Implementation of {@link SearchService} that coalesces identical concurrent searches (single-flight):
+ * while a search is in progress, other callers with the same canonical {@link SearchInput} and {@link SearchReturnType}
+ * (see {@link CachingSearchServiceImpl#getKey(SearchInput, SearchReturnType)}) wait for it and share its response,
+ * instead of sending their own request to the underlying {@link SearchService}.
+ * 
+ * A waiting caller executes its own search if the search in progress does not complete within the configured time,
+ * or if its streamed response is too large to be shared. If the search in progress fails because of the search service,
+ * all waiting callers fail with the same exception; if it fails because its own client went away or because it was interrupted,
+ * the waiting callers execute their own search. Contrary to a cache, a response is only shared with the callers 
+ * that arrived while it was in progress.
+ * 
+ * A streamed response is written to the client of the search in progress as it is received, and copied to be shared
+ * (up to the maximum size). As soon as a caller is waiting, the rest of the response is only copied, and written to that client 
+ * once complete, so that the waiting callers do not depend on the speed of that client.
+ * 
+ * The number of executed and coalesced searches are exposed through JMX.
+ */
+@ManagedResource(objectName="esg.search:type=SearchCoalescing,name=searchService", description="Coalescing of identical concurrent searches")
+public class CoalescingSearchServiceImpl implements SearchService {
+    
+    /**
+     * The underlying search service.
+     */
+    private final SearchService searchService;
+    
+    /**
+     * The parser used to convert shared Solr/XML responses into objects.
+     */
+    private final SolrXmlParser xmlParser;
+    
+    /**
+     * Searches in progress, by canonical key.
+     */
+    private final ConcurrentMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+    
+    /**
+     * Configuration.
+     */
+    private long maxWait = QueryParameters.DEFAULT_COALESCING_MAX_WAIT;
+    private int maxSize = QueryParameters.DEFAULT_COALESCING_MAX_SIZE;
+    
+    /**
+     * Statistics.
+     */
+    private final AtomicLong executed = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong oversized = new AtomicLong(0);
+    
+    private final static String UTF8 = "UTF-8";
+    
+    // initial size of the copy of a streamed response
+    private final static int BUFFER_SIZE = 8192;
+    
+    private static final Log LOG = LogFactory.getLog(CoalescingSearchServiceImpl.class);
+    
+    /**
+     * Constructor with mandatory arguments.
+     * 
+     * @param searchService : the search service whose concurrent searches are coalesced
+     * @param props : properties file to set the maximum wait time and response size
+     */
+    public CoalescingSearchServiceImpl(final SearchService searchService, final ESGFProperties props) {
+        
+        this.searchService = searchService;
+        this.xmlParser = SolrXmlParser.getInstance(props);
+        
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_COALESCING_MAX_WAIT)))
+            this.maxWait = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_COALESCING_MAX_WAIT));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_COALESCING_MAX_SIZE)))
+            this.maxSize = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_COALESCING_MAX_SIZE));
+        
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Search Coalescing max wait="+this.maxWait);
+            LOG.info("Search Coalescing max size="+this.maxSize);
+        }
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The results are parsed from the (possibly shared) Solr/XML response.
+     */
+    @Override
+    public SearchOutput search(final SearchInput input) throws Exception {
+        
+        final String response = this.query(input, SearchReturnType.SOLR_XML);
+        return xmlParser.parse(response, input);
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String query(final SearchInput input, final SearchReturnType returnType) throws Exception {
+        
+        if (maxWait<=0) return searchService.query(input, returnType);
+        
+        final String key = CachingSearchServiceImpl.getKey(input, returnType);
+        final Call call = new Call();
+        final Call inProgress = calls.putIfAbsent(key, call);
+        
+        if (inProgress==null) {
+            // execute the search, and share the response
+            executed.incrementAndGet();
+            try {
+                final String response = searchService.query(input, returnType);
+                call.response = response;
+                call.skippedShards = input.getSkippedShards();
+                return response;
+            } catch (Exception e) {
+                if (isShareable(e, false)) call.error = e;
+                else call.failed = true;
+                throw e;
+            } finally {
+                call.complete(key);
+            }
+        }
+        
+        // wait for the search in progress, or execute this search if it cannot be shared
+        if (this.await(inProgress, input)) return inProgress.getResponse();
+        return searchService.query(input, returnType);
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The response is copied while it is streamed to the output stream, so that it can be shared
+     * unless it grows beyond the maximum size.
+     */
+    @Override
+    public void query(final SearchInput input, final SearchReturnType returnType, final OutputStream out) throws Exception {
+        
+        if (maxWait<=0) {
+            searchService.query(input, returnType, out);
+            return;
+        }
+        
+        final String key = CachingSearchServiceImpl.getKey(input, returnType);
+        final Call call = new Call();
+        final Call inProgress = calls.putIfAbsent(key, call);
+        
+        if (inProgress==null) {
+            // execute the search, and share the response
+            executed.incrementAndGet();
+            final SharingOutputStream sharing = new SharingOutputStream(out, call, key);
+            try {
+                searchService.query(input, returnType, sharing);
+                if (!call.isComplete()) {
+                    call.data = sharing.getData();
+                    call.skippedShards = input.getSkippedShards();
+                }
+            } catch (Exception e) {
+                if (!call.isComplete()) {
+                    if (isShareable(e, sharing.clientError)) call.error = e;
+                    else call.failed = true;
+                }
+                throw e;
+            } finally {
+                call.complete(key);
+            }
+            
+            // the response was shared as soon as it was complete, now send the rest of it to this client
+            sharing.finish();
+            return;
+        }
+        
+        // wait for the search in progress, or execute this search if it cannot be shared
+        if (this.await(inProgress, input)) {
+            out.write(inProgress.getData());
+        } else {
+            searchService.query(input, returnType, out);
+        }
+        
+    }
+    
+    /**
+     * Method to decide whether the exception of a search in progress can be shared with the waiting searches:
+     * only errors of the search service are shared, not the errors of the client of the search in progress
+     * (e.g. a client that went away) or the interruption of its thread (e.g. a search cancelled on timeout).
+     */
+    private static boolean isShareable(final Exception e, final boolean clientError) {
+        return !clientError && !(e instanceof InterruptedException) && !Thread.currentThread().isInterrupted();
+    }
+    
+    /**
+     * Method to wait for a search in progress.
+     * 
+     * @param call : the search in progress
+     * @param input : the input of the waiting search, which is updated with the shards skipped by the search in progress
+     * @return true if the response of the search in progress can be shared, 
+     *         false if the waiting search must be executed (because of a timeout, or a response too large to be shared)
+     * @throws Exception : the exception thrown by the search in progress
+     */
+    private boolean await(final Call call, final SearchInput input) throws Exception {
+        
+        call.waiting = true;
+        if (!call.done.await(maxWait, TimeUnit.MILLISECONDS)) {
+            timeouts.incrementAndGet();
+            if (LOG.isDebugEnabled()) LOG.debug("Identical search still in progress after "+maxWait+" ms, executing search");
+            return false;
+        }
+        
+        if (call.error!=null) throw call.error;
+        
+        if (call.response==null && call.data==null) {
+            if (!call.failed) oversized.incrementAndGet();
+            return false;
+        }
+        
+        input.setSkippedShards(call.skippedShards);
+        coalesced.incrementAndGet();
+        return true;
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recover(final SearchInput input) throws Exception {
+        searchService.recover(input);
+    }
+    
+    @ManagedAttribute(description="Number of searches in progress")
+    public int getInProgress() {
+        return calls.size();
+    }
+    
+    @ManagedAttribute(description="Number of searches forwarded to the search service")
+    public long getExecuted() {
+        return executed.get();
+    }
+    
+    @ManagedAttribute(description="Number of searches that shared the response of an identical search in progress")
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+    
+    @ManagedAttribute(description="Number of searches executed because the identical search in progress did not complete in time")
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+    
+    @ManagedAttribute(description="Number of searches executed because the response of the identical search was too large to be shared")
+    public long getOversized() {
+        return oversized.get();
+    }
+    
+    /**
+     * A search in progress, and its outcome once completed: 
+     * either a response (as a string, or as the bytes of a streamed response), or an exception.
+     * The outcome is published to the waiting threads by the latch.
+     */
+    private class Call {
+        
+        final CountDownLatch done = new CountDownLatch(1);
+        String response;
+        byte[] data;
+        Set<String> skippedShards;
+        Exception error;
+        // the search failed, but not because of the search service
+        boolean failed;
+        // a search is waiting for this one
+        volatile boolean waiting;
+        
+        void complete(final String key) {
+            calls.remove(key, this);
+            done.countDown();
+        }
+        
+        boolean isComplete() {
+            return done.getCount()==0;
+        }
+        
+        String getResponse() throws Exception {
+            return (response!=null ? response : new String(data, UTF8));
+        }
+        
+        byte[] getData() throws Exception {
+            return (data!=null ? data : response.getBytes(UTF8));
+        }
+        
+    }
+    
+    /**
+     * Output stream of a streamed search in progress: the response is written to the client as it is received, 
+     * and copied to be shared once complete. As soon as a search is waiting, the response is only copied, 
+     * and the rest of it is written to the client once complete (see {@link #finish()}).
+     * If the response grows beyond the maximum size, it is not shared: the waiting searches are released immediately 
+     * (to execute their own search), and the response is streamed to the client from then on.
+     */
+    private class SharingOutputStream extends OutputStream {
+        
+        private final OutputStream out;
+        private final Call call;
+        private final String key;
+        // the copy of the response (null if too large to be shared), and the number of its bytes written to the client
+        private byte[] copy = new byte[Math.min(BUFFER_SIZE, maxSize)];
+        private int size = 0;
+        private int sent = 0;
+        // the search is complete
+        private boolean finished = false;
+        // an error occurred while writing to the client
+        boolean clientError = false;
+        
+        SharingOutputStream(final OutputStream out, final Call call, final String key) {
+            this.out = out;
+            this.call = call;
+            this.key = key;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte)b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (copy!=null) {
+                if (size+len<=maxSize) {
+                    if (size+len>copy.length) copy = Arrays.copyOf(copy, Math.min(Math.max(copy.length*2, size+len), maxSize));
+                    System.arraycopy(b, off, copy, size, len);
+                    size += len;
+                    if (!call.waiting) send();
+                    return;
+                }
+                // too large to be shared
+                call.complete(key);
+                send();
+                copy = null;
+            }
+            writeOut(b, off, len);
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (copy==null || !call.waiting || finished) {
+                send();
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    clientError = true;
+                    throw e;
+                }
+            }
+        }
+        
+        /**
+         * Method to write the rest of the response to the client, once the search is complete.
+         */
+        void finish() throws IOException {
+            finished = true;
+            this.flush();
+        }
+        
+        /**
+         * @return the complete response, or null if it is too large to be shared
+         */
+        byte[] getData() {
+            return (copy!=null ? Arrays.copyOf(copy, size) : null);
+        }
+        
+        private void send() throws IOException {
+            if (copy!=null && sent<size) {
+                writeOut(copy, sent, size-sent);
+                sent = size;
+            }
+        }
+        
+        private void writeOut(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                clientError = true;
+                throw e;
+            }
+        }
+        
+    }
+
+}
@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.StringUtils;
+
+import esg.common.util.ESGFProperties;
+import esg.search.query.api.Facet;
+import esg.search.query.api.FacetProfile;
+import esg.search.query.api.FacetSuggestService;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchOutput;
+import esg.search.query.api.SearchService;
+import esg.search.utils.DaemonThreadFactory;
+
+/**
+ * Implementation of {@link FacetSuggestService} backed by an in-memory dictionary of the facet values and their counts.
+ * 
+ * The dictionary is loaded in a background thread at regular intervals, with a single distributed search 
+ * for all the values of the configured facets (by default, all the facets of the {@link FacetProfile}), 
+ * so that lookups never query Solr. Each facet is kept as an immutable array of values sorted by lower case value,
+ * in which the values starting with a prefix are found by binary search; the dictionary is replaced as a whole after each reload,
+ * and the previous one is kept if the reload fails. Until the first reload completes, lookups return no values.
+ */
+@ManagedResource(objectName="esg.search:type=FacetSuggest,name=facetSuggestService", description="Typeahead of facet values")
+public class FacetSuggestServiceImpl implements FacetSuggestService {
+    
+    /**
+     * The search service used to load the facet values.
+     */
+    private final SearchService searchService;
+    
+    /**
+     * The facet profile listing all the available facets.
+     */
+    private final FacetProfile facetProfile;
+    
+    /**
+     * Configuration.
+     */
+    private List<String> facets = Collections.emptyList();
+    private long interval = QueryParameters.DEFAULT_SUGGEST_INTERVAL;
+    
+    /**
+     * Latest dictionary of the facet values, by facet (unmodifiable).
+     */
+    private volatile Map<String, FacetValues> dictionary = Collections.emptyMap();
+    
+    private volatile long lastLoadTime = 0;
+    private final AtomicLong lookups = new AtomicLong(0);
+    
+    private ScheduledExecutorService scheduler = null;
+    
+    private static final Log LOG = LogFactory.getLog(FacetSuggestServiceImpl.class);
+    
+    /**
+     * Constructor with mandatory arguments.
+     * 
+     * @param searchService : the search service used to load the facet values
+     * @param facetProfile : the facet profile listing all the available facets
+     * @param props : properties file to set the facets and the reload interval
+     */
+    public FacetSuggestServiceImpl(final SearchService searchService, final FacetProfile facetProfile, final ESGFProperties props) {
+        
+        this.searchService = searchService;
+        this.facetProfile = facetProfile;
+        
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SUGGEST_FACETS))) {
+            this.facets = new ArrayList<String>();
+            for (final String facet : StringUtils.commaDelimitedListToStringArray(props.getProperty(QueryParameters.PROPERTY_SUGGEST_FACETS))) {
+                if (StringUtils.hasText(facet)) this.facets.add(facet.trim());
+            }
+        }
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SUGGEST_INTERVAL)))
+            this.interval = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_SUGGEST_INTERVAL));
+        
+        if (LOG.isInfoEnabled()) LOG.info("Facet suggest facets="+(this.facets.isEmpty() ? "all" : this.facets)+" interval="+this.interval);
+        
+    }
+    
+    /**
+     * Method to start loading the facet values in the background.
+     */
+    public void start() {
+        
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("facet-suggest"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                load();
+            }
+        }, 0, this.interval, TimeUnit.MILLISECONDS);
+        
+    }
+    
+    /**
+     * Method to stop loading the facet values.
+     */
+    public void stop() {
+        if (this.scheduler!=null) this.scheduler.shutdownNow();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Facet> suggest(final String facet, final String prefix, final int limit) {
+        
+        lookups.incrementAndGet();
+        final FacetValues values = this.dictionary.get(facet);
+        if (values==null || limit<=0) return Collections.emptyList();
+        return values.suggest(prefix==null ? "" : prefix.toLowerCase(Locale.ROOT), limit);
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getFacets() {
+        return this.dictionary.keySet();
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isLoaded() {
+        return this.lastLoadTime>0;
+    }
+    
+    /**
+     * Method to load the values of all facets with a single search, and replace the dictionary.
+     * Any error is logged, so that the scheduled loading is never interrupted.
+     */
+    @ManagedOperation(description="Reloads the facet values")
+    public void load() {
+        
+        try {
+            
+            final List<String> _facets = new ArrayList<String>();
+            for (final String facet : this.facetProfile.getTopLevelFacets().keySet()) {
+                if (this.facets.isEmpty() || this.facets.contains(facet)) _facets.add(facet);
+            }
+            if (_facets.isEmpty()) return;
+            
+            // all values of all facets, no records
+            final long startTime = System.currentTimeMillis();
+            final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+            input.setLimit(0);
+            input.setFacets(_facets);
+            input.setFacetOption(QueryParameters.FACET_ALL, QueryParameters.FACET_OPTION_LIMIT, "-1");
+            final SearchOutput output = this.searchService.search(input);
+            
+            final Map<String, FacetValues> _dictionary = new HashMap<String, FacetValues>();
+            int n = 0;
+            for (final Map.Entry<String, Facet> entry : output.getFacets().entrySet()) {
+                final FacetValues values = new FacetValues(entry.getValue().getSubFacets());
+                _dictionary.put(entry.getKey(), values);
+                n += values.size();
+            }
+            this.dictionary = Collections.unmodifiableMap(_dictionary);
+            this.lastLoadTime = System.currentTimeMillis();
+            
+            if (LOG.isInfoEnabled()) LOG.info("Loaded "+n+" values of "+_dictionary.size()+" facets in "+(lastLoadTime-startTime)+" ms"
+                                              +(input.getSkippedShards().isEmpty() ? "" : ", skipped shards="+input.getSkippedShards()));
+            
+        } catch(Exception e) {
+            if (LOG.isWarnEnabled()) LOG.warn("Error loading facet values: "+e.getMessage());
+        }
+        
+    }
+    
+    @ManagedAttribute(description="Number of values of each facet")
+    public String[] getFacetSizes() {
+        
+        final List<String> sizes = new ArrayList<String>();
+        for (final Map.Entry<String, FacetValues> entry : this.dictionary.entrySet()) {
+            sizes.add(entry.getKey()+": "+entry.getValue().size());
+        }
+        Collections.sort(sizes);
+        return sizes.toArray(new String[sizes.size()]);
+        
+    }
+    
+    @ManagedAttribute(description="Time of the last successful load of the facet values, in milliseconds since the epoch")
+    public long getLastLoadTime() {
+        return this.lastLoadTime;
+    }
+    
+    @ManagedAttribute(description="Number of lookups")
+    public long getLookups() {
+        return this.lookups.get();
+    }
+    
+    /**
+     * The values of a single facet, sorted by lower case value (immutable).
+     */
+    private static class FacetValues {
+        
+        private final String[] keys;
+        private final String[] values;
+        private final int[] counts;
+        
+        FacetValues(final List<Facet> subFacets) {
+            
+            final Facet[] _subFacets = subFacets.toArray(new Facet[subFacets.size()]);
+            Arrays.sort(_subFacets, new Comparator<Facet>() {
+                @Override
+                public int compare(final Facet facet1, final Facet facet2) {
+                    final int c = facet1.getKey().toLowerCase(Locale.ROOT).compareTo(facet2.getKey().toLowerCase(Locale.ROOT));
+                    return (c!=0 ? c : facet1.getKey().compareTo(facet2.getKey()));
+                }
+            });
+            
+            this.keys = new String[_subFacets.length];
+            this.values = new String[_subFacets.length];
+            this.counts = new int[_subFacets.length];
+            for (int i=0; i<_subFacets.length; i++) {
+                this.keys[i] = _subFacets[i].getKey().toLowerCase(Locale.ROOT);
+                this.values[i] = _subFacets[i].getKey();
+                this.counts[i] = _subFacets[i].getCounts();
+            }
+            
+        }
+        
+        /**
+         * Method to return the values starting with a (lower case) prefix, by decreasing count.
+         */
+        List<Facet> suggest(final String prefix, final int limit) {
+            
+            // first value >= prefix
+            // (the lower case keys may repeat, and the binary search may find any of the keys equal to the prefix)
+            int from = Arrays.binarySearch(keys, prefix);
+            if (from<0) from = -from-1;
+            while (from>0 && keys[from-1].equals(prefix)) from--;
+            int to = from;
+            while (to<keys.length && keys[to].startsWith(prefix)) to++;
+            
+            // top values by count: bounded heap whose head is the lowest ranking value
+            final Comparator<Integer> byCount = new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer i1, final Integer i2) {
+                    return (counts[i2]!=counts[i1] ? (counts[i2]>counts[i1] ? 1 : -1) : i1.compareTo(i2));
+                }
+            };
+            final PriorityQueue<Integer> top = new PriorityQueue<Integer>(limit+1, Collections.reverseOrder(byCount));
+            for (int i=from; i<to; i++) {
+                top.add(i);
+                if (top.size()>limit) top.poll();
+            }
+            final List<Integer> matches = new ArrayList<Integer>(top);
+            Collections.sort(matches, byCount);
+            
+            final List<Facet> suggestions = new ArrayList<Facet>();
+            for (final int i : matches) {
+                final Facet facet = new FacetImpl(values[i], values[i], "");
+                facet.setCounts(counts[i]);
+                suggestions.add(facet);
+            }
+            return suggestions;
+            
+        }
+        
+        int size() {
+            return keys.length;
+        }
+        
+    }
+
+}
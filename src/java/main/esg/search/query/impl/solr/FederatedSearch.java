@@ -0,0 +1,461 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.springframework.util.StringUtils;
+
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.utils.DaemonThreadFactory;
+import esg.search.utils.HttpClient;
+import esg.search.utils.Serializer;
+import esg.search.utils.XmlParser;
+
+/**
+ * Class that executes a distributed search within this application, as opposed to delegating it to Solr:
+ * each shard is queried in parallel (non-distributed), and the responses that are received before the deadline are merged
+ * into a single Solr/XML document, so that one slow shard cannot hold up the whole search.
+ * 
+ * The records are merged by the same sort key as the Solr query (timestamp, id, or score), the total counts and the facet counts
+ * are added up, and the status of each shard (number of records and elapsed time, or error) is reported 
+ * in a "shards.info" section, as Solr does. If partial results are allowed, shards that fail or do not answer in time 
+ * are recorded as skipped in the {@link SearchInput}, and flagged in the response header as "partialResults"; 
+ * otherwise, as if no shard answers, the search fails. The queries of the shards that did not answer in time are aborted.
+ * 
+ * Note that, as with Solr distributed search, each shard only returns its top facet values, 
+ * so the merged counts of the less frequent facet values may be incomplete.
+ * 
+ * Collapsed searches are collapsed by each shard, then again across shards, keeping the highest ranking record of each group 
+ * by the same rules as the shards (see {@link SolrUrlBuilder#getCollapseFunction(String, String)}). Note that the groups 
+ * are only collapsed across shards within the records returned by each shard (the first offset+limit), so:
+ * <ul>
+ *   <li>the total count is only reduced by the number of records removed from these records, and remains an upper bound</li>
+ *   <li>the facet counts are not reduced, and still include the records of the same group held by different shards</li>
+ *   <li>each group is represented by the highest ranking of these records only, so its head (and its position in the page) 
+ *       may differ from a search of a single index holding all the records</li>
+ * </ul>
+ */
+class FederatedSearch {
+    
+    private final static String ELEMENT_RESPONSE = "response";
+    private final static String ELEMENT_RESPONSE_HEADER = "responseHeader";
+    private final static String ELEMENT_SHARDS_INFO = "shards.info";
+    private final static String ELEMENT_LONG = "long";
+    private final static String ATTRIBUTE_MAX_SCORE = "maxScore";
+    private final static String FIELD_SCORE = "score";
+    
+    /**
+     * Threads that query the shards.
+     */
+    private final ThreadPoolExecutor executor;
+    
+    /**
+     * Maximum time in milliseconds to wait for the shards.
+     */
+    private final long timeout;
+    
+    /**
+     * Data node preferred as head of the collapsed groups (empty for none).
+     */
+    private final String collapseDataNode;
+    
+    private static final Log LOG = LogFactory.getLog(FederatedSearch.class);
+    
+    /**
+     * @param threads : maximum number of shards queried concurrently, by all searches
+     * @param timeout : maximum time in milliseconds to wait for the shards
+     * @param collapseDataNode : data node preferred as head of the collapsed groups, or empty for none
+     */
+    FederatedSearch(final int threads, final long timeout, final String collapseDataNode) {
+        
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+                                               new LinkedBlockingQueue<Runnable>(),
+                                               new DaemonThreadFactory("federation"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeout = timeout;
+        this.collapseDataNode = collapseDataNode;
+        
+    }
+    
+    /**
+     * Method to execute a federated search.
+     * 
+     * @param shards : the shards to query, as <host>:<port>/solr
+     * @param core : the Solr core to query on each shard
+     * @param queryString : the non-distributed query string for the first offset+limit records (see {@link SolrUrlBuilder#buildShardQueryString()})
+     * @param input : the search input, updated with the shards that did not answer
+     * @param connectionTimeout : HTTP connection timeout for each shard
+     * @param readTimeout : HTTP read timeout for each shard (at most the federation timeout)
+     * @param partial : true to return partial results if some shards fail or do not answer in time, false to fail
+     * @return the merged Solr/XML document
+     * @throws Exception if no shard answered, or if a shard did not answer and partial results are not allowed
+     */
+    String query(final Collection<String> shards, final String core, final String queryString, final SearchInput input,
+                 final int connectionTimeout, final int readTimeout, final boolean partial) throws Exception {
+        
+        final long startTime = System.currentTimeMillis();
+        final long deadline = startTime + timeout;
+        final int _readTimeout = (int)(readTimeout>0 ? Math.min(readTimeout, timeout) : timeout);
+        
+        // query all shards in parallel
+        final Map<String, ShardQuery> queries = new LinkedHashMap<String, ShardQuery>();
+        for (final String shard : shards) {
+            final ShardQuery query = new ShardQuery(new URL("http://"+shard+"/"+core+"/select/"), queryString, connectionTimeout, _readTimeout);
+            query.future = executor.submit(query);
+            queries.put(shard, query);
+        }
+        
+        // collect the responses received before the deadline
+        final List<ShardResponse> responses = new ArrayList<ShardResponse>();
+        final LinkedHashSet<String> skippedShards = new LinkedHashSet<String>(input.getSkippedShards());
+        final Element shardsInfo = new Element(SolrXmlPars.ELEMENT_LST).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, ELEMENT_SHARDS_INFO);
+        try {
+            for (final Map.Entry<String, ShardQuery> entry : queries.entrySet()) {
+                
+                final String shard = entry.getKey();
+                final Element shardInfo = new Element(SolrXmlPars.ELEMENT_LST).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, shard+"/"+core);
+                try {
+                    final String xml = entry.getValue().future.get(Math.max(deadline-System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                    final ShardResponse response = new ShardResponse(new XmlParser(false).parseString(xml));
+                    responses.add(response);
+                    shardInfo.addContent(element(ELEMENT_LONG, SolrXmlPars.ATTRIBUTE_NUM_FOUND, String.valueOf(response.numFound)));
+                    
+                } catch (Exception e) {
+                    entry.getValue().abort();
+                    final String error = (e instanceof TimeoutException ? "No response within "+timeout+" milliseconds" 
+                                        : e instanceof ExecutionException ? String.valueOf(e.getCause().getMessage()) 
+                                        : String.valueOf(e.getMessage()));
+                    if (!partial) throw new Exception("Federated search: shard="+shard+" failed: "+error);
+                    skippedShards.add(shard);
+                    if (LOG.isWarnEnabled()) LOG.warn("Federated search: shard="+shard+" skipped: "+error);
+                    shardInfo.addContent(element(SolrXmlPars.ELEMENT_STR, "error", error));
+                }
+                shardInfo.addContent(element(ELEMENT_LONG, "time", String.valueOf(System.currentTimeMillis()-startTime)));
+                shardsInfo.addContent(shardInfo);
+                
+            }
+        } finally {
+            // release the threads and connections of the shards that have not answered (if the search failed)
+            for (final ShardQuery query : queries.values()) {
+                if (!query.future.isDone()) query.abort();
+            }
+        }
+        
+        if (responses.isEmpty()) throw new Exception("Federated search: no shard answered out of "+shards.size());
+        input.setSkippedShards(skippedShards);
+        
+        final Document document = this.merge(responses, input, !skippedShards.isEmpty(), shardsInfo, System.currentTimeMillis()-startTime);
+        return Serializer.JDOMtoString(document);
+        
+    }
+    
+    /**
+     * Method to merge the shard responses into a single Solr/XML document.
+     */
+    private Document merge(final List<ShardResponse> responses, final SearchInput input, final boolean partial, 
+                           final Element shardsInfo, final long elapsedTime) {
+        
+        // records: merged by sort key, then paged
+        long numFound = 0;
+        float maxScore = 0;
+        final List<Element> docs = new ArrayList<Element>();
+        boolean facets = false;
+        final Map<String, Map<String, Long>> facetCounts = new LinkedHashMap<String, Map<String, Long>>();
+        for (final ShardResponse response : responses) {
+            numFound += response.numFound;
+            maxScore = Math.max(maxScore, response.maxScore);
+            docs.addAll(response.docs);
+            facets = facets || response.facetFields!=null;
+            if (response.facetFields!=null) addFacetCounts(response.facetFields, facetCounts);
+        }
+        if (StringUtils.hasText(input.getCollapse())) numFound -= this.collapse(docs, input);
+        Collections.sort(docs, getComparator(input));
+        final int from = Math.min(input.getOffset(), docs.size());
+        final int to = Math.min(input.getOffset()+input.getLimit(), docs.size());
+        
+        final Element root = new Element(ELEMENT_RESPONSE);
+        
+        // <lst name="responseHeader"><int name="status">0</int><int name="QTime">...</int><bool name="partialResults">true</bool></lst>
+        final Element header = new Element(SolrXmlPars.ELEMENT_LST).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, ELEMENT_RESPONSE_HEADER);
+        header.addContent(element(SolrXmlPars.ELEMENT_INT, "status", "0"));
+        header.addContent(element(SolrXmlPars.ELEMENT_INT, "QTime", String.valueOf(elapsedTime)));
+        if (partial) header.addContent(element(SolrXmlPars.ELEMENT_BOOL, SolrXmlPars.ATTRIBUTE_VALUE_PARTIAL_RESULTS, "true"));
+        root.addContent(header);
+        
+        // <result name="response" numFound="..." start="..." maxScore="...">
+        final Element result = new Element(SolrXmlPars.ELEMENT_RESULT)
+                                   .setAttribute(SolrXmlPars.ATTRIBUTE_NAME, SolrXmlPars.ATTRIBUTE_VALUE_RESPONSE)
+                                   .setAttribute(SolrXmlPars.ATTRIBUTE_NUM_FOUND, String.valueOf(numFound))
+                                   .setAttribute(SolrXmlPars.ATTRIBUTE_START, String.valueOf(input.getOffset()))
+                                   .setAttribute(ATTRIBUTE_MAX_SCORE, String.valueOf(maxScore));
+        // (without the fields that were only returned to merge the shards)
+        final Set<String> mergeFields = SolrUrlBuilder.getMergeFields(input);
+        for (final Element doc : docs.subList(from, to)) {
+            for (final Element field : new ArrayList<Element>(doc.getChildren())) {
+                if (mergeFields.contains(field.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) field.detach();
+            }
+            result.addContent(doc.detach());
+        }
+        root.addContent(result);
+        
+        // <lst name="facet_counts"><lst name="facet_queries"/><lst name="facet_fields"><lst name="..."><int name="...">...</int>
+        if (facets) {
+            final Element facetFields = new Element(SolrXmlPars.ELEMENT_LST).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, SolrXmlPars.ELEMENT_FACET_FIELDS);
+            for (final Map.Entry<String, Map<String, Long>> facet : facetCounts.entrySet()) {
+                final Element facetField = new Element(SolrXmlPars.ELEMENT_LST).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, facet.getKey());
+                for (final Map.Entry<String, Long> count : page(facet.getKey(), facet.getValue(), input)) {
+                    facetField.addContent(element(SolrXmlPars.ELEMENT_INT, count.getKey(), String.valueOf(count.getValue())));
+                }
+                facetFields.addContent(facetField);
+            }
+            root.addContent(new Element(SolrXmlPars.ELEMENT_LST).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, SolrXmlPars.ELEMENT_FACET_COUNTS)
+                                .addContent(new Element(SolrXmlPars.ELEMENT_LST).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, "facet_queries"))
+                                .addContent(facetFields));
+        }
+        
+        root.addContent(shardsInfo);
+        return new Document(root);
+        
+    }
+    
+    /**
+     * Method to collapse the records of the same group returned by different shards, keeping the highest ranking record
+     * (or the first one in sort order if they rank the same).
+     * @return the number of records removed
+     */
+    private int collapse(final List<Element> docs, final SearchInput input) {
+        
+        final Comparator<Element> comparator = getComparator(input);
+        final Map<String, Element> heads = new LinkedHashMap<String, Element>();
+        final List<Element> collapsed = new ArrayList<Element>();
+        for (final Element doc : docs) {
+            final String key = getField(doc, input.getCollapse());
+            if (key.length()==0) {
+                // records without a value are not collapsed
+                collapsed.add(doc);
+            } else {
+                final Element head = heads.get(key);
+                if (head==null) {
+                    heads.put(key, doc);
+                } else {
+                    final int c = rank(doc, input.getCollapse()) - rank(head, input.getCollapse());
+                    if (c>0 || (c==0 && comparator.compare(doc, head)<0)) heads.put(key, doc);
+                }
+            }
+        }
+        collapsed.addAll(heads.values());
+        final int removed = docs.size() - collapsed.size();
+        
+        docs.clear();
+        docs.addAll(collapsed);
+        return removed;
+        
+    }
+    
+    /**
+     * Method to rank a record of a collapsed group, 
+     * as {@link SolrUrlBuilder#getCollapseFunction(String, String)} does on each shard.
+     */
+    private int rank(final Element doc, final String collapse) {
+        
+        int rank = 0;
+        if (collapse.equals(QueryParameters.FIELD_MASTER_ID) && Boolean.parseBoolean(getField(doc, QueryParameters.FIELD_LATEST))) rank += 4;
+        if (StringUtils.hasText(collapseDataNode) && collapseDataNode.equals(getField(doc, QueryParameters.FIELD_DATA_NODE))) rank += 2;
+        if (!Boolean.parseBoolean(getField(doc, QueryParameters.FIELD_REPLICA))) rank += 1;
+        return rank;
+        
+    }
+    
+    /**
+     * Method to return the order of the merged records, consistent with the sort order of the Solr queries
+     * (see {@link SolrUrlBuilder}): by descending timestamp then ascending id if requested, by ascending id for files, 
+     * otherwise by descending score. Records that compare equal are kept in shard order.
+     */
+    private static Comparator<Element> getComparator(final SearchInput input) {
+        
+        if (input.isSort()) {
+            return new Comparator<Element>() {
+                @Override
+                public int compare(final Element doc1, final Element doc2) {
+                    // ISO 8601 dates sort lexicographically, ties are broken by ascending id as on each shard
+                    final int c = getField(doc2, QueryParameters.FIELD_TIMESTAMP_).compareTo(getField(doc1, QueryParameters.FIELD_TIMESTAMP_));
+                    return (c!=0 ? c : getField(doc1, QueryParameters.FIELD_ID).compareTo(getField(doc2, QueryParameters.FIELD_ID)));
+                }
+            };
+        } else if (QueryParameters.TYPE_FILE.equals(input.getConstraint(QueryParameters.FIELD_TYPE))) {
+            return new Comparator<Element>() {
+                @Override
+                public int compare(final Element doc1, final Element doc2) {
+                    return getField(doc1, QueryParameters.FIELD_ID).compareTo(getField(doc2, QueryParameters.FIELD_ID));
+                }
+            };
+        } else {
+            return new Comparator<Element>() {
+                @Override
+                public int compare(final Element doc1, final Element doc2) {
+                    return Float.compare(getScore(doc2), getScore(doc1));
+                }
+            };
+        }
+        
+    }
+    
+    /**
+     * Method to return the value of a single-valued field of a record, or an empty string.
+     */
+    private static String getField(final Element doc, final String name) {
+        for (final Element field : doc.getChildren()) {
+            if (name.equals(field.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) return field.getTextNormalize();
+        }
+        return "";
+    }
+    
+    private static float getScore(final Element doc) {
+        final String score = getField(doc, FIELD_SCORE);
+        return (score.length()>0 ? Float.parseFloat(score) : 0);
+    }
+    
+    private static void addFacetCounts(final Element facetFields, final Map<String, Map<String, Long>> facetCounts) {
+        
+        for (final Element facetField : facetFields.getChildren()) {
+            final String facet = facetField.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME);
+            if (!facetCounts.containsKey(facet)) facetCounts.put(facet, new LinkedHashMap<String, Long>());
+            final Map<String, Long> counts = facetCounts.get(facet);
+            for (final Element count : facetField.getChildren()) {
+                final String value = count.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME);
+                final Long previous = counts.get(value);
+                counts.put(value, (previous!=null ? previous : 0) + Long.parseLong(count.getTextTrim()));
+            }
+        }
+        
+    }
+    
+    /**
+     * Method to sort the merged values of a facet (by index order, unless sorted by count, as configured in Solr), 
+     * and to return the requested page of values (all values if no limit is requested, as configured in Solr).
+     */
+    private static List<Map.Entry<String, Long>> page(final String facet, final Map<String, Long> counts, final SearchInput input) {
+        
+        final List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(counts.entrySet());
+        final String sort = input.getFacetOption(facet, QueryParameters.FACET_OPTION_SORT);
+        final boolean index = QueryParameters.FACET_SORT_INDEX.equals(sort!=null ? sort : SolrUrlBuilder.SOLR_FACET_SORT);
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(final Map.Entry<String, Long> count1, final Map.Entry<String, Long> count2) {
+                final int c = (index ? 0 : count2.getValue().compareTo(count1.getValue()));
+                return (c!=0 ? c : count1.getKey().compareTo(count2.getKey()));
+            }
+        });
+        
+        final String offset = input.getFacetOption(facet, QueryParameters.FACET_OPTION_OFFSET);
+        final String limit = input.getFacetOption(facet, QueryParameters.FACET_OPTION_LIMIT);
+        final int from = Math.min(offset!=null ? Integer.parseInt(offset) : 0, entries.size());
+        final int _limit = (limit!=null ? Integer.parseInt(limit) : SolrUrlBuilder.SOLR_FACET_LIMIT);
+        final int to = (_limit>=0 ? Math.min(from+_limit, entries.size()) : entries.size());
+        return entries.subList(from, to);
+        
+    }
+    
+    private static Element element(final String type, final String name, final String value) {
+        return new Element(type).setAttribute(SolrXmlPars.ATTRIBUTE_NAME, name).setText(value);
+    }
+    
+    /**
+     * The query of a single shard, which can be aborted from another thread: as a blocking socket read cannot be interrupted,
+     * its connection is shut down, so that a shard that does not answer does not hold a thread until its read timeout.
+     */
+    private static class ShardQuery implements Callable<String> {
+        
+        private final HttpClient httpClient = new HttpClient();
+        private final URL url;
+        private final String queryString;
+        Future<String> future;
+        
+        ShardQuery(final URL url, final String queryString, final int connectionTimeout, final int readTimeout) {
+            this.url = url;
+            this.queryString = queryString;
+            if (connectionTimeout>0) httpClient.setConnectionTimeout(connectionTimeout);
+            if (readTimeout>0) httpClient.setReadTimeout(readTimeout);
+        }
+        
+        @Override
+        public String call() throws Exception {
+            return httpClient.doPost(url, queryString, false);
+        }
+        
+        void abort() {
+            future.cancel(true);
+            httpClient.abort();
+        }
+        
+    }
+    
+    /**
+     * The relevant parts of the response of a shard.
+     */
+    private static class ShardResponse {
+        
+        final List<Element> docs = new ArrayList<Element>();
+        long numFound = 0;
+        float maxScore = 0;
+        Element facetFields = null;
+        
+        ShardResponse(final Document document) {
+            
+            for (final Element element : document.getRootElement().getChildren()) {
+                final String name = element.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME);
+                if (element.getName().equals(SolrXmlPars.ELEMENT_RESULT) && SolrXmlPars.ATTRIBUTE_VALUE_RESPONSE.equals(name)) {
+                    numFound = Long.parseLong(element.getAttributeValue(SolrXmlPars.ATTRIBUTE_NUM_FOUND));
+                    final String _maxScore = element.getAttributeValue(ATTRIBUTE_MAX_SCORE);
+                    if (_maxScore!=null) maxScore = Float.parseFloat(_maxScore);
+                    docs.addAll(element.getChildren(SolrXmlPars.ELEMENT_DOC));
+                } else if (SolrXmlPars.ELEMENT_FACET_COUNTS.equals(name)) {
+                    for (final Element child : element.getChildren(SolrXmlPars.ELEMENT_LST)) {
+                        if (SolrXmlPars.ELEMENT_FACET_FIELDS.equals(child.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) facetFields = child;
+                    }
+                }
+            }
+            
+        }
+        
+    }
+
+}
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import esg.search.utils.DaemonThreadFactory;
+import esg.search.utils.HttpClient;
+
+/**
+ * Class that executes Solr queries as hedged requests: if the primary Solr server has not answered within a delay
+ * (a percentile of the recent response times of the same core), a duplicate request is sent to a replica server
+ * that serves the same index, the first response is used and the other request is aborted.
+ * This cuts the tail latency caused by a server that is temporarily slow (garbage collection, commit, cache warming...),
+ * for only a small fraction of additional requests.
+ * 
+ * A request is considered answered as soon as the response status and headers are received 
+ * (Solr only starts writing the response once the query is executed), the body is then read from the winning server only.
+ * No duplicate request is sent until enough response times have been recorded for a core, 
+ * or if the primary server fails before the delay, or if all the hedging threads are busy.
+ */
+class HedgedSearch {
+    
+    /**
+     * Number of recent response times kept for each core, and minimum number before requests are hedged.
+     */
+    private final static int WINDOW_SIZE = 1000;
+    private final static int MIN_SAMPLES = 100;
+    
+    /**
+     * Maximum number of requests executed concurrently by the hedging threads.
+     */
+    private final static int MAX_THREADS = 100;
+    
+    /**
+     * The base URL of the primary Solr server, and of the replica servers.
+     */
+    private final String url;
+    private final List<String> replicaUrls;
+    
+    private final int percentile;
+    private final long minDelay;
+    
+    private final ThreadPoolExecutor executor;
+    
+    /**
+     * Recent response times of each core.
+     */
+    private final ConcurrentHashMap<String, ResponseTimes> responseTimes = new ConcurrentHashMap<String, ResponseTimes>();
+    
+    /**
+     * Index of the next replica server, to spread the duplicate requests.
+     */
+    private final AtomicInteger next = new AtomicInteger(0);
+    
+    /**
+     * Statistics.
+     */
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong hedged = new AtomicLong(0);
+    private final AtomicLong wins = new AtomicLong(0);
+    
+    private static final Log LOG = LogFactory.getLog(HedgedSearch.class);
+    
+    /**
+     * @param url : base URL of the primary Solr server
+     * @param replicaUrls : base URLs of the replica Solr servers
+     * @param percentile : percentile of the recent response times after which a duplicate request is sent
+     * @param minDelay : minimum delay in milliseconds before a duplicate request is sent
+     */
+    HedgedSearch(final URL url, final List<String> replicaUrls, final int percentile, final long minDelay) {
+        
+        this.url = url.toString();
+        this.replicaUrls = new ArrayList<String>(replicaUrls);
+        this.percentile = Math.max(Math.min(percentile, 100), 1);
+        this.minDelay = minDelay;
+        this.executor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, 
+                                               new SynchronousQueue<Runnable>(),
+                                               new DaemonThreadFactory("hedging"));
+        
+    }
+    
+    /**
+     * Method to execute a query, and return the response as a string.
+     * 
+     * @param selectUrl : the select URL on the primary server (see {@link SolrUrlBuilder#buildSelectUrl()})
+     * @param core : the Solr core
+     * @param queryString : the query string
+     * @param connectionTimeout : HTTP connection timeout
+     * @param readTimeout : HTTP read timeout
+     * @return
+     * @throws Exception
+     */
+    String query(final String selectUrl, final String core, final String queryString, 
+                 final int connectionTimeout, final int readTimeout) throws Exception {
+        
+        final Response response = this.execute(selectUrl, core, queryString, connectionTimeout, readTimeout, false);
+        try {
+            final StringBuilder sb = new StringBuilder();
+            final Reader reader = new InputStreamReader(response.in, "UTF-8");
+            final char[] buffer = new char[8192];
+            int n = 0;
+            while ((n = reader.read(buffer)) != -1) sb.append(buffer, 0, n);
+            return sb.toString();
+        } finally {
+            response.close();
+        }
+        
+    }
+    
+    /**
+     * Method to execute a query, and copy the response to an output stream.
+     * Note that if all servers fail, an exception is thrown before anything is written to the output stream.
+     */
+    void query(final String selectUrl, final String core, final String queryString, 
+               final int connectionTimeout, final int readTimeout, final OutputStream out) throws Exception {
+        
+        final Response response = this.execute(selectUrl, core, queryString, connectionTimeout, readTimeout, true);
+        try {
+            HttpClient.copy(response.in, out);
+        } finally {
+            response.close();
+        }
+        
+    }
+    
+    /**
+     * Method to send the request to the primary server, and to a replica server if the primary one is slow.
+     * @param streaming : true if the response is streamed to a client (see {@link HttpClient#setStreaming(boolean)})
+     * @return the first response received
+     */
+    private Response execute(final String selectUrl, final String core, final String queryString, 
+                             final int connectionTimeout, final int readTimeout, final boolean streaming) throws Exception {
+        
+        requests.incrementAndGet();
+        final ResponseTimes times = this.getResponseTimes(core);
+        final Request primary = new Request(selectUrl, queryString, connectionTimeout, readTimeout, streaming, times);
+        
+        final ExecutorCompletionService<Response> completionService = new ExecutorCompletionService<Response>(executor);
+        final Map<Future<Response>, Request> requests = new LinkedHashMap<Future<Response>, Request>();
+        try {
+            requests.put(completionService.submit(primary), primary);
+        } catch(RejectedExecutionException e) {
+            // all threads are busy: no hedging
+            return primary.call();
+        }
+        
+        Future<Response> done = null;
+        Request winner = null;
+        try {
+            
+            // wait for the primary server, up to the hedging delay
+            final long delay = times.getDelay();
+            done = (delay>=0 ? completionService.poll(delay, TimeUnit.MILLISECONDS) : completionService.take());
+            
+            // send a duplicate request to the next replica server
+            if (done==null) {
+                final String replicaUrl = replicaUrls.get((next.getAndIncrement() & Integer.MAX_VALUE) % replicaUrls.size());
+                final Request hedge = new Request(replicaUrl+selectUrl.substring(url.length()), queryString, 
+                                                  connectionTimeout, readTimeout, streaming, times);
+                try {
+                    requests.put(completionService.submit(hedge), hedge);
+                    hedged.incrementAndGet();
+                    if (LOG.isDebugEnabled()) LOG.debug("No response within "+delay+" ms, hedging request to "+replicaUrl);
+                } catch(RejectedExecutionException e) {
+                    // all threads are busy: wait for the primary server
+                }
+            }
+            
+            // use the first successful response
+            Exception error = null;
+            for (int i=0; i<requests.size(); i++) {
+                if (done==null) done = completionService.take();
+                try {
+                    final Response response = done.get();
+                    winner = requests.get(done);
+                    if (winner!=primary) wins.incrementAndGet();
+                    return response;
+                } catch(ExecutionException e) {
+                    error = (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+                    done = null;
+                }
+            }
+            throw error;
+            
+        } finally {
+            // abort the other request
+            for (final Map.Entry<Future<Response>, Request> entry : requests.entrySet()) {
+                if (entry.getValue()!=winner) {
+                    entry.getKey().cancel(true);
+                    entry.getValue().abort();
+                }
+            }
+        }
+        
+    }
+    
+    private ResponseTimes getResponseTimes(final String core) {
+        
+        ResponseTimes times = responseTimes.get(core);
+        if (times==null) {
+            responseTimes.putIfAbsent(core, new ResponseTimes());
+            times = responseTimes.get(core);
+        }
+        return times;
+        
+    }
+    
+    /**
+     * @return the current hedging delay of each core, in milliseconds (-1 if there are not enough response times yet)
+     */
+    String[] getDelays() {
+        
+        final List<String> delays = new ArrayList<String>();
+        for (final Map.Entry<String, ResponseTimes> entry : responseTimes.entrySet()) {
+            delays.add(entry.getKey()+": "+entry.getValue().getDelay());
+        }
+        return delays.toArray(new String[delays.size()]);
+        
+    }
+    
+    long getRequestCount() {
+        return requests.get();
+    }
+    
+    long getHedgedCount() {
+        return hedged.get();
+    }
+    
+    long getWinCount() {
+        return wins.get();
+    }
+    
+    /**
+     * A request to one server, executed by a hedging thread.
+     */
+    private static class Request implements Callable<Response> {
+        
+        private final String selectUrl;
+        private final String queryString;
+        private final ResponseTimes times;
+        private final HttpClient httpClient = new HttpClient();
+        
+        Request(final String selectUrl, final String queryString, final int connectionTimeout, final int readTimeout, 
+                final boolean streaming, final ResponseTimes times) {
+            this.selectUrl = selectUrl;
+            this.queryString = queryString;
+            this.times = times;
+            if (connectionTimeout>0) httpClient.setConnectionTimeout(connectionTimeout);
+            if (readTimeout>0) httpClient.setReadTimeout(readTimeout);
+            httpClient.setStreaming(streaming);
+        }
+        
+        @Override
+        public Response call() throws Exception {
+            final long startTime = System.currentTimeMillis();
+            final InputStream in = httpClient.doPostStream(new URL(selectUrl), queryString, false);
+            times.add(System.currentTimeMillis()-startTime);
+            return new Response(in, httpClient);
+        }
+        
+        void abort() {
+            httpClient.abort();
+        }
+        
+    }
+    
+    /**
+     * The response of the winning server.
+     */
+    private static class Response {
+        
+        private final InputStream in;
+        private final HttpClient httpClient;
+        
+        Response(final InputStream in, final HttpClient httpClient) {
+            this.in = in;
+            this.httpClient = httpClient;
+        }
+        
+        void close() {
+            try {
+                in.close();
+            } catch(Exception e) {
+                // the response could not be fully consumed: discard the connection
+                httpClient.abort();
+            }
+        }
+        
+    }
+    
+    /**
+     * The most recent response times of one core, and their percentile (updated periodically).
+     */
+    private class ResponseTimes {
+        
+        private final long[] times = new long[WINDOW_SIZE];
+        private long count = 0;
+        private volatile long delay = -1;
+        
+        synchronized void add(final long time) {
+            
+            times[(int)(count % WINDOW_SIZE)] = time;
+            count++;
+            if (count>=MIN_SAMPLES && count%MIN_SAMPLES==0) {
+                final long[] sorted = Arrays.copyOf(times, (int)Math.min(count, WINDOW_SIZE));
+                Arrays.sort(sorted);
+                final int index = (int)Math.ceil(sorted.length*percentile/100.0) - 1;
+                delay = Math.max(sorted[Math.max(index, 0)], minDelay);
+            }
+            
+        }
+        
+        long getDelay() {
+            return delay;
+        }
+        
+    }
+
+}
@@ -20,20 +20,33 @@ package esg.search.query.impl.solr;
 
 import java.io.Serializable;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jdom2.Document;
 import org.jdom2.Element;
 import org.jdom2.xpath.XPath;
+import org.springframework.util.StringUtils;
 
+import esg.common.util.ESGFProperties;
 import esg.search.query.api.Facet;
 import esg.search.query.api.FacetProfile;
 import esg.search.query.api.QueryParameters;
+import esg.search.utils.DaemonThreadFactory;
 import esg.search.utils.HttpClient;
 import esg.search.utils.XmlParser;
 import esg.security.registry.service.api.RegistryService;
@@ -41,13 +54,21 @@ import esg.security.registry.service.api.RegistryService;
 /**
  * Base implementation of {@link FacetProfile} that builds the list of available facets directly from a query to Solr,
  * using the Luke  query handler.
- * Note that at this time the list of available facets is NOT reloaded on demand every time a client requests it,
- * to avoid any performance issues.
+ * 
+ * The list of facets is loaded when the profile is started, and reloaded in a background thread at regular intervals,
+ * querying all shards in parallel: clients always get the latest loaded list without waiting
+ * (an immutable snapshot, replaced as a whole after each reload).
+ * If some shards cannot be queried, the facets previously found are kept.
+ * While no facet could be loaded at all (for example because the shards were down at startup),
+ * the list is reloaded after a short retry interval instead of waiting for the next regular reload.
  * 
  */
 public class LukeHandlerFacetProfileImpl implements FacetProfile, Serializable {
 	
-	private Map<String, Facet> facets = new LinkedHashMap<String, Facet>();
+	/**
+	 * Latest list of facets (unmodifiable).
+	 */
+	private volatile Map<String, Facet> facets = Collections.emptyMap();
 	
 	protected HttpClient httpClient = new HttpClient();
 
@@ -58,88 +79,232 @@ public class LukeHandlerFacetProfileImpl implements FacetProfile, Serializable {
 	private static final long serialVersionUID = 1L;
 
 	private final static String XPATH = "/response/lst[@name='fields']/lst";
-	private XPath xPath = null;
 	private RegistryService registryService = null;
 	private long reloadTimeInSecs = 0;
-	private long lastReloadTimeInMillisecs = 0;
+	private int readTimeout = 0;
+	private int retryInterval = QueryParameters.DEFAULT_LUKE_RETRY_INTERVAL;
+	private boolean retryScheduled = false;
+	
+	private volatile boolean started = false;
+	private transient ScheduledExecutorService scheduler = null;
+	private transient ThreadPoolExecutor executor = null;
 		
 	/**
-	 * Constructor that builds the list of facets from a properties file.
-	 * @param propertisFile
+	 * Constructor that builds the list of facets from the Luke handler of all shards listed by a registry,
+	 * with the default timeouts and number of threads.
+	 * @param registryService
+	 * @param reloadTimeInSecs : time between successive reloads of the list of facets (0 to never reload)
 	 */
 	public LukeHandlerFacetProfileImpl(final RegistryService registryService, long reloadTimeInSecs) {
+		this.init(registryService, reloadTimeInSecs, QueryParameters.DEFAULT_CONNECTION_TIMEOUT, 
+		          QueryParameters.DEFAULT_LUKE_READ_TIMEOUT, QueryParameters.DEFAULT_SHARDS_PROBE_THREADS);
+	}
+	
+	/**
+	 * Constructor that also sets the configurable timeouts and number of threads.
+	 * @param registryService
+	 * @param reloadTimeInSecs : time between successive reloads of the list of facets (0 to never reload)
+	 * @param props
+	 */
+	public LukeHandlerFacetProfileImpl(final RegistryService registryService, long reloadTimeInSecs, final ESGFProperties props) {
+		
+		int connectionTimeout = QueryParameters.DEFAULT_CONNECTION_TIMEOUT;
+		int readTimeout = QueryParameters.DEFAULT_LUKE_READ_TIMEOUT;
+		int threads = QueryParameters.DEFAULT_SHARDS_PROBE_THREADS;
+		if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CONNECTION_TIMEOUT)))
+		    connectionTimeout = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_CONNECTION_TIMEOUT));
+		if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_LUKE_READ_TIMEOUT)))
+		    readTimeout = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_LUKE_READ_TIMEOUT));
+		if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_THREADS)))
+		    threads = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_THREADS));
+		if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_LUKE_RETRY_INTERVAL)))
+		    this.retryInterval = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_LUKE_RETRY_INTERVAL));
+		
+		this.init(registryService, reloadTimeInSecs, connectionTimeout, readTimeout, threads);
+		
+	}
+	
+	private void init(final RegistryService registryService, long reloadTimeInSecs, 
+	                  int connectionTimeout, int readTimeout, int threads) {
+		
 		this.registryService = registryService;
 		this.reloadTimeInSecs = reloadTimeInSecs;
-		this.lastReloadTimeInMillisecs = System.currentTimeMillis();
+		this.readTimeout = readTimeout;
+		httpClient.setConnectionTimeout(connectionTimeout);
+		httpClient.setReadTimeout(readTimeout);
+		
+		// shards are queried in parallel, threads are only kept while a reload is in progress
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+		                                       new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("luke"));
+		this.executor.allowCoreThreadTimeOut(true);
+		
 	}
+
+	/**
+	 * Constructor that builds the list of facets from a configuration map composed of (facet key, facet label) pairs.
+	 * @param facets
+	 */
+	public LukeHandlerFacetProfileImpl(final LinkedHashMap<String, String> map) {
 		
+		final Map<String, Facet> _facets = new LinkedHashMap<String, Facet>();
+		for (final String key : map.keySet()) {
+			_facets.put(key, new FacetImpl(key, map.get(key), ""));
+		}
+		this.facets = Collections.unmodifiableMap(_facets);
+		
+	}
+	
 	/**
+	 * Method to load the list of facets, and start reloading it in the background.
+	 */
+	public synchronized void start() {
+		
+		if (registryService==null || started) return;
+		started = true;
+		
+		// the scheduler is also used to retry loading an empty list
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("facet-profile"));
+		
+		this.reload();
+		
+		if (reloadTimeInSecs>0) {
+			this.scheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					reload();
+				}
+			}, reloadTimeInSecs, reloadTimeInSecs, TimeUnit.SECONDS);
+		}
+		
+	}
+	
+	/**
+	 * Method to stop reloading the list of facets.
+	 */
+	public synchronized void stop() {
+		
+		if (this.scheduler!=null) this.scheduler.shutdownNow();
+		if (this.executor!=null) this.executor.shutdownNow();
+		
+	}
+	
+	/**
+	 * Method to reload the list of facets, replacing the current list only if the new one is not empty.
+	 * If the list is still empty, another reload is scheduled after the retry interval.
+	 */
+	synchronized void reload() {
+		
+		try {
+			final Map<String, Facet> newFacets = this.queryFacets();
+			if (!newFacets.isEmpty()) {  // something went wrong...
+				this.facets = Collections.unmodifiableMap(newFacets);
+			}
+		} catch(Exception e) {
+			LOG.warn(e.getMessage());
+		}
+		
+		if (this.facets.isEmpty() && !retryScheduled && retryInterval>0 
+		    && scheduler!=null && !scheduler.isShutdown()) {
+			if (LOG.isWarnEnabled()) LOG.warn("No facets loaded, retrying in "+retryInterval+" seconds");
+			retryScheduled = true;
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					synchronized (LukeHandlerFacetProfileImpl.this) {
+						retryScheduled = false;
+					}
+					reload();
+				}
+			}, retryInterval, TimeUnit.SECONDS);
+		}
+		
+	}
+		
+	/**
+	 * Method to query the Luke handler of all shards in parallel, and merge the fields into a list of facets
+	 * (in the order of the shards).
 	 */
 	protected Map<String, Facet> queryFacets() throws Exception {
 		
-		Map<String, Facet> _facets = new LinkedHashMap<String, Facet>();
+		final LinkedHashSet<String> shards = this.registryService.getShards();
 		
-		LinkedHashSet<String> shards = this.registryService.getShards();
+		final List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+		for (final String shard : shards) {
+			tasks.add(new Callable<List<String>>() {
+				public List<String> call() throws Exception {
+					return queryFields(shard);
+				}
+			});
+		}
 		
-		for (String shard : shards) {
+		// every call is bounded by the HTTP timeouts, the overall limit is a safeguard
+		final List<Future<List<String>>> futures = executor.invokeAll(tasks, 2L*readTimeout, TimeUnit.MILLISECONDS);
 		
-			final String fullUrl = "http://" + shard + "/datasets/admin/luke/?numTerms=0";
-			if (LOG.isInfoEnabled()) LOG.info("Querying all available facets from URL="+fullUrl);
-			String response = httpClient.doGet(new URL(fullUrl));
-			final Document doc = xmlParser.parseString(response);
-			xPath = XPath.newInstance(XPATH);
-			for (final Object obj : xPath.selectNodes(doc)) {
-				
-				String facetKey = ((Element)obj).getAttributeValue("name");
-				if (!_facets.containsKey(facetKey)) {  // already counted
-					// avoid faceting on fields that have too many values to improve performance
-					if (!QueryParameters.NOT_FACETS.contains(facetKey)) {
+		final Map<String, Facet> _facets = new LinkedHashMap<String, Facet>();
+		boolean failed = false;
+		int i = 0;
+		for (final String shard : shards) {
+			final Future<List<String>> future = futures.get(i++);
+			try {
+				for (final String facetKey : future.get()) {
+					if (!_facets.containsKey(facetKey)) {  // already counted
 						_facets.put(facetKey, new FacetImpl(facetKey, facetKey, "")); // facet key = facet name
-						 if (LOG.isInfoEnabled()) LOG.info("Using facet:"+facetKey);
+						if (LOG.isDebugEnabled()) LOG.debug("Using facet:"+facetKey);
 					}
 				}
-				
+			} catch (ExecutionException e) {
+				LOG.warn("Error querying facets from shard="+shard+": "+e.getCause().getMessage());
+				failed = true;
+			} catch (Exception e) {
+				LOG.warn("Timeout querying facets from shard="+shard);
+				failed = true;
 			}
 		}
 		
+		// do not lose the facets of the shards that could not be queried
+		if (failed && !_facets.isEmpty()) {
+			for (final Map.Entry<String, Facet> entry : this.facets.entrySet()) {
+				if (!_facets.containsKey(entry.getKey())) _facets.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		if (LOG.isInfoEnabled()) LOG.info("Loaded "+_facets.size()+" facets from "+shards.size()+" shards");
 		return _facets;
+		
 	}
-
+	
 	/**
-	 * Constructor that builds the list of facets from a configuration map composed of (facet key, facet label) pairs.
-	 * @param facets
+	 * Method to query the Luke handler of a single shard for the names of the fields that can be used as facets.
 	 */
-	public LukeHandlerFacetProfileImpl(final LinkedHashMap<String, String> map) {
+	private List<String> queryFields(final String shard) throws Exception {
 		
-		for (final String key : map.keySet()) {
-			facets.put(key, new FacetImpl(key, map.get(key), ""));
+		final String fullUrl = "http://" + shard + "/datasets/admin/luke/?numTerms=0";
+		if (LOG.isInfoEnabled()) LOG.info("Querying all available facets from URL="+fullUrl);
+		final String response = httpClient.doGet(new URL(fullUrl));
+		final Document doc = xmlParser.parseString(response);
+		final XPath xPath = XPath.newInstance(XPATH);
+		
+		final List<String> fields = new ArrayList<String>();
+		for (final Object obj : xPath.selectNodes(doc)) {
+			final String facetKey = ((Element)obj).getAttributeValue("name");
+			// avoid faceting on fields that have too many values to improve performance
+			if (!QueryParameters.NOT_FACETS.contains(facetKey)) fields.add(facetKey);
 		}
+		return fields;
 		
 	}
 	
 	/**
 	 * {@inheritDoc}
+	 * If the profile was not started, the list of facets is loaded on the first call.
 	 */
 	public Map<String, Facet> getTopLevelFacets() {
 		
-		// initialize facets ?
-		if (this.facets.isEmpty() || (System.currentTimeMillis()-this.lastReloadTimeInMillisecs)/1000 > this.reloadTimeInSecs ) {
-			this.lastReloadTimeInMillisecs = System.currentTimeMillis();
-			
-			synchronized(this.facets) {
-				try {
-					Map<String, Facet> newFacets = this.queryFacets();
-					if (!newFacets.isEmpty()) {  // something went wrong...
-						this.facets = newFacets;
-					}
-				} catch(Exception e) {
-					LOG.warn(e.getMessage());
-				}
+		if (this.facets.isEmpty() && registryService!=null && !started) {
+			synchronized (this) {
+				if (this.facets.isEmpty()) this.reload();
 			}
-			
 		}
+		return this.facets;
 		
-		return Collections.unmodifiableMap(facets);
 	}
 
 }
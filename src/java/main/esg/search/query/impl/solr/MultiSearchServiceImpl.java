@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.StringUtils;
+
+import esg.common.util.ESGFProperties;
+import esg.search.query.api.MultiSearchService;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchOutput;
+import esg.search.query.api.SearchReturnType;
+import esg.search.query.api.SearchService;
+import esg.search.utils.DaemonThreadFactory;
+
+/**
+ * Implementation of {@link MultiSearchService} that executes the searches of a batch concurrently 
+ * on another {@link SearchService}, to which single searches are also delegated.
+ * 
+ * The first search of a batch is executed by the calling thread, the others by a bounded pool of background threads:
+ * when all threads are busy, the remaining searches are executed by the calling thread as well, 
+ * so that batches are never rejected, but slow down when the pool is saturated.
+ * If a search fails, the searches of the batch that are still in progress are cancelled.
+ */
+public class MultiSearchServiceImpl implements MultiSearchService {
+    
+    /**
+     * The underlying search service.
+     */
+    private final SearchService searchService;
+    
+    /**
+     * Threads executing the searches of all batches.
+     */
+    private final ThreadPoolExecutor executor;
+    
+    private static final Log LOG = LogFactory.getLog(MultiSearchServiceImpl.class);
+    
+    /**
+     * Constructor with mandatory arguments.
+     * 
+     * @param searchService : the search service that executes each search
+     * @param name : name of the background threads
+     * @param props : properties file to set the number of background threads
+     */
+    public MultiSearchServiceImpl(final SearchService searchService, final String name, final ESGFProperties props) {
+        
+        this.searchService = searchService;
+        
+        int threads = QueryParameters.DEFAULT_MULTI_SEARCH_THREADS;
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_MULTI_SEARCH_THREADS)))
+            threads = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_MULTI_SEARCH_THREADS));
+        
+        this.executor = new ThreadPoolExecutor(0, Math.max(threads, 1), 60, TimeUnit.SECONDS,
+                                               new SynchronousQueue<Runnable>(), 
+                                               new DaemonThreadFactory(name),
+                                               new ThreadPoolExecutor.CallerRunsPolicy());
+        
+        if (LOG.isInfoEnabled()) LOG.info("Multi Search Service name="+name+" threads="+threads);
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<SearchOutput> search(final List<SearchInput> inputs) throws Exception {
+        
+        return this.execute(inputs, new Search<SearchOutput>() {
+            @Override
+            public SearchOutput execute(final SearchInput input) throws Exception {
+                return searchService.search(input);
+            }
+        });
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> query(final List<SearchInput> inputs, final SearchReturnType returnType) throws Exception {
+        
+        return this.execute(inputs, new Search<String>() {
+            @Override
+            public String execute(final SearchInput input) throws Exception {
+                return searchService.query(input, returnType);
+            }
+        });
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SearchOutput search(final SearchInput input) throws Exception {
+        return searchService.search(input);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String query(final SearchInput input, final SearchReturnType returnType) throws Exception {
+        return searchService.query(input, returnType);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void query(final SearchInput input, final SearchReturnType returnType, final OutputStream out) throws Exception {
+        searchService.query(input, returnType, out);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void recover(final SearchInput input) throws Exception {
+        searchService.recover(input);
+    }
+    
+    /**
+     * Method to stop the background threads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Method to execute a batch of searches: all but the first are submitted to the background threads,
+     * the first is executed by the calling thread, then the results are collected in order.
+     */
+    private <T> List<T> execute(final List<SearchInput> inputs, final Search<T> search) throws Exception {
+        
+        final List<T> results = new ArrayList<T>(inputs.size());
+        if (inputs.isEmpty()) return results;
+        
+        final List<Future<T>> futures = new ArrayList<Future<T>>(inputs.size()-1);
+        try {
+            
+            for (final SearchInput input : inputs.subList(1, inputs.size())) {
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return search.execute(input);
+                    }
+                }));
+            }
+            
+            results.add(search.execute(inputs.get(0)));
+            for (final Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+                    throw e;
+                }
+            }
+            return results;
+            
+        } finally {
+            // cancel the searches still in progress if any search failed (no effect on completed searches)
+            for (final Future<T> future : futures) future.cancel(true);
+        }
+        
+    }
+    
+    /**
+     * A single search of a batch.
+     */
+    private interface Search<T> {
+        T execute(SearchInput input) throws Exception;
+    }
+
+}
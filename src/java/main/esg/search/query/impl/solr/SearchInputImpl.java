@@ -27,6 +27,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.springframework.util.StringUtils;
 
@@ -67,6 +68,11 @@ public class SearchInputImpl implements SearchInput, Serializable {
 	 */
 	private List<String> facets = new ArrayList<String>();
 	
+	/**
+	 * Options of the returned facet values, by facet name and option name.
+	 */
+	private Map<String, Map<String, String>> facetOptions = new TreeMap<String, Map<String, String>>();
+	
 	/**
 	 * Set of optional and standard fields to be returned for each result.
 	 */
@@ -112,6 +118,26 @@ public class SearchInputImpl implements SearchInput, Serializable {
 	 */
 	private boolean sort = false;
 	
+	/**
+	 * Cursor for deep paging, if specified.
+	 */
+	private String cursor = null;
+	
+	/**
+	 * Field used to collapse the results, if specified.
+	 */
+	private String collapse = null;
+	
+	/**
+	 * Shards left out of the distributed search, if any.
+	 */
+	private LinkedHashSet<String> skippedShards = new LinkedHashSet<String>();
+	
+	/**
+	 * Flag that a distributed search may return partial results.
+	 */
+	private boolean partialAllowed = false;
+	
 	private final static String NEWLINE = System.getProperty("line.separator");
 	
 	/**
@@ -237,6 +263,36 @@ public class SearchInputImpl implements SearchInput, Serializable {
 	public void setFacets(final List<String> facets) {
 		this.facets = facets;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setFacetOption(final String facet, final String option, final String value) {
+	    if (!facetOptions.containsKey(facet)) {
+	        facetOptions.put(facet, new TreeMap<String, String>());
+	    }
+	    facetOptions.get(facet).put(option, value);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Map<String, String>> getFacetOptions() {
+	    return Collections.unmodifiableMap(facetOptions);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getFacetOption(final String facet, final String option) {
+	    if (facetOptions.containsKey(facet) && facetOptions.get(facet).containsKey(option)) {
+	        return facetOptions.get(facet).get(option);
+	    } else if (facetOptions.containsKey(QueryParameters.FACET_ALL)) {
+	        return facetOptions.get(QueryParameters.FACET_ALL).get(option);
+	    } else {
+	        return null;
+	    }
+	}
 
 	/**
      * {@inheritDoc}
@@ -251,6 +307,63 @@ public class SearchInputImpl implements SearchInput, Serializable {
     public void setSort(boolean sort) {
         this.sort = sort;
     }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public String getCursor() {
+        return cursor;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public String getCollapse() {
+        return collapse;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void setCollapse(String collapse) {
+        this.collapse = collapse;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public Set<String> getSkippedShards() {
+        return skippedShards;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void setSkippedShards(final Set<String> skippedShards) {
+        this.skippedShards.clear();
+        this.skippedShards.addAll(skippedShards);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isPartialAllowed() {
+        return partialAllowed;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void setPartialAllowed(final boolean partialAllowed) {
+        this.partialAllowed = partialAllowed;
+    }
 
     /**
 	 * Overridden method to print the instance content.
@@ -267,6 +380,10 @@ public class SearchInputImpl implements SearchInput, Serializable {
 	    s.append("Search Text:"+this.getQuery()).append(NEWLINE);
 	    // offset, limit
         s.append("Search offset: "+offset+" ").append(" limit: ").append(limit).append(NEWLINE);
+        // cursor
+        if (StringUtils.hasText(this.cursor)) s.append("Search cursor: ").append(this.cursor).append(NEWLINE);
+        // collapse
+        if (StringUtils.hasText(this.collapse)) s.append("Collapse: ").append(this.collapse).append(NEWLINE);
         // format
         s.append("Output Format: ").append(this.format).append(NEWLINE);
 		// geospatialRangeconstraints
@@ -280,6 +397,10 @@ public class SearchInputImpl implements SearchInput, Serializable {
 		for (final String facet : facets) {
 			s.append("Search Facet: ").append(facet).append(NEWLINE);
 		}
+		// facet options
+		for (final String facet : facetOptions.keySet()) {
+		    s.append("Facet Options: ").append(facet).append(" ").append(facetOptions.get(facet)).append(NEWLINE);
+		}
 	    // fields
         for (final String field : fields) {
             s.append("Returned Field: ").append(field).append(NEWLINE);
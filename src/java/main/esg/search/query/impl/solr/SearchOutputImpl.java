@@ -54,6 +54,16 @@ public class SearchOutputImpl implements SearchOutput, Serializable {
 	 */
 	private int offset = 0;
 	
+	/**
+	 * The cursor to the next page of results, if requested.
+	 */
+	private String nextCursor = null;
+	
+	/**
+	 * Flag that the results are partial.
+	 */
+	private boolean partial = false;
+	
 	private final static String NEWLINE = System.getProperty("line.separator");
 	
 	private static final long serialVersionUID = 1L;
@@ -124,6 +134,34 @@ public class SearchOutputImpl implements SearchOutput, Serializable {
 		this.offset = offset;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setPartial(boolean partial) {
+		this.partial = partial;
+	}
+	
 	/**
 	 * Overridden method to print out the {@link Record} content.
 	 */
@@ -18,13 +18,26 @@
  ******************************************************************************/
 package esg.search.query.impl.solr;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpStatus;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
@@ -34,7 +47,9 @@ import esg.search.query.api.SearchInput;
 import esg.search.query.api.SearchOutput;
 import esg.search.query.api.SearchReturnType;
 import esg.search.query.api.SearchService;
+import esg.search.query.api.ShardHealthService;
 import esg.search.utils.HttpClient;
+import esg.search.utils.HttpStatusException;
 import esg.security.registry.service.api.RegistryService;
 
 /**
@@ -47,11 +62,28 @@ import esg.security.registry.service.api.RegistryService;
  * 
  * An optional {@link RegistryService} can be used to provide a list of query endpoints for distributed searches.
  * 
- * In case of failed query, this search service implementation attempts to execute the query two more times,
- * first with a trimmed down shards list, finally versus the localhost Solr engine only.
+ * Distributed queries to each Solr core are guarded by a {@link CircuitBreaker}: in case of failed query, 
+ * or while the circuit is open after repeated failures, the query is executed versus the localhost Solr engine only,
+ * and the shards that were left out are recorded in the {@link SearchInput}. The shards are then checked again,
+ * so that the following queries target a trimmed down shards list.
+ * When the response is streamed to an output stream, the query is only re-attempted if nothing has been written yet.
+ * 
+ * Optionally, distributed searches (except for files) are executed by a {@link FederatedSearch} within this application,
+ * which queries each shard in parallel with its own deadline, instead of being delegated to Solr.
+ * Collapsed distributed searches are always executed by a {@link FederatedSearch}, as Solr only collapses the records 
+ * within each shard, so only a federated search can also collapse the groups whose records are held by different shards 
+ * (for example, the replicas of a dataset). Collapsed distributed searches that cannot be federated 
+ * (files, Solr/JSON format, cursor) are rejected as invalid requests.
+ * 
+ * Optionally, queries that target the local index only are executed by a {@link HedgedSearch}, 
+ * which sends a duplicate request to a replica Solr server when this service's server is slow to answer.
+ * Hedging must be enabled explicitly for each service (see {@link #SearchServiceImpl(URL, ESGFProperties, boolean)}),
+ * and only for services that read from a replica: a service that must read its own server's latest state 
+ * (e.g. the master Solr server during publication) must never be answered by a replica that may lag behind it.
  * 
  */
 @Service("searchService")
+@ManagedResource(description="Search service")
 public class SearchServiceImpl implements SearchService {
 	
 	/**
@@ -62,39 +94,94 @@ public class SearchServiceImpl implements SearchService {
 	/**
 	 * The parser used to parse the XML output from the server.
 	 */
-	final SolrXmlParser xmlParser = new SolrXmlParser();
+	private SolrXmlParser xmlParser = new SolrXmlStreamParser();
 	
 	/**
 	 * Optional registry service providing list of query endpoints for distributed search.
 	 */
 	private RegistryService registryService = null;
 	
+	/**
+	 * Optional service monitoring the health of the distributed search shards.
+	 */
+	private ShardHealthService shardHealthService = null;
+	
 	/**
 	 * Timeouts.
 	 */
     private int connectionTimeout = QueryParameters.DEFAULT_CONNECTION_TIMEOUT;
     private int datasetsReadTimeout = QueryParameters.DEFAULT_DATASETS_READ_TIMEOUT;
     private int filesReadTimeout = QueryParameters.DEFAULT_FILES_READ_TIMEOUT;
+    
+    /**
+     * Partial results of distributed searches.
+     */
+    private int timeAllowed = QueryParameters.DEFAULT_SHARDS_TIME_ALLOWED;
+    private boolean tolerant = QueryParameters.DEFAULT_SHARDS_TOLERANT;
+    
+    /**
+     * Rounding of relative dates in temporal constraints.
+     */
+    private String dateRounding = QueryParameters.DEFAULT_DATE_ROUNDING;
+    
+    /**
+     * Flag to use native spatial filters on the "geo" field.
+     */
+    private boolean geoSpatial = QueryParameters.DEFAULT_GEO_SPATIAL;
+    
+    /**
+     * Data node preferred as head of the collapsed groups.
+     */
+    private String collapseDataNode = QueryParameters.DEFAULT_COLLAPSE_DATA_NODE;
+    
+    /**
+     * Federated search executed by this application, instead of Solr distributed search:
+     * for all distributed searches if enabled, otherwise for collapsed distributed searches only.
+     */
+    private final FederatedSearch federatedSearch;
+    private boolean federation = QueryParameters.DEFAULT_FEDERATION;
+    
+    /**
+     * Optional hedged requests to the replica Solr servers.
+     */
+    private HedgedSearch hedgedSearch = null;
 	
     /**
-     * Number of query attempts:
-     * 1 - with current shards list
-     * 2 - with pruned shards list
-     * 3 - with local shard only
+     * Circuit breakers guarding the distributed queries, by Solr core.
+     */
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private int maxFailures = QueryParameters.DEFAULT_CIRCUIT_MAX_FAILURES;
+    private long openTime = QueryParameters.DEFAULT_CIRCUIT_OPEN_TIME;
+    private long maxOpenTime = QueryParameters.DEFAULT_CIRCUIT_MAX_OPEN_TIME;
+    
+    /**
+     * Number of queries that fell back to the local index.
      */
-    private static final int NUMBER_OF_TRIES = 3;
+    private final AtomicLong fallbacks = new AtomicLong(0);
 
 
 	private static final Log LOG = LogFactory.getLog(SearchServiceImpl.class);
 
 	/**
-	 * Constructor with mandatory arguments.
+	 * Constructor with mandatory arguments (without hedged requests).
 	 * 
 	 * @param url : back-end search engine URL
 	 * @param props : properties file to set configurable timeouts
 	 * @throws MalformedURLException
 	 */
 	public SearchServiceImpl(final URL url, ESGFProperties props) throws MalformedURLException {
+	    this(url, props, false);
+	}
+	
+	/**
+	 * Constructor with optional hedged requests.
+	 * 
+	 * @param url : back-end search engine URL
+	 * @param props : properties file to set configurable timeouts
+	 * @param hedging : true to send hedged requests to the replicas of this service's Solr server, if configured
+	 * @throws MalformedURLException
+	 */
+	public SearchServiceImpl(final URL url, ESGFProperties props, final boolean hedging) throws MalformedURLException {
 		
 	    this.url = url;
 	    
@@ -105,11 +192,75 @@ public class SearchServiceImpl implements SearchService {
             this.datasetsReadTimeout = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_DATASETS_READ_TIMEOUT));
         if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_FILES_READ_TIMEOUT)))
             this.filesReadTimeout = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_FILES_READ_TIMEOUT));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_TIME_ALLOWED)))
+            this.timeAllowed = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_SHARDS_TIME_ALLOWED));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_TOLERANT)))
+            this.tolerant = Boolean.parseBoolean(props.getProperty(QueryParameters.PROPERTY_SHARDS_TOLERANT));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_DATE_ROUNDING))) {
+            this.dateRounding = props.getProperty(QueryParameters.PROPERTY_DATE_ROUNDING).trim().toUpperCase();
+            if (this.dateRounding.equals(QueryParameters.DATE_ROUNDING_NONE)) this.dateRounding = "";
+        }
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_GEO_SPATIAL)))
+            this.geoSpatial = Boolean.parseBoolean(props.getProperty(QueryParameters.PROPERTY_GEO_SPATIAL).trim());
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_COLLAPSE_DATA_NODE)))
+            this.collapseDataNode = props.getProperty(QueryParameters.PROPERTY_COLLAPSE_DATA_NODE).trim();
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CIRCUIT_MAX_FAILURES)))
+            this.maxFailures = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_CIRCUIT_MAX_FAILURES));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CIRCUIT_OPEN_TIME)))
+            this.openTime = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_CIRCUIT_OPEN_TIME));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_CIRCUIT_MAX_OPEN_TIME)))
+            this.maxOpenTime = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_CIRCUIT_MAX_OPEN_TIME));
+        
+        // select XML parser
+        this.xmlParser = SolrXmlParser.getInstance(props);
+        
+        // federated search (enabled for all distributed searches, or used for collapsed distributed searches only)
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_FEDERATION)))
+            this.federation = Boolean.parseBoolean(props.getProperty(QueryParameters.PROPERTY_FEDERATION).trim());
+        int threads = QueryParameters.DEFAULT_FEDERATION_THREADS;
+        long timeout = QueryParameters.DEFAULT_FEDERATION_TIMEOUT;
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_FEDERATION_THREADS)))
+            threads = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_FEDERATION_THREADS));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_FEDERATION_TIMEOUT)))
+            timeout = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_FEDERATION_TIMEOUT));
+        this.federatedSearch = new FederatedSearch(threads, timeout, this.collapseDataNode);
+        if (LOG.isInfoEnabled()) LOG.info("Search Service federation="+this.federation+" threads="+threads+" timeout="+timeout);
+        
+        // enable hedged requests if this service's Solr server is one of the replicas
+        if (hedging && StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HEDGING_URLS))) {
+            final List<String> replicaUrls = new ArrayList<String>();
+            boolean replica = false;
+            for (final String replicaUrl : StringUtils.commaDelimitedListToStringArray(props.getProperty(QueryParameters.PROPERTY_HEDGING_URLS))) {
+                final String _replicaUrl = StringUtils.trimTrailingCharacter(replicaUrl.trim(), '/');
+                if (_replicaUrl.equals(StringUtils.trimTrailingCharacter(url.toString(), '/'))) {
+                    replica = true;
+                } else if (StringUtils.hasText(_replicaUrl)) {
+                    replicaUrls.add(_replicaUrl);
+                }
+            }
+            if (replica && !replicaUrls.isEmpty()) {
+                int percentile = QueryParameters.DEFAULT_HEDGING_PERCENTILE;
+                long minDelay = QueryParameters.DEFAULT_HEDGING_MIN_DELAY;
+                if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HEDGING_PERCENTILE)))
+                    percentile = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_HEDGING_PERCENTILE).trim());
+                if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HEDGING_MIN_DELAY)))
+                    minDelay = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_HEDGING_MIN_DELAY).trim());
+                this.hedgedSearch = new HedgedSearch(url, replicaUrls, percentile, minDelay);
+                if (LOG.isInfoEnabled()) LOG.info("Search Service hedging replicas="+replicaUrls+" percentile="+percentile+" min delay="+minDelay);
+            }
+        }
         
         if (LOG.isInfoEnabled()) {
             LOG.info("Search Service connection timeout="+this.connectionTimeout);
             LOG.info("Search Service datasets read timeout="+this.datasetsReadTimeout);
             LOG.info("Search Service files read timeout="+this.filesReadTimeout);
+            LOG.info("Search Service time allowed="+this.timeAllowed);
+            LOG.info("Search Service shards tolerant="+this.tolerant);
+            LOG.info("Search Service date rounding="+this.dateRounding);
+            LOG.info("Search Service geo-spatial="+this.geoSpatial);
+            LOG.info("Search Service collapse data node="+this.collapseDataNode);
+            LOG.info("Search Service circuit breaker max failures="+this.maxFailures+" open time="+this.openTime+" max open time="+this.maxOpenTime);
+            LOG.info("Search Service XML parser="+this.xmlParser.getClass().getSimpleName());
         }
 
 	}
@@ -122,6 +273,8 @@ public class SearchServiceImpl implements SearchService {
 	public SearchServiceImpl(final URL url) throws MalformedURLException {
 	    
 	    this.url = url;
+	    this.federatedSearch = new FederatedSearch(QueryParameters.DEFAULT_FEDERATION_THREADS, QueryParameters.DEFAULT_FEDERATION_TIMEOUT, 
+	                                               this.collapseDataNode);
 	    
         if (LOG.isInfoEnabled()) {
             LOG.info("Search Service connection timeout="+this.connectionTimeout);
@@ -150,65 +303,101 @@ public class SearchServiceImpl implements SearchService {
 	 * Self-recovering implementation of query() method.
 	 */
 	public String query(final SearchInput input, final SearchReturnType returnType) throws Exception {
+	    
+	    return this.execute(input, returnType, null);
+	    
+	}
+	
+	/**
+	 * Self-recovering implementation of the streaming query() method.
+	 * The Solr response is copied to the output stream as it is received.
+	 */
+	public void query(final SearchInput input, final SearchReturnType returnType, final OutputStream out) throws Exception {
+	    
+	    this.execute(input, returnType, new CountingOutputStream(out));
+	    
+	}
+	
+	/**
+	 * Method that executes the query, either returning the response as a string (if out==null) or writing it to the output stream.
+	 * A distributed query is only attempted if the circuit breaker of the target core allows it, 
+	 * otherwise (or if the distributed query fails) the query is executed versus the local index only.
+	 */
+	private String execute(final SearchInput input, final SearchReturnType returnType, final CountingOutputStream out) throws Exception {
 		
-        // attempt query numberOfTries times
-        for (int n=0; n<NUMBER_OF_TRIES; n++) {    
-            
-            long startTime = System.currentTimeMillis();
-            
-            try {
-                // execute HTTP request to Solr, return response document
-                String response = _query(input, returnType);
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                if (LOG.isInfoEnabled()) LOG.info("Query Elapsed Time="+elapsedTime+" msecs");
-                return response;
-                
-                
-            } catch(Exception e) {
-                
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                if (LOG.isWarnEnabled()) {                   
-                    LOG.warn("Query failed "+(n+1)+" times, attempting to recover from search error");
-                    LOG.warn("Query Elapsed Time="+elapsedTime+" msecs");
-                    LOG.warn(e.getMessage());
-                }
-                
-                if (n==0) {
-                    
-                    // prune the shards list
-                    if (this.registryService!=null) {
-                        if (LOG.isInfoEnabled()) LOG.info("Pruning the shards list");
-                        long startTime2 = System.currentTimeMillis();            
-                        this.recover(input);
-                        long stopTime2 = System.currentTimeMillis();
-                        if (LOG.isInfoEnabled()) LOG.info("Pruning Elapsed Time: "+(stopTime2-startTime2)+" ms");
-                    } else {
-                        if (LOG.isInfoEnabled()) LOG.info("Registry service not available, cannot prune shards");   
-                    }
-                    
-                } else if (n==1) {
-                    
-                    // execute non-distributed query
-                    if (LOG.isDebugEnabled()) LOG.debug("Executing a non-distributed query");
-                    input.setDistrib(false);
-
-                } else {
-                    // send error to client
-                    throw e;
-                }
-                
-            }
-        }
-        
-        // response error, return empty body content
-        return "";
+	    // non-distributed queries are attempted only once
+	    if (!input.isDistrib()) return this.execute(input, returnType, out, false);
+	    
+	    final String core = this.getCore(input);
+	    final CircuitBreaker breaker = this.getCircuitBreaker(core);
+	    
+	    if (breaker.allowRequest()) {
+	        
+	        try {
+	            final String response = this.execute(input, returnType, out, true);
+	            breaker.recordSuccess();
+	            return response;
+	            
+	        } catch(Exception e) {
+	            
+	            if (LOG.isWarnEnabled()) LOG.warn("Distributed query failed: "+e.getMessage());
+	            
+	            // invalid request: the local query would fail too
+	            if (e instanceof HttpStatusException && ((HttpStatusException)e).isClientError()) {
+	                breaker.recordIgnored();
+	                throw e;
+	            }
+	            
+	            // the client went away: not a failure of the shards, and nothing to recover
+	            if (out!=null && out.isClientError()) {
+	                breaker.recordIgnored();
+	                throw e;
+	            }
+	            
+	            breaker.recordFailure();
+	            if (LOG.isInfoEnabled()) LOG.info("Circuit breaker for core="+core+": "+breaker);
+	            
+	            // part of the response was already sent to the client: cannot recover
+	            if (out!=null && out.getCount()>0) {
+	                if (LOG.isWarnEnabled()) LOG.warn("Response partially written ("+out.getCount()+" bytes), cannot re-attempt query");
+	                throw e;
+	            }
+	            
+	            // check the shards for the next queries
+	            if (this.registryService!=null) this.recover(input);
+	            
+	        }
+	        
+	    } else {
+	        if (LOG.isInfoEnabled()) LOG.info("Circuit breaker for core="+core+" is open, skipping distributed query");
+	    }
+	    
+	    // fall back to a non-distributed query
+	    this.fallbacks.incrementAndGet();
+	    return this.execute(input, returnType, out, false);
 		
 	}
 	
+	/**
+	 * Method that executes a single (distributed or local) query, and logs its elapsed time.
+	 */
+	private String execute(final SearchInput input, final SearchReturnType returnType, final CountingOutputStream out, final boolean distrib) throws Exception {
+	    
+	    final long startTime = System.currentTimeMillis();
+	    try {
+	        return _query(input, returnType, out, distrib);
+	    } finally {
+	        final long elapsedTime = System.currentTimeMillis() - startTime;
+	        if (LOG.isInfoEnabled()) LOG.info("Query Elapsed Time="+elapsedTime+" msecs");
+	    }
+	    
+	}
+	
 	/**
      *  Private method contains the business logic implementation of the public query method.
+     *  If an output stream is provided, the response is written to the stream and null is returned.
      */
-    private String _query(final SearchInput input, final SearchReturnType returnType) throws Exception {
+    private String _query(final SearchInput input, final SearchReturnType returnType, final OutputStream out, final boolean distrib) throws Exception {
         
         if (LOG.isInfoEnabled()) LOG.info("Query Input:\n"+input.toString());
         
@@ -216,22 +405,95 @@ public class SearchServiceImpl implements SearchService {
         final SolrUrlBuilder builder = new SolrUrlBuilder(url);
         builder.setSearchInput(input);
         builder.setFacets(input.getFacets());
-        if (registryService!=null) builder.setDefaultShards( registryService.getShards() );
+        builder.setDistrib(distrib);
+        builder.setDateRounding(this.dateRounding);
+        builder.setGeoSpatial(this.geoSpatial);
+        builder.setCollapseDataNode(this.collapseDataNode);
+        input.setSkippedShards(Collections.<String>emptySet());
+        LinkedHashSet<String> defaultShards = new LinkedHashSet<String>();
+        if (input.isDistrib() && !distrib) {
+            // local fallback: all other shards are skipped
+            input.setSkippedShards(this.getRemoteShards(input));
+        } else if (registryService!=null) {
+            final LinkedHashSet<String> shards = registryService.getShards();
+            if (shardHealthService!=null) {
+                // leave out the shards that are currently unavailable or slow
+                final LinkedHashSet<String> availableShards = shardHealthService.getAvailableShards(shards);
+                if (input.isDistrib() && input.getShards().isEmpty()) {
+                    final LinkedHashSet<String> skippedShards = new LinkedHashSet<String>(shards);
+                    skippedShards.removeAll(availableShards);
+                    input.setSkippedShards(skippedShards);
+                }
+                // leave out the shards that cannot match the search (not reported as skipped)
+                final LinkedHashSet<String> matchingShards = shardHealthService.getMatchingShards(availableShards, input);
+                builder.setDefaultShards(matchingShards);
+                defaultShards = matchingShards;
+            } else {
+                builder.setDefaultShards(shards);
+                defaultShards = shards;
+            }
+        }
         
-        // instantiate HTTP client
+        // do not let a slow shard hold up an interactive search: return partial results instead 
+        // (never for files, which must be complete, for example to generate wget scripts,
+        // nor for feeds and publishing lookups, which do not allow partial results)
+        final String type = input.getConstraint(QueryParameters.FIELD_TYPE);
+        if (input.isPartialAllowed() && !type.equals(QueryParameters.TYPE_FILE)) {
+            builder.setTolerant(this.tolerant);
+            builder.setTimeAllowed(this.timeAllowed);
+        }
+        
+        // instantiate HTTP client (connections are drawn from the shared pool)
         final HttpClient httpClient = new HttpClient();
         
         // choose timeouts
         if (this.connectionTimeout>0) httpClient.setConnectionTimeout(this.connectionTimeout);
-        final String type = input.getConstraint(QueryParameters.FIELD_TYPE);
         if (type.equals(QueryParameters.TYPE_FILE)) {
             if (this.filesReadTimeout>0) httpClient.setReadTimeout(this.filesReadTimeout);
         } else {
             if (this.datasetsReadTimeout>0) httpClient.setReadTimeout(this.datasetsReadTimeout);
         }
+        
+        // federated search: query each shard in parallel, merge the responses (Solr/XML only)
+        // (always for collapsed searches, as Solr distributed search only collapses the records within each shard)
+        final Set<String> shards = (input.getShards().isEmpty() ? defaultShards : input.getShards());
+        final boolean distributed = input.isDistrib() && distrib && !shards.isEmpty();
+        final boolean collapsed = StringUtils.hasText(input.getCollapse());
+        if ((federation || collapsed) && distributed) {
+            if (   !type.equals(QueryParameters.TYPE_FILE) && returnType==SearchReturnType.SOLR_XML
+                && !input.getFormat().equals(SearchReturnType.SOLR_JSON.getMimeType()) && !StringUtils.hasText(input.getCursor())) {
+                final String response = federatedSearch.query(shards, this.getCore(input), builder.buildShardQueryString(), input, 
+                                                              this.connectionTimeout, this.datasetsReadTimeout, 
+                                                              input.isPartialAllowed() && this.tolerant);
+                if (out==null) return response;
+                out.write(response.getBytes("UTF-8"));
+                return null;
+            } else if (collapsed) {
+                throw new HttpStatusException(HttpStatus.SC_BAD_REQUEST, "Invalid "+QueryParameters.COLLAPSE+" of a distributed search: "
+                                              +"only supported for datasets in Solr/XML format without cursor, use distrib=false");
+            }
+        }
+        
+        // hedged requests (local index only, as a distributed query would be duplicated on every shard)
+        final boolean hedged = hedgedSearch!=null && !distributed;
+        final int readTimeout = (type.equals(QueryParameters.TYPE_FILE) ? this.filesReadTimeout : this.datasetsReadTimeout);
+        
+        // stream Solr/XML or Solr/JSON directly to the output stream
+        if (out!=null) {
+            this.checkFormat(returnType);
+            if (hedged) {
+                hedgedSearch.query(builder.buildSelectUrl(), this.getCore(input), builder.buildSelectQueryString(), 
+                                   this.connectionTimeout, readTimeout, out);
+            } else {
+                httpClient.doPost(new URL(builder.buildSelectUrl()), builder.buildSelectQueryString(), false, out);
+            }
+            return null;
+        }
                 
         // execute HTTP/POST request, return response as Solr/XML or Solr/JSON   
-        String output = httpClient.doPost(new URL(builder.buildSelectUrl()), builder.buildSelectQueryString(), false);
+        String output = (hedged ? hedgedSearch.query(builder.buildSelectUrl(), this.getCore(input), builder.buildSelectQueryString(), 
+                                                     this.connectionTimeout, readTimeout)
+                                : httpClient.doPost(new URL(builder.buildSelectUrl()), builder.buildSelectQueryString(), false));
         
         // transform to requested format
         final String response = this.transform(output, returnType);
@@ -241,12 +503,96 @@ public class SearchServiceImpl implements SearchService {
     }
 	
 	
+	/**
+	 * Method to return the shards, other than the local one, that would be the target of a distributed query.
+	 */
+	private LinkedHashSet<String> getRemoteShards(final SearchInput input) {
+	    
+	    final LinkedHashSet<String> shards = new LinkedHashSet<String>();
+	    if (!input.getShards().isEmpty()) {
+	        shards.addAll(input.getShards());
+	    } else if (registryService!=null) {
+	        shards.addAll(registryService.getShards());
+	    }
+	    // shards are listed as <host>:<port>/solr
+	    shards.remove(url.getAuthority()+url.getPath());
+	    return shards;
+	    
+	}
+	
+	/**
+	 * Method to return the Solr core targeted by a query.
+	 */
+	private String getCore(final SearchInput input) {
+	    
+	    final String type = input.getConstraint(QueryParameters.FIELD_TYPE);
+	    final String core = SolrXmlPars.CORES.get(type);
+	    return (core!=null ? core : type);
+	    
+	}
+	
+	/**
+	 * Method to return the circuit breaker guarding the distributed queries to a Solr core.
+	 */
+	private CircuitBreaker getCircuitBreaker(final String core) {
+	    
+	    CircuitBreaker breaker = this.breakers.get(core);
+	    if (breaker==null) {
+	        this.breakers.putIfAbsent(core, new CircuitBreaker(this.maxFailures, this.openTime, this.maxOpenTime));
+	        breaker = this.breakers.get(core);
+	    }
+	    return breaker;
+	    
+	}
+	
+	@ManagedAttribute(description="State of the circuit breaker of each Solr core")
+	public String[] getCircuitBreakers() {
+	    
+	    final List<String> states = new ArrayList<String>();
+	    for (final Map.Entry<String, CircuitBreaker> entry : this.breakers.entrySet()) {
+	        states.add(entry.getKey()+": "+entry.getValue().toString());
+	    }
+	    return states.toArray(new String[states.size()]);
+	    
+	}
+	
+	@ManagedAttribute(description="Number of queries that fell back to the local index")
+	public long getFallbacks() {
+	    return this.fallbacks.get();
+	}
+	
+	@ManagedAttribute(description="Current delay in milliseconds before a request to each Solr core is hedged")
+	public String[] getHedgingDelays() {
+	    return (this.hedgedSearch!=null ? this.hedgedSearch.getDelays() : new String[0]);
+	}
+	
+	@ManagedAttribute(description="Number of queries eligible for hedging")
+	public long getHedgingRequests() {
+	    return (this.hedgedSearch!=null ? this.hedgedSearch.getRequestCount() : 0);
+	}
+	
+	@ManagedAttribute(description="Number of queries sent to a replica Solr server because the primary one was slow")
+	public long getHedgedRequests() {
+	    return (this.hedgedSearch!=null ? this.hedgedSearch.getHedgedCount() : 0);
+	}
+	
+	@ManagedAttribute(description="Number of hedged queries answered first by the replica Solr server")
+	public long getHedgeWins() {
+	    return (this.hedgedSearch!=null ? this.hedgedSearch.getWinCount() : 0);
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
     public void recover(final SearchInput input) throws Exception {
 	    
+	    // shards are monitored in the background: request a new probe without waiting for it
+	    if (shardHealthService!=null) {
+	        shardHealthService.probe();
+	        return;
+	    }
+	    
 	    // reconstruct query string that caused the error (except request output as XML)
         final SolrUrlBuilder builder = new SolrUrlBuilder(url);
         String format = input.getFormat();
@@ -263,18 +609,84 @@ public class SearchServiceImpl implements SearchService {
 
     private String transform(final String output, final SearchReturnType returnType) throws Exception {
 	    
-	    if (returnType==SearchReturnType.SOLR_XML || returnType==SearchReturnType.SOLR_JSON) {
-	        return output;
-	    } else {
-	        throw new Exception("Unsupported output format: "+returnType.getMimeType());
-	    }
+        this.checkFormat(returnType);
+        return output;
 	    
 	}
+    
+    private void checkFormat(final SearchReturnType returnType) throws Exception {
+        
+        if (returnType!=SearchReturnType.SOLR_XML && returnType!=SearchReturnType.SOLR_JSON) {
+            throw new Exception("Unsupported output format: "+returnType.getMimeType());
+        }
+        
+    }
 
 	@Autowired
     public void setRegistryService(RegistryService registryService) {
         this.registryService = registryService;
     }
 	
+	@Autowired(required=false)
+	public void setShardHealthService(ShardHealthService shardHealthService) {
+	    this.shardHealthService = shardHealthService;
+	}
+	
+	/**
+	 * Output stream wrapper that keeps track of the number of bytes written to the underlying stream,
+	 * and of the errors writing to it (for example, a client that went away).
+	 * Bytes are counted before being written, so that a failed write also marks the stream as used.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+	    
+	    private long count = 0;
+	    private boolean clientError = false;
+	    
+	    CountingOutputStream(final OutputStream out) {
+	        super(out);
+	    }
+	    
+	    @Override
+	    public void write(int b) throws IOException {
+	        count++;
+	        try {
+	            out.write(b);
+	        } catch (IOException e) {
+	            clientError = true;
+	            throw e;
+	        }
+	    }
+	    
+	    @Override
+	    public void write(byte[] b, int off, int len) throws IOException {
+	        count += len;
+	        try {
+	            out.write(b, off, len);
+	        } catch (IOException e) {
+	            clientError = true;
+	            throw e;
+	        }
+	    }
+	    
+	    @Override
+	    public void flush() throws IOException {
+	        try {
+	            out.flush();
+	        } catch (IOException e) {
+	            clientError = true;
+	            throw e;
+	        }
+	    }
+	    
+	    long getCount() {
+	        return count;
+	    }
+	    
+	    boolean isClientError() {
+	        return clientError;
+	    }
+	    
+	}
+	
 
 }
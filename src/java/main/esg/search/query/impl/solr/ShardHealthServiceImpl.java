@@ -0,0 +1,715 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.StringUtils;
+
+import esg.common.util.ESGFProperties;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.ShardHealthService;
+import esg.search.utils.DaemonThreadFactory;
+import esg.search.utils.HttpClient;
+import esg.search.utils.XmlParser;
+import esg.security.registry.service.api.RegistryService;
+
+/**
+ * Implementation of {@link ShardHealthService} that probes all the shards listed by a {@link RegistryService}
+ * at regular intervals in a background thread, and keeps the latest health statistics of each shard in memory.
+ * 
+ * Shards are probed concurrently by a bounded pool of threads. If a shard has not answered within the hedge delay,
+ * a second probe is sent to the same shard and the first successful answer is used.
+ * A shard is excluded from distributed searches after a configurable number of consecutive failed probes,
+ * and is included again as soon as a probe succeeds: the registry itself is never modified.
+ * A shard is also excluded while the 95th percentile of its recent probe times exceeds a configurable threshold,
+ * unless all the other available shards are slow too.
+ * 
+ * Shards that have not been probed yet are considered available.
+ * 
+ * Optionally, the values of a few facets held by each shard (for example, project and institute) are retrieved 
+ * at longer intervals with a facet-only query, so that distributed searches constrained on these facets
+ * are only sent to the shards that hold at least one of the requested values. 
+ * Shards whose values could not be retrieved yet are always searched. 
+ * Note that records published with a new facet value on a shard are only found after the next update.
+ */
+@ManagedResource(objectName="esg.search:type=ShardHealth,name=shardHealthService", description="Health of the distributed search shards")
+public class ShardHealthServiceImpl implements ShardHealthService {
+    
+    /**
+     * The registry listing the shards to probe.
+     */
+    private final RegistryService registryService;
+    
+    /**
+     * Health statistics, by shard.
+     */
+    private final Map<String, ShardHealth> health = new ConcurrentHashMap<String, ShardHealth>();
+    
+    /**
+     * Configuration.
+     */
+    private long interval = QueryParameters.DEFAULT_SHARDS_PROBE_INTERVAL;
+    private int threads = QueryParameters.DEFAULT_SHARDS_PROBE_THREADS;
+    private long hedgeDelay = QueryParameters.DEFAULT_SHARDS_PROBE_HEDGE_DELAY;
+    private int maxFailures = QueryParameters.DEFAULT_SHARDS_MAX_FAILURES;
+    private long slowThreshold = QueryParameters.DEFAULT_SHARDS_SLOW_THRESHOLD;
+    private List<String> pruneFacets = Collections.emptyList();
+    private long pruneInterval = QueryParameters.DEFAULT_SHARDS_PRUNE_INTERVAL;
+    
+    /**
+     * Values of the pruning facets held by each shard.
+     */
+    private final Map<String, Map<String, Set<String>>> facetValues = new ConcurrentHashMap<String, Map<String, Set<String>>>();
+    
+    /**
+     * Number of times a shard was left out of a search because it could not match.
+     */
+    private final AtomicLong pruned = new AtomicLong(0);
+    
+    /**
+     * Maximum time to wait for all probes of a round to complete,
+     * in addition to the hedge delay.
+     */
+    private final static long ROUND_TIMEOUT = 10000;
+    
+    /**
+     * Number of latest probes used to compute the rolling statistics of each shard.
+     */
+    final static int WINDOW_SIZE = 20;
+    
+    /**
+     * Minimum number of successful probes before a shard can be considered slow.
+     */
+    final static int MIN_SAMPLES = 3;
+    
+    /**
+     * Timeouts of the facet queries.
+     */
+    private final static int FACETS_CONNECTION_TIMEOUT = 1000;
+    private final static int FACETS_READ_TIMEOUT = 10000;
+    
+    private ScheduledExecutorService scheduler = null;
+    private ExecutorService executor = null;
+    
+    /**
+     * Flag to prevent overlapping probe rounds.
+     */
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+    
+    private static final Log LOG = LogFactory.getLog(ShardHealthServiceImpl.class);
+    
+    /**
+     * Constructor with mandatory arguments.
+     * 
+     * @param registryService : the registry listing the shards to probe
+     * @param props : properties file to set the probing configuration
+     */
+    public ShardHealthServiceImpl(final RegistryService registryService, final ESGFProperties props) {
+        
+        this.registryService = registryService;
+        
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_INTERVAL)))
+            this.interval = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_INTERVAL));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_THREADS)))
+            this.threads = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_THREADS));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_HEDGE_DELAY)))
+            this.hedgeDelay = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_SHARDS_PROBE_HEDGE_DELAY));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_MAX_FAILURES)))
+            this.maxFailures = Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_SHARDS_MAX_FAILURES));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_SLOW_THRESHOLD)))
+            this.slowThreshold = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_SHARDS_SLOW_THRESHOLD));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_PRUNE_FACETS))) {
+            this.pruneFacets = new ArrayList<String>();
+            for (final String facet : StringUtils.commaDelimitedListToStringArray(props.getProperty(QueryParameters.PROPERTY_SHARDS_PRUNE_FACETS))) {
+                if (StringUtils.hasText(facet)) this.pruneFacets.add(facet.trim());
+            }
+        }
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_SHARDS_PRUNE_INTERVAL)))
+            this.pruneInterval = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_SHARDS_PRUNE_INTERVAL));
+        
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Shards probe interval="+this.interval);
+            LOG.info("Shards probe threads="+this.threads);
+            LOG.info("Shards probe hedge delay="+this.hedgeDelay);
+            LOG.info("Shards max failures="+this.maxFailures);
+            LOG.info("Shards slow threshold="+this.slowThreshold);
+            LOG.info("Shards prune facets="+this.pruneFacets+" interval="+this.pruneInterval);
+        }
+        
+    }
+    
+    /**
+     * Method to start probing the shards in the background.
+     */
+    public void start() {
+        
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("shard-health"));
+        this.executor = Executors.newFixedThreadPool(this.threads, new DaemonThreadFactory("shard-probe"));
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                probeAll();
+            }
+        }, 0, this.interval, TimeUnit.MILLISECONDS);
+        if (!this.pruneFacets.isEmpty()) {
+            this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    probeAllFacets();
+                }
+            }, 0, this.pruneInterval, TimeUnit.MILLISECONDS);
+        }
+        
+    }
+    
+    /**
+     * Method to stop probing the shards.
+     */
+    public void stop() {
+        
+        if (this.scheduler!=null) this.scheduler.shutdownNow();
+        if (this.executor!=null) this.executor.shutdownNow();
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LinkedHashSet<String> getAvailableShards(final Set<String> shards) {
+        
+        final LinkedHashSet<String> _shards = new LinkedHashSet<String>();
+        final LinkedHashSet<String> slowShards = new LinkedHashSet<String>();
+        for (final String shard : shards) {
+            final ShardHealth shardHealth = this.health.get(shard);
+            if (shardHealth==null) {
+                _shards.add(shard);
+            } else if (!shardHealth.isAvailable(this.maxFailures)) {
+                if (LOG.isDebugEnabled()) LOG.debug("Excluding unavailable shard="+shard);
+            } else if (shardHealth.isSlow(this.slowThreshold)) {
+                if (LOG.isDebugEnabled()) LOG.debug("Excluding slow shard="+shard);
+                slowShards.add(shard);
+            } else {
+                _shards.add(shard);
+            }
+        }
+        
+        // rather search the slow shards than none at all
+        if (_shards.isEmpty() && !slowShards.isEmpty()) {
+            final LinkedHashSet<String> __shards = new LinkedHashSet<String>();
+            for (final String shard : shards) {
+                if (slowShards.contains(shard)) __shards.add(shard);
+            }
+            return __shards;
+        }
+        
+        return _shards;
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LinkedHashSet<String> getMatchingShards(final Set<String> shards, final SearchInput input) {
+        
+        final LinkedHashSet<String> _shards = new LinkedHashSet<String>();
+        for (final String shard : shards) {
+            final Map<String, Set<String>> values = this.facetValues.get(shard);
+            if (values==null || this.matches(values, input)) {
+                _shards.add(shard);
+            } else {
+                if (LOG.isDebugEnabled()) LOG.debug("Excluding shard="+shard+": no matching facet values");
+                this.pruned.incrementAndGet();
+            }
+        }
+        return _shards;
+        
+    }
+    
+    /**
+     * Method to check whether a shard holding the given facet values may match the constraints of a search:
+     * for each pruning facet that is constrained, the shard must hold at least one of the requested values.
+     */
+    private boolean matches(final Map<String, Set<String>> values, final SearchInput input) {
+        
+        for (final String facet : this.pruneFacets) {
+            final List<String> constraints = input.getConstraints().get(facet);
+            final Set<String> _values = values.get(facet);
+            if (constraints==null || constraints.isEmpty() || _values==null) continue;
+            boolean match = false;
+            for (final String constraint : constraints) {
+                // wildcard values cannot be checked
+                if (constraint.indexOf('*')>=0 || constraint.indexOf('?')>=0 
+                    || _values.contains(StringUtils.trimTrailingCharacter(StringUtils.trimLeadingCharacter(constraint, '"'), '"'))) {
+                    match = true;
+                    break;
+                }
+            }
+            if (!match) return false;
+        }
+        return true;
+        
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @ManagedOperation(description="Probes all shards as soon as possible")
+    public void probe() {
+        
+        if (this.scheduler!=null && !this.probing.get()) {
+            this.scheduler.execute(new Runnable() {
+                public void run() {
+                    probeAll();
+                }
+            });
+        }
+        
+    }
+    
+    /**
+     * Method to return the health statistics of a shard, or null if the shard has not been probed yet.
+     */
+    public ShardHealth getHealth(final String shard) {
+        return this.health.get(shard);
+    }
+    
+    @ManagedAttribute(description="Health statistics of each shard")
+    public String[] getShardStatistics() {
+        
+        final List<String> stats = new ArrayList<String>();
+        for (final Map.Entry<String, ShardHealth> entry : this.health.entrySet()) {
+            stats.add(entry.getKey()+": "+entry.getValue().toString());
+        }
+        return stats.toArray(new String[stats.size()]);
+        
+    }
+    
+    @ManagedAttribute(description="Number of values of the pruning facets held by each shard")
+    public String[] getShardFacets() {
+        
+        final List<String> stats = new ArrayList<String>();
+        for (final Map.Entry<String, Map<String, Set<String>>> entry : this.facetValues.entrySet()) {
+            final StringBuilder sb = new StringBuilder(entry.getKey()).append(":");
+            for (final Map.Entry<String, Set<String>> values : entry.getValue().entrySet()) {
+                sb.append(" ").append(values.getKey()).append("=").append(values.getValue().size());
+            }
+            stats.add(sb.toString());
+        }
+        return stats.toArray(new String[stats.size()]);
+        
+    }
+    
+    @ManagedAttribute(description="Number of times a shard was left out of a distributed search because it could not match")
+    public long getPrunedShards() {
+        return this.pruned.get();
+    }
+    
+    @ManagedAttribute(description="Number of shards currently excluded from distributed searches")
+    public int getUnavailableShards() {
+        
+        int n = 0;
+        for (final ShardHealth shardHealth : this.health.values()) {
+            if (!shardHealth.isAvailable(this.maxFailures)) n++;
+        }
+        return n;
+        
+    }
+    
+    /**
+     * Method to probe all shards currently listed by the registry, and update their statistics.
+     * Any error is logged, so that the scheduled probing is never interrupted.
+     */
+    void probeAll() {
+        
+        if (!this.probing.compareAndSet(false, true)) return;
+        
+        try {
+            
+            final LinkedHashSet<String> shards = this.registryService.getShards();
+            if (LOG.isDebugEnabled()) LOG.debug("Probing "+shards.size()+" shards");
+            
+            // forget the statistics of shards no longer listed by the registry
+            this.health.keySet().retainAll(shards);
+            
+            final Map<String, ShardProbe> results = this.probe(shards);
+            
+            for (final String shard : shards) {
+                ShardHealth shardHealth = this.health.get(shard);
+                if (shardHealth==null) {
+                    shardHealth = new ShardHealth();
+                    this.health.put(shard, shardHealth);
+                }
+                final boolean wasAvailable = shardHealth.isAvailable(this.maxFailures);
+                shardHealth.update(results.get(shard));
+                final boolean isAvailable = shardHealth.isAvailable(this.maxFailures);
+                if (wasAvailable && !isAvailable) {
+                    if (LOG.isWarnEnabled()) LOG.warn("Excluding shard="+shard+" from distributed searches: "+shardHealth);
+                } else if (!wasAvailable && isAvailable) {
+                    if (LOG.isInfoEnabled()) LOG.info("Including shard="+shard+" in distributed searches: "+shardHealth);
+                }
+            }
+            
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(Exception e) {
+            if (LOG.isWarnEnabled()) LOG.warn("Error probing shards: "+e.getMessage());
+        } finally {
+            this.probing.set(false);
+        }
+        
+    }
+    
+    /**
+     * Method to retrieve the values of the pruning facets held by all shards currently listed by the registry.
+     * The previous values of a shard are kept if it fails to answer.
+     * Any error is logged, so that the scheduled probing is never interrupted.
+     */
+    void probeAllFacets() {
+        
+        try {
+            
+            final LinkedHashSet<String> shards = this.registryService.getShards();
+            if (LOG.isDebugEnabled()) LOG.debug("Retrieving facet values of "+shards.size()+" shards");
+            
+            // forget the values of shards no longer listed by the registry
+            this.facetValues.keySet().retainAll(shards);
+            
+            final Map<String, Future<Map<String, Set<String>>>> futures = new LinkedHashMap<String, Future<Map<String, Set<String>>>>();
+            for (final String shard : shards) {
+                futures.put(shard, this.executor.submit(new Callable<Map<String, Set<String>>>() {
+                    public Map<String, Set<String>> call() throws Exception {
+                        return probeFacets(shard);
+                    }
+                }));
+            }
+            
+            final long deadline = System.currentTimeMillis() + ROUND_TIMEOUT + FACETS_READ_TIMEOUT;
+            for (final Map.Entry<String, Future<Map<String, Set<String>>>> entry : futures.entrySet()) {
+                try {
+                    this.facetValues.put(entry.getKey(), 
+                                         entry.getValue().get(Math.max(deadline-System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS));
+                } catch(InterruptedException e) {
+                    throw e;
+                } catch(Exception e) {
+                    entry.getValue().cancel(true);
+                    if (LOG.isWarnEnabled()) LOG.warn("Error retrieving facet values of shard="+entry.getKey()+": "+e.getMessage());
+                }
+            }
+            
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(Exception e) {
+            if (LOG.isWarnEnabled()) LOG.warn("Error retrieving facet values of shards: "+e.getMessage());
+        }
+        
+    }
+    
+    /**
+     * Method to retrieve the values of the pruning facets held by a shard, with a facet-only query.
+     */
+    private Map<String, Set<String>> probeFacets(final String shard) throws Exception {
+        
+        // q=*:*&rows=0&distrib=false&facet=true&facet.limit=-1&facet.mincount=1&facet.field=...
+        final StringBuilder query = new StringBuilder(ShardProbe.HEALTH_QUERY).append("&facet=true&facet.limit=-1&facet.mincount=1");
+        for (final String facet : this.pruneFacets) {
+            query.append("&facet.field=");
+            SolrUrlBuilder.encode(facet, query);
+        }
+        
+        final HttpClient httpClient = new HttpClient();
+        httpClient.setConnectionTimeout(FACETS_CONNECTION_TIMEOUT);
+        httpClient.setReadTimeout(FACETS_READ_TIMEOUT);
+        final String xml = httpClient.doGet(new URL("http://"+shard+"/"+SolrXmlPars.CORES.get(QueryParameters.TYPE_DATASET)+"/select/?"+query));
+        
+        // <lst name="facet_counts"><lst name="facet_fields"><lst name="project"><int name="CMIP5">...</int>...
+        final Map<String, Set<String>> values = new HashMap<String, Set<String>>();
+        final Document doc = new XmlParser(false).parseString(xml);
+        for (final Element lst : doc.getRootElement().getChildren(SolrXmlPars.ELEMENT_LST)) {
+            if (!SolrXmlPars.ELEMENT_FACET_COUNTS.equals(lst.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) continue;
+            for (final Element _lst : lst.getChildren(SolrXmlPars.ELEMENT_LST)) {
+                if (!SolrXmlPars.ELEMENT_FACET_FIELDS.equals(_lst.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) continue;
+                for (final Element facet : _lst.getChildren(SolrXmlPars.ELEMENT_LST)) {
+                    final Set<String> _values = new HashSet<String>();
+                    for (final Element value : facet.getChildren()) {
+                        _values.add(value.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME));
+                    }
+                    values.put(facet.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME), Collections.unmodifiableSet(_values));
+                }
+            }
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Shard="+shard+" facet values="+values.keySet());
+        return Collections.unmodifiableMap(values);
+        
+    }
+    
+    /**
+     * Method to probe a set of shards concurrently, sending a second probe to each shard that 
+     * has not answered within the hedge delay.
+     * 
+     * @return : the first successful probe of each shard (shards that failed to answer are not included)
+     */
+    private Map<String, ShardProbe> probe(final Set<String> shards) throws InterruptedException {
+        
+        final Map<String, ShardProbe> results = new HashMap<String, ShardProbe>();
+        final ExecutorCompletionService<ShardProbe> service = new ExecutorCompletionService<ShardProbe>(this.executor);
+        final List<Future<ShardProbe>> futures = new ArrayList<Future<ShardProbe>>();
+        
+        // number of probes still running, by shard
+        final Map<String, Integer> pending = new HashMap<String, Integer>();
+        for (final String shard : shards) {
+            futures.add( service.submit(newProbe(shard)) );
+            pending.put(shard, 1);
+        }
+        int running = shards.size();
+        
+        try {
+            
+            // collect answers until the hedge delay expires
+            long hedgeTime = System.currentTimeMillis() + this.hedgeDelay;
+            running = this.collect(service, results, pending, running, hedgeTime);
+            
+            // hedge the shards that have not answered yet
+            for (final String shard : shards) {
+                if (!results.containsKey(shard) && pending.get(shard)>0) {
+                    if (LOG.isDebugEnabled()) LOG.debug("Sending hedged probe to shard="+shard);
+                    futures.add( service.submit(newProbe(shard)) );
+                    pending.put(shard, pending.get(shard)+1);
+                    running++;
+                }
+            }
+            
+            // collect the remaining answers
+            long deadline = System.currentTimeMillis() + ROUND_TIMEOUT;
+            this.collect(service, results, pending, running, deadline);
+            
+        } finally {
+            // abandon all probes still running
+            for (final Future<ShardProbe> future : futures) {
+                future.cancel(true);
+            }
+        }
+        
+        return results;
+        
+    }
+    
+    /**
+     * Method to collect completed probes until no probe is running, or all shards have answered, or the deadline expires.
+     * @return : the number of probes still running
+     */
+    private int collect(final ExecutorCompletionService<ShardProbe> service, final Map<String, ShardProbe> results, 
+                        final Map<String, Integer> pending, int running, final long deadline) throws InterruptedException {
+        
+        while (running>0 && results.size()<pending.size()) {
+            
+            final long timeout = deadline - System.currentTimeMillis();
+            if (timeout<=0) break;
+            final Future<ShardProbe> future = service.poll(timeout, TimeUnit.MILLISECONDS);
+            if (future==null) break;
+            running--;
+            
+            try {
+                final ShardProbe probe = future.get();
+                pending.put(probe.getShard(), pending.get(probe.getShard())-1);
+                // first successful probe wins
+                if (probe.getNumFound()>=0 && !results.containsKey(probe.getShard())) {
+                    results.put(probe.getShard(), probe);
+                }
+            } catch(Exception e) {
+                if (LOG.isDebugEnabled()) LOG.debug("Probe error: "+e.getMessage());
+            }
+            
+        }
+        
+        return running;
+        
+    }
+    
+    private static Callable<ShardProbe> newProbe(final String shard) {
+        final ShardProbe probe = new ShardProbe(shard, ShardProbe.HEALTH_QUERY);
+        return Executors.callable(probe, probe);
+    }
+    
+    /**
+     * Rolling health statistics of a single shard.
+     */
+    public static class ShardHealth {
+        
+        private final long[] elapsedTimes = new long[WINDOW_SIZE];
+        private final long[] queryTimes = new long[WINDOW_SIZE];
+        private final boolean[] failures = new boolean[WINDOW_SIZE];
+        private int count = 0;
+        private int consecutiveFailures = 0;
+        private long lastProbeTime = 0;
+        
+        /**
+         * Method to record the outcome of a probe.
+         * @param probe : the successful probe, or null if the shard failed to answer
+         */
+        synchronized void update(final ShardProbe probe) {
+            
+            final int i = count % WINDOW_SIZE;
+            if (probe!=null) {
+                elapsedTimes[i] = probe.getElapsedTime();
+                queryTimes[i] = probe.getQueryTime();
+                failures[i] = false;
+                consecutiveFailures = 0;
+            } else {
+                elapsedTimes[i] = -1;
+                queryTimes[i] = -1;
+                failures[i] = true;
+                consecutiveFailures++;
+            }
+            count++;
+            lastProbeTime = System.currentTimeMillis();
+            
+        }
+        
+        synchronized boolean isAvailable(final int maxFailures) {
+            return consecutiveFailures<maxFailures;
+        }
+        
+        synchronized boolean isSlow(final long threshold) {
+            return getPercentileElapsedTime(95)>threshold;
+        }
+        
+        /**
+         * @return : the fraction of failed probes in the rolling window
+         */
+        public synchronized double getErrorRate() {
+            
+            final int n = Math.min(count, WINDOW_SIZE);
+            if (n==0) return 0;
+            int f = 0;
+            for (int i=0; i<n; i++) {
+                if (failures[i]) f++;
+            }
+            return ((double)f)/n;
+            
+        }
+        
+        /**
+         * @return : the average elapsed time of the successful probes in the rolling window, or -1 if none
+         */
+        public synchronized long getAverageElapsedTime() {
+            return average(elapsedTimes);
+        }
+        
+        /**
+         * @return : the average Solr query time of the successful probes in the rolling window, or -1 if none
+         */
+        public synchronized long getAverageQueryTime() {
+            return average(queryTimes);
+        }
+        
+        /**
+         * @return : the given percentile of the elapsed times of the successful probes in the rolling window,
+         *           or -1 if there are not enough successful probes
+         */
+        public synchronized long getPercentileElapsedTime(final int percentile) {
+            return percentile(elapsedTimes, percentile);
+        }
+        
+        /**
+         * @return : the given percentile of the Solr query times of the successful probes in the rolling window,
+         *           or -1 if there are not enough successful probes
+         */
+        public synchronized long getPercentileQueryTime(final int percentile) {
+            return percentile(queryTimes, percentile);
+        }
+        
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+        
+        public synchronized long getLastProbeTime() {
+            return lastProbeTime;
+        }
+        
+        private long average(final long[] times) {
+            
+            final int n = Math.min(count, WINDOW_SIZE);
+            long sum = 0;
+            int m = 0;
+            for (int i=0; i<n; i++) {
+                if (!failures[i]) {
+                    sum += times[i];
+                    m++;
+                }
+            }
+            return (m>0 ? sum/m : -1);
+            
+        }
+        
+        private long percentile(final long[] times, final int percentile) {
+            
+            final int n = Math.min(count, WINDOW_SIZE);
+            final long[] _times = new long[n];
+            int m = 0;
+            for (int i=0; i<n; i++) {
+                if (!failures[i]) _times[m++] = times[i];
+            }
+            if (m<MIN_SAMPLES) return -1;
+            Arrays.sort(_times, 0, m);
+            // nearest-rank method
+            final int rank = (int)Math.ceil(percentile/100.0*m);
+            return _times[Math.max(rank,1)-1];
+            
+        }
+        
+        @Override
+        public synchronized String toString() {
+            return "probes="+count+" consecutive failures="+consecutiveFailures+" error rate="+getErrorRate()
+                  +" average elapsed time="+getAverageElapsedTime()+" p95 elapsed time="+getPercentileElapsedTime(95)
+                  +" average query time="+getAverageQueryTime()+" p95 query time="+getPercentileQueryTime(95);
+        }
+        
+    }
+
+}
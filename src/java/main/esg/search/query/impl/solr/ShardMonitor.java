@@ -4,36 +4,50 @@ import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 /**
- * Utility class to check a collection of Solr shards.
+ * Utility class to check a collection of Solr shards on demand.
+ * Note that the caller waits for all shards to be probed: 
+ * when available, {@link ShardHealthServiceImpl} should be used instead.
  * 
  * @author Luca Cinquini
  */
 public class ShardMonitor {
     
+    private static final Log LOG = LogFactory.getLog(ShardMonitor.class);
+    
     public static LinkedHashSet<String> monitor(final LinkedHashSet<String> shards, String query) {
         
         // probe each shard in a separate thread
         List<ShardProbe> probes = new ArrayList<ShardProbe>();
+        List<Thread> threads = new ArrayList<Thread>();
         for (final String shard : shards) {
 
             final ShardProbe probe = new ShardProbe(shard, query);
-            probe.start();
+            final Thread thread = new Thread(probe);
+            thread.start();
             probes.add(probe);
+            threads.add(thread);
 
         }
         
         // wait for all threads to finish
-        for (Thread probe : probes) {
+        for (Thread thread : threads) {
             try {
-                probe.join();
+                thread.join();
             } catch(InterruptedException e) {}
         }
 
         // inspect all probes
         LinkedHashSet<String> _shards = new LinkedHashSet<String>();
         for (ShardProbe probe : probes) {
-            if (probe.getNumFound()>=0) _shards.add(probe.getShard());
+            if (probe.getNumFound()>=0) {
+                _shards.add(probe.getShard());
+            } else {
+                if (LOG.isWarnEnabled()) LOG.warn("Shard="+probe.getShard()+" did not answer, excluding it");
+            }
         }
         
         return _shards;
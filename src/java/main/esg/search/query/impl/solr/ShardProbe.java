@@ -12,11 +12,12 @@ import esg.search.utils.HttpClient;
 import esg.search.utils.XmlParser;
 
 /**
- * Utility class to probe a single Solr shard in a separate thread of execution.
+ * Utility class to probe a single Solr shard, to be run in a separate thread of execution.
+ * Since probes run periodically, the outcome of each probe is only logged at DEBUG level.
  * 
  * @author Luca Cinquini
  */
-public class ShardProbe extends Thread {
+public class ShardProbe implements Runnable {
     
     private String shard = null;
     private String query = null;
@@ -30,6 +31,8 @@ public class ShardProbe extends Thread {
     private final static int READ_TIMEOUT = 5000;
     // encoded q=*&fq=latest:true&fq=replica:false
     private final static String QUERY = "q=*&fq=latest%3Atrue&fq=replica%3Afalse";
+    // encoded q=*:*&rows=0&distrib=false - cheapest query to check that a shard is responsive
+    public final static String HEALTH_QUERY = "q=*%3A*&rows=0&distrib=false";
     
     private final Log LOG = LogFactory.getLog(this.getClass());
 
@@ -39,12 +42,12 @@ public class ShardProbe extends Thread {
     }
     
     /**
-     * Thread method.
+     * Runnable method.
      */
     public void run() {
         
         final String url = this.buildUrl();
-        if (LOG.isInfoEnabled()) LOG.info("Querying URL="+url);
+        if (LOG.isDebugEnabled()) LOG.debug("Querying URL="+url);
         
         try {
             
@@ -68,10 +71,11 @@ public class ShardProbe extends Thread {
             final Element resultElement = (Element)xPath2.selectSingleNode(doc);
             this.numFound = Integer.parseInt( resultElement.getAttributeValue("numFound") );
             
-            if (LOG.isInfoEnabled()) LOG.info("Shard="+shard+" Number of Results="+this.numFound+" Query Time="+this.queryTime+" Elapsed Time="+this.elapsedTime);
+            if (LOG.isDebugEnabled()) LOG.debug("Shard="+shard+" Number of Results="+this.numFound+" Query Time="+this.queryTime+" Elapsed Time="+this.elapsedTime);
             
         } catch(Exception e) {
-            if (LOG.isWarnEnabled()) LOG.warn("Error probing shard="+shard+": "+e.getMessage());
+            // a failed probe is not logged at a higher level: the caller reports the shard state
+            if (LOG.isDebugEnabled()) LOG.debug("Error probing shard="+shard+": "+e.getMessage());
         }
 
         
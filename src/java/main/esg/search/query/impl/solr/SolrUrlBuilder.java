@@ -22,11 +22,14 @@ import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -35,6 +38,7 @@ import org.springframework.util.StringUtils;
 import esg.search.query.api.QueryParameters;
 import esg.search.query.api.SearchInput;
 import esg.search.query.api.SearchReturnType;
+import esg.search.utils.GeoUtils;
 
 /**
  * Utility class to generate URL according to the Solr REST API.
@@ -62,6 +66,75 @@ public class SolrUrlBuilder {
 	 */
 	private LinkedHashSet<String> defaultShards = new LinkedHashSet<String>();
 	
+	/**
+	 * Maximum time (in milliseconds) allowed to a distributed search before partial results are returned
+	 * (0 for no limit).
+	 */
+	private int timeAllowed = 0;
+	
+	/**
+	 * Flag to return partial results of a distributed search if some shards fail to answer.
+	 */
+	private boolean tolerant = false;
+	
+	/**
+	 * Flag to disable distributed search regardless of the search input (for example, to fall back to the local index).
+	 */
+	private boolean distrib = true;
+	
+	/**
+	 * Date math unit used to round relative dates in temporal constraints (empty for no rounding).
+	 */
+	private String dateRounding = QueryParameters.DEFAULT_DATE_ROUNDING;
+	
+	/**
+	 * Flag to use native spatial filters on the "geo" field, as opposed to ranges on the coverage degrees.
+	 */
+	private boolean geoSpatial = QueryParameters.DEFAULT_GEO_SPATIAL;
+	
+	/**
+	 * Data node whose records are preferred as heads of the collapsed groups (empty for none).
+	 */
+	private String collapseDataNode = QueryParameters.DEFAULT_COLLAPSE_DATA_NODE;
+	
+	/**
+	 * Fields that select the head of a collapsed group (see {@link #getCollapseFunction(String, String)}),
+	 * also returned by each shard of a federated search so that the groups can be collapsed across shards.
+	 */
+	final static List<String> COLLAPSE_FIELDS = Arrays.asList(new String[] { 
+	        QueryParameters.FIELD_LATEST, QueryParameters.FIELD_DATA_NODE, QueryParameters.FIELD_REPLICA });
+	
+	/**
+	 * Default options of the facet values returned by Solr if none are requested, as configured in the /select handler
+	 * (see solrconfig.xml): all values (facet.limit=-1), sorted by index order (facet.sort=lex).
+	 */
+	final static int SOLR_FACET_LIMIT = -1;
+	final static String SOLR_FACET_SORT = QueryParameters.FACET_SORT_INDEX;
+	
+	/**
+	 * Method to return the fields that each shard of a federated search must return, besides the requested fields,
+	 * so that the records can be sorted and collapsed across shards (see {@link FederatedSearch}).
+	 * These fields are removed from the merged records.
+	 */
+	static Set<String> getMergeFields(final SearchInput input) {
+	    
+	    final Set<String> fields = new TreeSet<String>();
+	    if (input.isSort()) {
+	        fields.add(QueryParameters.FIELD_TIMESTAMP_);
+	        fields.add(QueryParameters.FIELD_ID);
+	    } else if (QueryParameters.TYPE_FILE.equals(input.getConstraint(QueryParameters.FIELD_TYPE))) {
+	        fields.add(QueryParameters.FIELD_ID);
+	    }
+	    if (StringUtils.hasText(input.getCollapse())) {
+	        fields.addAll(COLLAPSE_FIELDS);
+	        fields.add(input.getCollapse());
+	    }
+	    if (input.getFields().isEmpty() || input.getFields().contains("*")) fields.clear();
+	    else fields.removeAll(input.getFields());
+	    return fields;
+	    
+	}
+	
 	/**
 	 * Flag for pretty-formatting of output.
 	 */
@@ -69,6 +142,56 @@ public class SolrUrlBuilder {
 	
 	private final static String UTF8 = "UTF-8";
 	
+	private final static String NOW = "NOW";
+	
+	/**
+	 * URL-encoded constant fragments of the query string.
+	 */
+	// " AND "
+	private final static String ENCODED_AND = "+AND+";
+	// " || "
+	private final static String ENCODED_OR = "+%7C%7C+";
+	// "*:*"
+	private final static String ENCODED_ALL = "*%3A*";
+	// ":"
+	private final static String ENCODED_COLON = "%3A";
+	// "\""
+	private final static String ENCODED_QUOTE = "%22";
+	// ":[", ":[* TO ", " TO ", " TO *]", "]"
+	private final static String ENCODED_RANGE_START = "%3A%5B";
+	private final static String ENCODED_RANGE_FROM_ANY = "%3A%5B*+TO+";
+	private final static String ENCODED_TO = "+TO+";
+	private final static String ENCODED_TO_ANY = "+TO+*%5D";
+	private final static String ENCODED_RANGE_END = "%5D";
+	// "${vers}"
+	private final static String ENCODED_VERS = "%24%7Bvers%7D";
+	// "{!cache=false}"
+	private final static String ENCODED_NO_CACHE = "%7B%21cache%3Dfalse%7D";
+	
+	private final static String ENCODED_INTERSECTS = SolrXmlPars.FIELD_GEO+"%3A%22Intersects%28";
+	
+	private final static String ENCODED_INTERSECTS_END = "%29%22";
+	
+	private final static String ENCODED_GEOFILT = "%7B%21geofilt+sfield%3D"+SolrXmlPars.FIELD_GEO+"+pt%3D";
+	// "_timestamp desc,id asc", "_timestamp desc", "id asc"
+	private final static String ENCODED_SORT_TIMESTAMP_ID = QueryParameters.FIELD_TIMESTAMP_+"+desc%2C"+QueryParameters.FIELD_ID+"+asc";
+	private final static String ENCODED_SORT_TIMESTAMP = QueryParameters.FIELD_TIMESTAMP_+"+desc";
+	private final static String ENCODED_SORT_ID = QueryParameters.FIELD_ID+"+asc";
+	
+	private final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	
+	/**
+	 * Per-thread buffers for composing the query string: main query, filter queries, full query string.
+	 */
+	private final static int BUFFER_SIZE = 1024;
+	private final static int MAX_BUFFER_SIZE = 64*1024;
+	private final static ThreadLocal<StringBuilder[]> BUFFERS = new ThreadLocal<StringBuilder[]>() {
+	    @Override
+	    protected StringBuilder[] initialValue() {
+	        return new StringBuilder[] { new StringBuilder(BUFFER_SIZE), new StringBuilder(BUFFER_SIZE), new StringBuilder(BUFFER_SIZE) };
+	    }
+	};
+	
 	private static final Log LOG = LogFactory.getLog(SolrUrlBuilder.class);
 	
 	/**
@@ -103,6 +226,57 @@ public class SolrUrlBuilder {
 	public void setDefaultShards(LinkedHashSet<String> shards) {
         this.defaultShards = shards;
     }
+	
+	/**
+	 * Method to set the maximum time allowed to a distributed search (0 for no limit).
+	 * @param timeAllowed
+	 */
+	public void setTimeAllowed(int timeAllowed) {
+	    this.timeAllowed = timeAllowed;
+	}
+	
+	/**
+	 * Method to request partial results from a distributed search if some shards fail to answer.
+	 * @param tolerant
+	 */
+	public void setTolerant(boolean tolerant) {
+	    this.tolerant = tolerant;
+	}
+	
+	/**
+	 * Method to disable distributed search regardless of the search input.
+	 * @param distrib
+	 */
+	public void setDistrib(boolean distrib) {
+	    this.distrib = distrib;
+	}
+	
+	/**
+	 * Method to round relative dates (NOW) in temporal constraints to the given date math unit 
+	 * (for example "HOUR"), so that the filter queries can be reused from the Solr cache.
+	 * @param dateRounding : the date math unit, or empty for no rounding
+	 */
+	public void setDateRounding(final String dateRounding) {
+	    this.dateRounding = dateRounding;
+	}
+	
+	/**
+	 * Method to enable the native spatial filters on the "geo" field, 
+	 * which are required for lat/lon/radius and polygon constraints.
+	 * @param geoSpatial
+	 */
+	public void setGeoSpatial(boolean geoSpatial) {
+	    this.geoSpatial = geoSpatial;
+	}
+	
+	/**
+	 * Method to set the data node whose records are preferred as heads of the collapsed groups
+	 * (for example, the local data node).
+	 * @param collapseDataNode : the data node, or empty for none
+	 */
+	public void setCollapseDataNode(final String collapseDataNode) {
+	    this.collapseDataNode = collapseDataNode;
+	}
 
     /**
 	 * Method to generate the "update" URL to a specific core.
@@ -138,68 +312,123 @@ public class SolrUrlBuilder {
 	
 	/**
 	 * Method to generate the "select" query string according to the instance's state.
+	 * Note that the query string is composed in buffers that are reused by the same thread,
+	 * and that URL-encoding is only applied to the variable parts of the query.
 	 * @return
 	 */
 	public String buildSelectQueryString() throws MalformedURLException, UnsupportedEncodingException {
+	    return this.buildQueryString(false);
+	}
+	
+	/**
+	 * Method to generate the query string sent to each shard of a federated search executed by this application 
+	 * (see {@link FederatedSearch}): a non-distributed query for the first offset+limit records, including their score,
+	 * so that the results of all shards can be merged and paged.
+	 * @return
+	 */
+	public String buildShardQueryString() throws MalformedURLException, UnsupportedEncodingException {
+	    return this.buildQueryString(true);
+	}
+	
+	private String buildQueryString(final boolean shard) throws MalformedURLException, UnsupportedEncodingException {
 			
+	    final StringBuilder[] buffers = getBuffers();
 	    // q=... AND .... AND
-	    final List<String> qs = new ArrayList<String>();
+	    final StringBuilder q = buffers[0];
 	    // fq=name1:value1&fq=name2:value2
-	    final StringBuilder fq = new StringBuilder("");
-	    // facet=true&facet.field=...&facet.field=...
-	    final StringBuilder ff = new StringBuilder("");
-        // &fl=...&fl=...
-	    final StringBuilder fl = new StringBuilder("");
+	    final StringBuilder fq = buffers[1];
+	    // the full query string
+	    final StringBuilder sb = buffers[2];
 	    	    
 		// search input query --> q=....
 		if (StringUtils.hasText(input.getQuery())) {
-			qs.add( URLEncoder.encode(input.getQuery().trim(), "UTF-8") );
+			encode(input.getQuery().trim(), q);
 		}
 		
-		// from,to --> q="timestamp:[2010-10-19T22:00:00Z TO NOW]"
+		// range constraints are sent as filter queries (which are cached by Solr, and do not affect the score)
+		
+		// from,to --> fq=_timestamp:[2010-10-19T22:00:00Z TO NOW]
         // note: these special fields must be processed together
 		if (StringUtils.hasText(input.getFrom()) || StringUtils.hasText(input.getTo())) {
 		    // set both defaults to "*"
 		    if (!StringUtils.hasText(input.getFrom())) input.setFrom("*");
 		    if (!StringUtils.hasText(input.getTo())) input.setTo("*");
-		    qs.add( QueryParameters.FIELD_TIMESTAMP_+URLEncoder.encode(":["+input.getFrom()+" TO "+input.getTo()+"]", "UTF-8") );
+		    fq.append("&fq=").append(QueryParameters.FIELD_TIMESTAMP_).append(ENCODED_RANGE_START);
+		    encode(round(input.getFrom(), false), fq);
+		    fq.append(ENCODED_TO);
+		    encode(round(input.getTo(), true), fq);
+		    fq.append(ENCODED_RANGE_END);
 		}		
 										
+		// lat,lon,radius --> fq={!geofilt sfield=geo pt=lat,lon d=radius} (radius in meters, converted to kilometers)
+		//             or --> fq=geo:"Intersects(POINT(lon lat))" without radius
+		// note: these special fields must be processed together
+		final String lat = input.getConstraint(QueryParameters.FIELD_LAT);
+		final String lon = input.getConstraint(QueryParameters.FIELD_LON);
+		if (geoSpatial && StringUtils.hasText(lat) && StringUtils.hasText(lon)) {
+		    final String radius = input.getConstraint(QueryParameters.FIELD_RADIUS);
+		    if (StringUtils.hasText(radius)) {
+		        fq.append("&fq=").append(ENCODED_GEOFILT).append(coord(lat)).append("%2C").append(coord(lon))
+		          .append("+d%3D").append(Double.parseDouble(radius.trim())/1000).append("%7D");
+		    } else {
+		        fq.append("&fq=").append(ENCODED_INTERSECTS).append("POINT%28")
+		          .append(coord(lon)).append("+").append(coord(lat)).append("%29").append(ENCODED_INTERSECTS_END);
+		    }
+		}
+		
 		// search input constraints --> fq=facet_name:"facet_value"
-		final Map<String, List<String>> constraints = input.getConstraints();
+		// the filter queries are canonical, so that equivalent searches hit the same Solr filter cache entries:
+		// constraints sorted by name, values sorted and de-duplicated, one filter query per constraint
+		final Map<String, List<String>> constraints = canonical(input.getConstraints());
 		// experiment=1pctCO2 --> fq=experiment:"1pctCO2"
 		// experiment=1pctCO2&variable=huss --> fq=experiment:"1pctCO2"&fq=variable:"huss"
-		// experiment=1pctCO2&variable=huss&variable=clt --> fq=experiment:"1pctCO2"&fq=variable:"huss"+||+variable:"clt"
+		// experiment=1pctCO2&variable=huss&variable=clt --> fq=experiment:"1pctCO2"&fq=variable:"clt"+||+variable:"huss"
 		// experiment=1pctCO2&variable=!huss --> fq=experiment:"1pctCO2"&fq=-variable:"huss"
-		// experiment=1pctCO2&variable=!huss&variable=!clt --> fq=experiment:"1pctCO2"&fq=-variable:"huss"&fq=-variable:"clt"
+		// experiment=1pctCO2&variable=!huss&variable=!clt --> fq=experiment:"1pctCO2"&fq=-variable:"clt"+-variable:"huss"
 		// experiment=1pctCO2&variable=!huss&variable=clt --> fq=experiment:"1pctCO2"&fq=variable:"clt"&fq=-variable:"huss"
+		// id=abc --> fq={!cache=false}id:"abc"
 		String type = QueryParameters.TYPE_DATASET; // default record type
+		boolean vers = false;
 		if (!constraints.isEmpty()) {
-			for (final String name : constraints.keySet()) {
+			for (final Map.Entry<String, List<String>> constraint : constraints.entrySet()) {
+			    
+			    final String name = constraint.getKey();
+			    final List<String> values = constraint.getValue();
+			    final String value = (values.isEmpty() ? "" : values.get(0));
 			      
 			    // first process single-valued constraints
 		        if (name.equals(QueryParameters.FIELD_TYPE)) {
-		            fq.append("&fq="+URLEncoder.encode( name+":"+input.getConstraint(name), "UTF-8" ));
-		            type = input.getConstraint(name);
+		            fq.append("&fq=");
+		            encode(name, fq);
+		            fq.append(ENCODED_COLON);
+		            encode(value, fq);
+		            type = value;
 		           
 		        // boolean replica=true|false, latest=true|false
 		        } else if (  name.equals(QueryParameters.FIELD_REPLICA) 
 		        		  || name.equals(QueryParameters.FIELD_LATEST)  
 		        		  || name.equals(QueryParameters.FIELD_RETRACTED)) {   
-		            if (StringUtils.hasText(input.getConstraint(name))) {
-		                fq.append("&fq="+URLEncoder.encode( name+":"+input.getConstraint(name), "UTF-8" ));
+		            if (StringUtils.hasText(value)) {
+		                fq.append("&fq=");
+		                encode(name, fq);
+		                fq.append(ENCODED_COLON);
+		                encode(value, fq);
 		            }
 		            
-		        // start --> start <= datetime_stop --> datetime_stop:[start to *]
+		        // start --> start <= datetime_stop --> fq=datetime_stop:[start to *]
 		        } else if (name.equals(QueryParameters.FIELD_START)) { 
-		            if (StringUtils.hasText(input.getConstraint(name))) {
-		                qs.add( SolrXmlPars.FIELD_DATETIME_STOP+URLEncoder.encode(":["+input.getConstraint(name)+" TO *]", "UTF-8") );
+		            if (StringUtils.hasText(value)) {
+		                fq.append("&fq=").append(SolrXmlPars.FIELD_DATETIME_STOP).append(ENCODED_RANGE_START);
+		                encode(round(value, false), fq);
+		                fq.append(ENCODED_TO_ANY);
 		            }
 		               
-		       // stop --> datetime_start <= stop --> datetime_start:[* TO stop]
+		       // stop --> datetime_start <= stop --> fq=datetime_start:[* TO stop]
 		       } else if (name.equals(QueryParameters.FIELD_END)) {
-		            if (StringUtils.hasText(input.getConstraint(name))) {
-		                qs.add(SolrXmlPars.FIELD_DATETIME_START+URLEncoder.encode(":[* TO "+input.getConstraint(name)+"]", "UTF-8") );
+		            if (StringUtils.hasText(value)) {
+		                fq.append("&fq=").append(SolrXmlPars.FIELD_DATETIME_START).append(ENCODED_RANGE_FROM_ANY);
+		                encode(round(value, true), fq);
+		                fq.append(ENCODED_RANGE_END);
 		            }
 
 		       // max_version=20110608 --> q= ... AND ${vers}:[* TO 20110608]
@@ -208,66 +437,126 @@ public class SolrUrlBuilder {
 		       // the implicit 'field' operator transforms the string 'version' into a numerical value
 		       } else if (name.equals(QueryParameters.FIELD_MAX_VERSION) || name.equals(QueryParameters.FIELD_MIN_VERSION)) {
 		    	   
-		    	   if (StringUtils.hasText(input.getConstraint(name))) {
+		    	   if (StringUtils.hasText(value)) {
 		    		   
 		    		   if (name.equals(QueryParameters.FIELD_MAX_VERSION)) {
-		    			   qs.add( URLEncoder.encode( "${vers}:[* TO "+input.getConstraint(name)+"]", "UTF-8") );
+		    		       and(q).append(ENCODED_VERS).append(ENCODED_RANGE_FROM_ANY);
+		    		       encode(value, q);
+		    		       q.append(ENCODED_RANGE_END);
 		    		   } else {
-		    			   qs.add( URLEncoder.encode( "${vers}:["+input.getConstraint(name)+" TO *]", "UTF-8") );
+		    		       and(q).append(ENCODED_VERS).append(ENCODED_RANGE_START);
+		    		       encode(value, q);
+		    		       q.append(ENCODED_TO_ANY);
 		    		   }
 		    		   
-		    		   if (fq.indexOf("&vers=version")<0) fq.append("&vers=version"); // one time only
+		    		   if (!vers) fq.append("&vers=version"); // one time only
+		    		   vers = true;
 		    	   }
 		            
 		       } else if (name.equals(QueryParameters.FIELD_BBOX)) {
 		           
 		           // [west, south, east, north]
-		           if (StringUtils.hasText(input.getConstraint(name))) {
+		           if (StringUtils.hasText(value)) {
 		               
 		               // parse coordinate limits
-		               String bbox = input.getConstraint(name);
+		               String bbox = value;
 		               bbox = bbox.substring(1,bbox.length()-1);
 		               String[] coords = bbox.split("\\s*,\\s*");
 		               
-		               // west -> west <= east_degrees -> east_degrees:[west TO *]
-		               qs.add(SolrXmlPars.FIELD_EAST+URLEncoder.encode(":["+coords[0]+" TO *]", "UTF-8") );
+		               if (geoSpatial) {
+		                   
+		                   // fq=geo:"Intersects(ENVELOPE(west, east, north, south))"
+		                   // split boxes that cross the dateline, as done by the publisher
+		                   float west = Float.parseFloat(coords[0]);
+		                   float east = Float.parseFloat(coords[2]);
+		                   if (east < west) east += 360;
+		                   fq.append("&fq=");
+		                   boolean first = true;
+		                   for (final float[] lonRange : GeoUtils.convertLongitudeRangeto180(west, east)) {
+		                       if (!first) fq.append(ENCODED_OR);
+		                       fq.append(ENCODED_INTERSECTS).append("ENVELOPE%28")
+		                         .append(lonRange[0]).append("%2C+").append(lonRange[1]).append("%2C+")
+		                         .append(coord(coords[3])).append("%2C+").append(coord(coords[1]))
+		                         .append("%29").append(ENCODED_INTERSECTS_END);
+		                       first = false;
+		                   }
+		                   
+		               } else {
+		                   
+		                   // a single filter query for the whole box
+		                   // west -> west <= east_degrees -> east_degrees:[west TO *]
+		                   fq.append("&fq=").append(SolrXmlPars.FIELD_EAST).append(ENCODED_RANGE_START);
+		                   fq.append(coord(coords[0]));
+		                   fq.append(ENCODED_TO_ANY);
 		               
-		               // south -> south <= north_degrees -> north_degrees:[south TO *]
-		               qs.add(SolrXmlPars.FIELD_NORTH+URLEncoder.encode(":["+coords[1]+" TO *]", "UTF-8") );
+		                   // south -> south <= north_degrees -> north_degrees:[south TO *]
+		                   fq.append(ENCODED_AND).append(SolrXmlPars.FIELD_NORTH).append(ENCODED_RANGE_START);
+		                   fq.append(coord(coords[1]));
+		                   fq.append(ENCODED_TO_ANY);
 		               
-		               // east -> west_degrees <= east -> west_degrees:[* TO east]
-		               qs.add(SolrXmlPars.FIELD_WEST+URLEncoder.encode(":[* TO "+coords[2]+"]", "UTF-8") );
+		                   // east -> west_degrees <= east -> west_degrees:[* TO east]
+		                   fq.append(ENCODED_AND).append(SolrXmlPars.FIELD_WEST).append(ENCODED_RANGE_FROM_ANY);
+		                   fq.append(coord(coords[2]));
+		                   fq.append(ENCODED_RANGE_END);
 		               
-		               // north -> south_degrees <= north --> south_degrees:[* TO north]
-		               qs.add(SolrXmlPars.FIELD_SOUTH+URLEncoder.encode(":[* TO "+coords[3]+"]", "UTF-8") );
+		                   // north -> south_degrees <= north --> south_degrees:[* TO north]
+		                   fq.append(ENCODED_AND).append(SolrXmlPars.FIELD_SOUTH).append(ENCODED_RANGE_FROM_ANY);
+		                   fq.append(coord(coords[3]));
+		                   fq.append(ENCODED_RANGE_END);
+		               }
 		               
 		           }
 
+		       } else if (name.equals(QueryParameters.FIELD_POLYGON)) {
+		           
+		           // lat1,lon1,lat2,lon2,... --> fq=geo:"Intersects(POLYGON((lon1 lat1, lon2 lat2, ...)))"
+		           // note: polygons require the JTS library in the Solr server
+		           if (geoSpatial && StringUtils.hasText(value)) {
+		               final String[] coords = value.trim().split("\\s*,\\s*");
+		               fq.append("&fq=").append(ENCODED_INTERSECTS).append("POLYGON%28%28");
+		               for (int i=0; i+1<coords.length; i+=2) {
+		                   if (i>0) fq.append("%2C+");
+		                   fq.append(coord(coords[i+1])).append("+").append(coord(coords[i]));
+		               }
+		               fq.append("%29%29").append(ENCODED_INTERSECTS_END);
+		           }
+		           
+		       } else if (   name.equals(QueryParameters.FIELD_LAT) || name.equals(QueryParameters.FIELD_LON)
+		                  || name.equals(QueryParameters.FIELD_RADIUS)) {
+		           // do nothing, already processed
+		           
 		       } else if ( name.equals(QueryParameters.FROM) || name.equals(QueryParameters.TO) ) {
 		           // do nothing, already processed
 		            
 		        // all other multi-valued constraints, positive and negative
+		        // (note that the values of a constraint are either all positive, or all negative)
+		        } else if (name.endsWith("!")) {
+		            
+		            // exclude all values in the same filter query (a purely negative query)
+		            final String _name = name.substring(0, name.length()-1 ); // remove trailing '!'
+		            filter(_name, fq);
+		            boolean first = true;
+		            for (final String val : canonical(values)) {
+		                if (!first) fq.append('+');
+		                fq.append('-');
+		                encode(_name, fq);
+		                fq.append(ENCODED_COLON);
+		                quote(val, fq);
+		                first = false;
+		            }
+		            
 		        } else {
 		            
-			        StringBuilder yesClause = new StringBuilder("");
-			        StringBuilder noClause = new StringBuilder("");
-    				for (final String value : constraints.get(name)) {	
-    				    String val = quote(value);
-    				    if (name.endsWith("!")) {
-    				        String _name = name.substring(0, name.length()-1 ); // remove trailing '!'
-    				        noClause.append("&fq=-").append(URLEncoder.encode( _name+":"+val,"UTF-8" ));
-    				    } else {
-    				        // combine multiple values for the same facet in logical "OR"
-    				        if (yesClause.length()==0) {
-    				            yesClause.append("&fq=");
-    				        } else {
-    				            yesClause.append(URLEncoder.encode(" || ", "UTF-8"));
-    				        }
-    				        yesClause.append( URLEncoder.encode( name+":"+val,"UTF-8" ) );
-    				    }
-    				}
-    				if (yesClause.length()>0) fq.append(yesClause);
-    				if (noClause.length()>0) fq.append(noClause);
+		            // combine multiple values for the same facet in logical "OR"
+		            filter(name, fq);
+		            boolean first = true;
+		            for (final String val : canonical(values)) {
+		                if (!first) fq.append(ENCODED_OR);
+		                encode(name, fq);
+		                fq.append(ENCODED_COLON);
+		                quote(val, fq);
+		                first = false;
+		            }
 				
 		        }
 		        
@@ -276,50 +565,75 @@ public class SolrUrlBuilder {
 		}
 		
 	    // if no text constraint -> use '*'
-        if (qs.isEmpty()) qs.add(URLEncoder.encode("*:*", "UTF-8"));      
+        if (q.length()==0) q.append(ENCODED_ALL);
         
-        // &facet.field=...&facet.field=...
+        // compose query string
+        sb.append("indent=true");
+        
+        // q=...
+        sb.append("&q=").append(q);
+        
+        // fq
+        sb.append(fq);
+        
+        // collapse --> one record per group (on each shard), the group head being the record with the highest rank
+        // &fq={!collapse field=master_id max="sum(if(latest,4,0),if(termfreq(data_node,'...'),2,0),if(replica,0,1))" nullPolicy=expand}
+        // (records without a value for the field are not collapsed)
+        if (StringUtils.hasText(input.getCollapse())) {
+            sb.append("&fq=");
+            encode("{!collapse field="+input.getCollapse()
+                   +" max=\""+getCollapseFunction(input.getCollapse(), collapseDataNode)+"\" nullPolicy=expand}", sb);
+        }
+        
+        // &facet.field=...&facet.field=...&facet.mincount=1
+        // (facet values that match no record are never returned)
         if (this.facets!=null) {
-            ff.append("&facet=true");
+            sb.append("&facet=true");
             for (final String facet : this.facets) {
-                ff.append("&facet.field=").append( URLEncoder.encode(facet, UTF8 ));
+                sb.append("&facet.field=");
+                encode(facet, sb);
             }
+            sb.append("&facet.mincount=1");
+            this.setFacetOptions(shard, sb);
         }
         
         // &fl=...&fl=...
+        // (sorted, as the order of the fields in the response does not depend on it)
         if (!input.getFields().isEmpty()) {
-            fl.append("&fl=");
-            for (String field : input.getFields()) {
-                fl.append(field+",");
+            sb.append("&fl=");
+            for (String field : new TreeSet<String>(input.getFields())) {
+                sb.append(field).append(',');
+            }
+            // the shards of a federated search return the fields needed to merge and collapse across shards
+            if (shard) {
+                for (final String field : getMergeFields(input)) {
+                    sb.append(field).append(',');
+                }
             }
             // always return score
-            fl.append("score");
-        }
-        
-        // compose query string
-        final StringBuilder sb = new StringBuilder("indent=true");
-        
-        // q=...
-        sb.append("&q=");
-        boolean first = true;
-        for (final String q : qs) {
-            if (!first) sb.append(URLEncoder.encode(" AND ","UTF-8"));
-            sb.append(q);
-            first = false;
+            sb.append("score");
+        } else if (shard) {
+            // the score is needed to merge the results of the shards
+            sb.append("&fl=*%2Cscore");
         }
-        // fq, ff, fl
-        sb.append(fq).append(ff).append(fl);
         
         // &start=...&rows=...
-        sb.append("&start=").append(input.getOffset())
-          .append("&rows=").append(input.getLimit());
+        // (when paging with a cursor, the start must be 0)
+        // (each shard of a federated search returns all the records up to the requested page)
+        final boolean cursor = StringUtils.hasText(input.getCursor());
+        if (shard) {
+            sb.append("&start=0&rows=").append(input.getOffset()+input.getLimit());
+        } else {
+            sb.append("&start=").append(cursor ? 0 : input.getOffset())
+              .append("&rows=").append(input.getLimit());
+        }
                 
         // distributed search
         // only attach shards if available, otherwise default to local search
         // &shards=localhost:8983/solr/datasets
         //if (input.isDistrib()) sb.append("&qt=/distrib");
-        if (LOG.isInfoEnabled()) LOG.info("Search distrib="+input.isDistrib()+" shards size="+input.getShards().size()+" default shards size="+this.defaultShards.size());
-        if (input.isDistrib()) {
+        if (LOG.isDebugEnabled()) LOG.debug("Search distrib="+(input.isDistrib() && this.distrib)+" shards size="+input.getShards().size()+" default shards size="+this.defaultShards.size());
+        if (input.isDistrib() && this.distrib && !shard) {
             
             // use provided shards
             if (input.getShards().size()>0) {
@@ -330,6 +644,13 @@ public class SolrUrlBuilder {
                 setShards(this.defaultShards, this.getCore(), sb);
                 
             }
+            
+            // partial results: &shards.tolerant=true&timeAllowed=...
+            // (a cursor cannot skip results, as following pages would be inconsistent)
+            if (input.getShards().size()>0 || this.defaultShards.size()>0) {
+                if (this.tolerant) sb.append("&shards.tolerant=true");
+                if (this.timeAllowed>0 && !cursor) sb.append("&timeAllowed=").append(this.timeAllowed);
+            }
         }
         
         // return type
@@ -340,25 +661,193 @@ public class SolrUrlBuilder {
         }
         
         // if requested, sort records by timestamp descending
+        // (the cursor, and the merge of the shards of a federated search, require the unique key as tie-breaker)
         if (input.isSort()) {
-            sb.append("&sort="+URLEncoder.encode(QueryParameters.FIELD_TIMESTAMP_+" desc","UTF-8"));
+            if (cursor || shard) {
+                sb.append("&sort=").append(ENCODED_SORT_TIMESTAMP_ID);
+            } else {
+                sb.append("&sort=").append(ENCODED_SORT_TIMESTAMP);
+            }
         // otherwise by default sort Files by id ascending
         } else {
-        	if (type.equals(QueryParameters.TYPE_FILE)) {
-        		sb.append("&sort="+URLEncoder.encode(QueryParameters.FIELD_ID+" asc","UTF-8"));
+        	if (type.equals(QueryParameters.TYPE_FILE) || cursor) {
+        		sb.append("&sort=").append(ENCODED_SORT_ID);
         	}
         }
         
+        // &cursorMark=...
+        if (cursor) {
+            sb.append("&cursorMark=");
+            encode(input.getCursor(), sb);
+        }
+        
         final String queryString = sb.toString();
-		if (LOG.isInfoEnabled()) LOG.info("Select Query String: "+queryString);
+		if (LOG.isDebugEnabled()) LOG.debug("Select Query String: "+queryString);
 		return queryString;
 		
 	}
 	
-	private String quote(String s) {
-	    if (!s.startsWith("\"")) s = "\"" +s;
-	    if (!s.endsWith("\"")) s = s + "\"";
-	    return s;
+	/**
+	 * Method to return the function that ranks the records of a collapsed group, the highest ranking record being kept:
+	 * the latest version first (if collapsing versions on master_id), then the records of the preferred data node (if any), 
+	 * then the original records before their replicas. The same rank is computed by {@link FederatedSearch} across shards.
+	 * 
+	 * @param collapse : the field used to collapse the results
+	 * @param dataNode : the preferred data node, or empty for none
+	 * @return
+	 */
+	static String getCollapseFunction(final String collapse, final String dataNode) {
+	    
+	    final StringBuilder f = new StringBuilder("sum(");
+	    if (collapse.equals(QueryParameters.FIELD_MASTER_ID)) {
+	        f.append("if(").append(QueryParameters.FIELD_LATEST).append(",4,0),");
+	    }
+	    if (StringUtils.hasText(dataNode)) {
+	        f.append("if(termfreq(").append(QueryParameters.FIELD_DATA_NODE).append(",'").append(dataNode).append("'),2,0),");
+	    }
+	    f.append("if(").append(QueryParameters.FIELD_REPLICA).append(",0,1))");
+	    return f.toString();
+	    
+	}
+	
+	/**
+	 * Method to append the quoted and URL-encoded value of a constraint,
+	 * adding leading and trailing quotes if not already present.
+	 */
+	private static void quote(final String s, final StringBuilder sb) throws UnsupportedEncodingException {
+	    if (!s.startsWith("\"")) sb.append(ENCODED_QUOTE);
+	    encode(s, sb);
+	    if (!s.endsWith("\"")) sb.append(ENCODED_QUOTE);
+	}
+	
+	/**
+	 * Method to format a geo-spatial coordinate, which must be a number.
+	 */
+	private static String coord(final String value) {
+	    return Double.toString(Double.parseDouble(value.trim()));
+	}
+	
+	/**
+	 * Method to round a relative date (e.g. "NOW-1DAY") to the configured unit (e.g. "NOW/HOUR-1DAY"),
+	 * down for a lower bound and up for an upper bound (e.g. "NOW/HOUR+1HOUR").
+	 * Absolute dates, and relative dates that are already rounded, are returned unchanged.
+	 */
+	private String round(final String date, final boolean upper) {
+	    
+	    if (!StringUtils.hasText(dateRounding) || !date.startsWith(NOW) || date.indexOf('/')>=0) return date;
+	    final String rounded = NOW+"/"+dateRounding+date.substring(NOW.length());
+	    return upper ? rounded+"+1"+dateRounding : rounded;
+	    
+	}
+	
+	/**
+	 * Method to start a new filter query on a field,
+	 * which is not cached by Solr if the field has too many distinct values for the filter to be reused.
+	 */
+	private static void filter(final String name, final StringBuilder fq) {
+	    fq.append("&fq=");
+	    if (QueryParameters.UNCACHED_FILTER_FIELDS.contains(name)) fq.append(ENCODED_NO_CACHE);
+	}
+	
+	/**
+	 * Method to return the constraints sorted by name.
+	 */
+	private static Map<String, List<String>> canonical(final Map<String, List<String>> constraints) {
+	    return constraints.size()>1 ? new TreeMap<String, List<String>>(constraints) : constraints;
+	}
+	
+	/**
+	 * Method to return the values of a constraint sorted and without duplicates.
+	 */
+	private static Collection<String> canonical(final List<String> values) {
+	    return values.size()>1 ? new TreeSet<String>(values) : values;
+	}
+	
+	/**
+	 * Method to append the options of the returned facet values, for each facet (including the options requested for all facets):
+	 * &f.<facet>.facet.limit=...&f.<facet>.facet.offset=...&f.<facet>.facet.sort=...
+	 * The global options (&facet.limit=...) are never used, as the /select handler sets them as invariants
+	 * that cannot be overridden by the request.
+	 * For a shard of a federated search, the facet values are requested up to the end of the requested page of each facet
+	 * (from offset 0, all values if no limit is requested), in the requested (or default) order, so that they can be merged and paged.
+	 */
+	private void setFacetOptions(final boolean shard, final StringBuilder sb) throws UnsupportedEncodingException {
+	    
+	    for (final String facet : this.facets) {
+	        final String limit = input.getFacetOption(facet, QueryParameters.FACET_OPTION_LIMIT);
+	        final String offset = input.getFacetOption(facet, QueryParameters.FACET_OPTION_OFFSET);
+	        final String sort = input.getFacetOption(facet, QueryParameters.FACET_OPTION_SORT);
+	        if (shard) {
+	            final int _limit = (limit!=null ? Integer.parseInt(limit) : SOLR_FACET_LIMIT);
+	            final int _offset = (offset!=null ? Integer.parseInt(offset) : 0);
+	            facetOption(facet, QueryParameters.FACET_OPTION_LIMIT, String.valueOf(_limit<0 ? _limit : _offset+_limit), sb);
+	            facetOption(facet, QueryParameters.FACET_OPTION_SORT, (sort!=null ? sort : SOLR_FACET_SORT), sb);
+	        } else {
+	            if (limit!=null) facetOption(facet, QueryParameters.FACET_OPTION_LIMIT, limit, sb);
+	            if (offset!=null) facetOption(facet, QueryParameters.FACET_OPTION_OFFSET, offset, sb);
+	            if (sort!=null) facetOption(facet, QueryParameters.FACET_OPTION_SORT, sort, sb);
+	        }
+	    }
+	    
+	}
+	
+	private static void facetOption(final String facet, final String option, final String value, final StringBuilder sb) throws UnsupportedEncodingException {
+	    
+	    sb.append("&f.");
+	    encode(facet, sb);
+	    sb.append(".facet.").append(option).append('=');
+	    encode(value, sb);
+	    
+	}
+	
+	/**
+	 * Method to start a new clause of the main query, joined to the previous ones by "AND".
+	 */
+	private static StringBuilder and(final StringBuilder q) {
+	    if (q.length()>0) q.append(ENCODED_AND);
+	    return q;
+	}
+	
+	/**
+	 * Method to append the URL-encoded form of a string,
+	 * identical to the result of URLEncoder.encode(s, "UTF-8") but without intermediate objects for ASCII strings.
+	 */
+	static void encode(final String s, final StringBuilder sb) throws UnsupportedEncodingException {
+	    
+	    final int n = s.length();
+	    for (int i=0; i<n; i++) {
+	        final char c = s.charAt(i);
+	        if ((c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9') || c=='.' || c=='-' || c=='*' || c=='_') {
+	            sb.append(c);
+	        } else if (c==' ') {
+	            sb.append('+');
+	        } else if (c<0x80) {
+	            sb.append('%').append(HEX_DIGITS[c>>4]).append(HEX_DIGITS[c&0xF]);
+	        } else {
+	            // non-ASCII characters must be encoded as UTF-8 bytes
+	            sb.append(URLEncoder.encode(s.substring(i), UTF8));
+	            return;
+	        }
+	    }
+	    
+	}
+	
+	/**
+	 * Method to return the buffers used by the current thread to compose the query string, after clearing them.
+	 * Buffers that grew too large for an exceptionally long query are not kept.
+	 */
+	private static StringBuilder[] getBuffers() {
+	    
+	    final StringBuilder[] buffers = BUFFERS.get();
+	    for (int i=0; i<buffers.length; i++) {
+	        if (buffers[i].capacity()>MAX_BUFFER_SIZE) {
+	            buffers[i] = new StringBuilder(BUFFER_SIZE);
+	        } else {
+	            buffers[i].setLength(0);
+	        }
+	    }
+	    return buffers;
+	    
 	}
 	
 	private void setShards(final Set<String> shards, final String core, final StringBuilder sb) {
@@ -39,6 +39,7 @@ public class SolrXmlPars {
 	final public static String ELEMENT_INT = "int";
 	final public static String ELEMENT_STR = "str";
 	final public static String ELEMENT_ARR = "arr";
+	final public static String ELEMENT_BOOL = "bool";
 	final public static String ELEMENT_DELETE = "delete";
 	final public static String ELEMENT_ID = "id";
 	final public static String ELEMENT_QUERY = "query";
@@ -53,6 +54,9 @@ public class SolrXmlPars {
 	final public static String ATTRIBUTE_NUM_FOUND = "numFound";
 	final public static String ATTRIBUTE_START = "start";
 	final public static String ATTRIBUTE_VALUE_RESPONSE = "response";
+	final public static String ATTRIBUTE_VALUE_NEXT_CURSOR_MARK = "nextCursorMark";
+	final public static String ATTRIBUTE_VALUE_RESPONSE_HEADER = "responseHeader";
+	final public static String ATTRIBUTE_VALUE_PARTIAL_RESULTS = "partialResults";
 	
 	// field names: physical data
 	final public static String FIELD_PROJECT = "project";
@@ -19,6 +19,7 @@
 package esg.search.query.impl.solr;
 
 import java.io.IOException;
+import java.util.Properties;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
@@ -50,6 +51,23 @@ public class SolrXmlParser {
 		xmlParser = new XmlParser(false);
 	}
 	
+	/**
+	 * Factory method that returns the parser selected by the configuration property "index.xml.parser":
+	 * the streaming parser by default, or this tree-based parser if the property is set to "jdom".
+	 * 
+	 * @param props
+	 * @return
+	 */
+	public static SolrXmlParser getInstance(final Properties props) {
+		
+		if (props!=null && QueryParameters.XML_PARSER_JDOM.equalsIgnoreCase(props.getProperty(QueryParameters.PROPERTY_XML_PARSER))) {
+			return new SolrXmlParser();
+		} else {
+			return new SolrXmlStreamParser();
+		}
+		
+	}
+	
 	/**
 	 * Method to parse a Solr XML output document into record and facet objects.
 	 * Either the results or the facets section of the document can be processed, or both.
@@ -72,6 +90,27 @@ public class SolrXmlParser {
 		// parse facets
 		parseFacets(root, input, output);
 		
+		// parse cursor to next page: <str name="nextCursorMark">...</str>
+		for (final Object strEl : root.getChildren(SolrXmlPars.ELEMENT_STR)) {
+			final Element _strEl = (Element)strEl;
+			if (SolrXmlPars.ATTRIBUTE_VALUE_NEXT_CURSOR_MARK.equals(_strEl.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) {
+				output.setNextCursor(_strEl.getTextNormalize());
+			}
+		}
+		
+		// parse partial results flag: <lst name="responseHeader">...<bool name="partialResults">true</bool></lst>
+		for (final Object lstEl : root.getChildren(SolrXmlPars.ELEMENT_LST)) {
+			final Element _lstEl = (Element)lstEl;
+			if (SolrXmlPars.ATTRIBUTE_VALUE_RESPONSE_HEADER.equals(_lstEl.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) {
+				for (final Object boolEl : _lstEl.getChildren(SolrXmlPars.ELEMENT_BOOL)) {
+					final Element _boolEl = (Element)boolEl;
+					if (SolrXmlPars.ATTRIBUTE_VALUE_PARTIAL_RESULTS.equals(_boolEl.getAttributeValue(SolrXmlPars.ATTRIBUTE_NAME))) {
+						output.setPartial(Boolean.parseBoolean(_boolEl.getTextNormalize()));
+					}
+				}
+			}
+		}
+		
 		return output;
 		
 	}
@@ -218,7 +257,19 @@ public class SolrXmlParser {
 	
 	private void parseElement(final String fieldName, final Element element, final Record record) {
 		
-		final String value = element.getTextNormalize();
+		parseElement(fieldName, element.getTextNormalize(), record);
+		
+	}
+	
+	/**
+	 * Method to set a single (normalized) field value into a Record object.
+	 * 
+	 * @param fieldName
+	 * @param value
+	 * @param record
+	 */
+	void parseElement(final String fieldName, final String value, final Record record) {
+		
 		if (fieldName.equals(QueryParameters.FIELD_ID)) {
 			record.setId(value);
 		} else if (fieldName.equals(QueryParameters.FIELD_VERSION)) {
@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Text;
+
+import esg.search.core.Record;
+import esg.search.core.RecordImpl;
+import esg.search.query.api.Facet;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchOutput;
+
+/**
+ * Subclass of {@link SolrXmlParser} that parses Solr XML documents with a StAX event reader,
+ * populating the records and facets of the {@link SearchOutput} in a single pass
+ * without building an intermediate JDOM tree.
+ * 
+ * The output is identical to the one produced by the superclass: 
+ * same records, fields, values (whitespace-normalized) and facet counts, in the same order.
+ */
+public class SolrXmlStreamParser extends SolrXmlParser {
+    
+    /**
+     * Thread-safe factory, shared by all parser instances.
+     */
+    private final static XMLInputFactory factory = XMLInputFactory.newInstance();
+    
+    static {
+        // Solr documents have no DTD, no namespaces
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SearchOutput parse(final String xml, final SearchInput input) throws IOException {
+        
+        final SearchOutput output = new SearchOutputImpl();
+        
+        try {
+            
+            final XMLStreamReader reader = factory.createXMLStreamReader(new StringReader(xml));
+            
+            try {
+                
+                // move to root element
+                reader.nextTag();
+                
+                // loop over top-level elements
+                while (nextChild(reader)) {
+                    
+                    final String elName = reader.getLocalName();
+                    final String nameAttValue = reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_NAME);
+                    
+                    // <result name="response" numFound="..." start="0">
+                    if (elName.equals(SolrXmlPars.ELEMENT_RESULT) && SolrXmlPars.ATTRIBUTE_VALUE_RESPONSE.equals(nameAttValue)) {
+                        parseResults(reader, output);
+                    
+                    // <lst name="facet_counts">
+                    } else if (elName.equals(SolrXmlPars.ELEMENT_LST) && SolrXmlPars.ELEMENT_FACET_COUNTS.equals(nameAttValue)) {
+                        parseFacets(reader, input, output);
+                        
+                    // <str name="nextCursorMark">
+                    } else if (elName.equals(SolrXmlPars.ELEMENT_STR) && SolrXmlPars.ATTRIBUTE_VALUE_NEXT_CURSOR_MARK.equals(nameAttValue)) {
+                        output.setNextCursor(Text.normalizeString(getText(reader)));
+                        
+                    // <lst name="responseHeader">
+                    } else if (elName.equals(SolrXmlPars.ELEMENT_LST) && SolrXmlPars.ATTRIBUTE_VALUE_RESPONSE_HEADER.equals(nameAttValue)) {
+                        parseHeader(reader, output);
+                        
+                    } else {
+                        skip(reader);
+                    }
+                    
+                }
+                
+            } finally {
+                reader.close();
+            }
+            
+        } catch(XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        
+        return output;
+        
+    }
+    
+    /**
+     * Method to parse the <lst name="responseHeader"> element, looking for the partial results flag.
+     * On return the reader is positioned on the element end tag.
+     */
+    private void parseHeader(final XMLStreamReader reader, final SearchOutput output) throws XMLStreamException {
+        
+        while (nextChild(reader)) {
+            if (reader.getLocalName().equals(SolrXmlPars.ELEMENT_BOOL) 
+                && SolrXmlPars.ATTRIBUTE_VALUE_PARTIAL_RESULTS.equals(reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_NAME))) {
+                output.setPartial(Boolean.parseBoolean(Text.normalizeString(getText(reader))));
+            } else {
+                skip(reader);
+            }
+        }
+        
+    }
+    
+    /**
+     * Method to parse the <result name="response"> element into records.
+     * On return the reader is positioned on the element end tag.
+     */
+    private void parseResults(final XMLStreamReader reader, final SearchOutput output) throws XMLStreamException {
+        
+        output.setCounts(Integer.parseInt(reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_NUM_FOUND)));
+        output.setOffset(Integer.parseInt(reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_START)));
+        
+        while (nextChild(reader)) {
+            if (reader.getLocalName().equals(SolrXmlPars.ELEMENT_DOC)) {
+                output.addResult(parseDoc(reader));
+            } else {
+                skip(reader);
+            }
+        }
+        
+    }
+    
+    /**
+     * Method to parse a <doc> element into a Record object.
+     * On return the reader is positioned on the element end tag.
+     */
+    private Record parseDoc(final XMLStreamReader reader) throws XMLStreamException {
+        
+        final Record record = new RecordImpl();
+        
+        while (nextChild(reader)) {
+            
+            final String elName = reader.getLocalName();
+            final String nameAttValue = reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_NAME);
+            
+            // multi-valued field
+            // <arr name="...">....</arr>
+            if (elName.equals(SolrXmlPars.ELEMENT_ARR)) {
+                while (nextChild(reader)) {
+                    parseElement(nameAttValue, Text.normalizeString(getText(reader)), record);
+                }
+                
+            // single-valued field
+            } else {
+                parseElement(nameAttValue, Text.normalizeString(getText(reader)), record);
+            }
+            
+        }
+        
+        return record;
+        
+    }
+    
+    /**
+     * Method to parse the <lst name="facet_counts"> element into facets.
+     * On return the reader is positioned on the element end tag.
+     */
+    private void parseFacets(final XMLStreamReader reader, final SearchInput input, final SearchOutput output) throws XMLStreamException {
+        
+        while (nextChild(reader)) {
+            
+            // <lst name="facet_fields">
+            if (reader.getLocalName().equals(SolrXmlPars.ELEMENT_LST) 
+                && SolrXmlPars.ELEMENT_FACET_FIELDS.equals(reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_NAME))) {
+                
+                // <lst name="project">
+                while (nextChild(reader)) {
+                    
+                    if (!reader.getLocalName().equals(SolrXmlPars.ELEMENT_LST)) {
+                        skip(reader);
+                        continue;
+                    }
+                    
+                    final String facetName = reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_NAME);
+                    final Facet facet = new FacetImpl(facetName, facetName, "");
+                    
+                    // <int name="AIRS">4</int>
+                    while (nextChild(reader)) {
+                        
+                        if (!reader.getLocalName().equals(SolrXmlPars.ELEMENT_INT)) {
+                            skip(reader);
+                            continue;
+                        }
+                        
+                        final String subFacetName = reader.getAttributeValue(null, SolrXmlPars.ATTRIBUTE_NAME);
+                        final int subFacetCounts = Integer.parseInt(getText(reader));
+                        if (subFacetCounts>0) {
+                            
+                            // facet not constrained -> retrieve all options from XML response
+                            if (!input.getConstraints().containsKey(facetName)
+                                // constrained facet -> retrieve only selected option
+                                || input.getConstraints().get(facetName).get(0).equals(subFacetName)) {
+                                final Facet subFacet = new FacetImpl(subFacetName, subFacetName, "");
+                                subFacet.setCounts(subFacetCounts);
+                                facet.addSubFacet( subFacet );
+                            }
+                        }
+                        
+                    }
+                    
+                    output.addFacet(facetName, facet);
+                    
+                }
+                
+            } else {
+                skip(reader);
+            }
+            
+        }
+        
+    }
+    
+    /**
+     * Method to advance the reader to the start tag of the next child of the current element.
+     * 
+     * @return true if a child element was found, false if the end tag of the current element was reached.
+     */
+    private static boolean nextChild(final XMLStreamReader reader) throws XMLStreamException {
+        
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event==XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event==XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+        
+    }
+    
+    /**
+     * Method to return the text content of the current element (not including the text of any nested element).
+     * On return the reader is positioned on the element end tag.
+     */
+    private static String getText(final XMLStreamReader reader) throws XMLStreamException {
+        
+        String text = null;
+        StringBuilder sb = null;
+        
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event==XMLStreamConstants.CHARACTERS || event==XMLStreamConstants.CDATA || event==XMLStreamConstants.SPACE) {
+                // avoid copying when the text is delivered as a single event
+                if (text==null) {
+                    text = reader.getText();
+                } else {
+                    if (sb==null) sb = new StringBuilder(text);
+                    sb.append(reader.getText());
+                }
+            } else if (event==XMLStreamConstants.START_ELEMENT) {
+                skip(reader);
+            } else if (event==XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        
+        return (sb!=null ? sb.toString() : (text!=null ? text : ""));
+        
+    }
+    
+    /**
+     * Method to skip the current element and all its content.
+     * On return the reader is positioned on the element end tag.
+     */
+    private static void skip(final XMLStreamReader reader) throws XMLStreamException {
+        
+        int depth = 1;
+        while (depth>0 && reader.hasNext()) {
+            final int event = reader.next();
+            if (event==XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event==XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        
+    }
+
+}
@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.ws.rest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+
+import esg.search.utils.DaemonThreadFactory;
+import esg.search.utils.HttpStatusException;
+
+/**
+ * Class that processes HTTP requests asynchronously (Servlet 3.0), on a bounded pool of threads
+ * dedicated to one kind of request. The container thread is released as soon as the request is dispatched,
+ * so that long running requests (for example, wget scripts for many files) cannot use up the container pool
+ * and stall the other requests.
+ *
+ * Requests are rejected with HTTP status 503 when all threads are busy and the queue is full,
+ * when they have not completed within the configured timeout (if any),
+ * or when the search service itself rejects them because it is saturated.
+ * A request that times out, or whose client goes away, is completed by the container thread while the processing thread
+ * may still be writing the response: the handler writes to a response that rejects all writes once the request is completed
+ * (as the container may then recycle the response for another request), so that the processing thread fails on its next write
+ * and releases its search.
+ * If asynchronous processing is disabled, or not supported by the servlet container or by the filter chain,
+ * requests are processed in the calling thread.
+ */
+@ManagedResource(description="Asynchronous processing of HTTP requests")
+public class AsyncRequestExecutor {
+
+    /**
+     * Callback that processes a request.
+     */
+    interface RequestHandler {
+        /**
+         * @param response : the response to write to 
+         *                   (in asynchronous mode, a response that rejects writes once the request is completed)
+         */
+        void handle(HttpServletResponse response) throws Exception;
+    }
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Maximum processing time of a request in milliseconds (0 for no timeout).
+     */
+    private final long timeout;
+
+    /**
+     * Flag to process requests asynchronously.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Statistics.
+     */
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong timedOut = new AtomicLong(0);
+
+    private final Log LOG = LogFactory.getLog(this.getClass());
+
+    /**
+     * @param name : name of the processing threads
+     * @param threads : maximum number of requests processed concurrently
+     * @param queueSize : maximum number of requests waiting for a thread
+     * @param timeout : maximum processing time of a request in milliseconds (0 for no timeout)
+     */
+    public AsyncRequestExecutor(final String name, final int threads, final int queueSize, final long timeout) {
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                               new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+                                               new DaemonThreadFactory(name));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeout = timeout;
+
+        if (LOG.isInfoEnabled()) LOG.info("Asynchronous requests: name="+name+" threads="+threads
+                                         +" queue size="+queueSize+" timeout="+timeout);
+
+    }
+
+    /**
+     * Method to process a request, asynchronously if possible.
+     * In asynchronous mode, this method returns as soon as the request is dispatched,
+     * and the response is completed when the handler returns.
+     *
+     * @param request
+     * @param response
+     * @param handler
+     * @throws Exception : only thrown in synchronous mode
+     */
+    void execute(final HttpServletRequest request, final HttpServletResponse response,
+                 final RequestHandler handler) throws Exception {
+
+        if (!enabled || !request.isAsyncSupported() || request.isAsyncStarted()) {
+            handle(response, handler);
+            return;
+        }
+
+        final AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(timeout);
+        final AsyncRequest asyncRequest = new AsyncRequest(context, handler);
+        context.addListener(asyncRequest);
+
+        try {
+            // propagate the security context of the container thread
+            asyncRequest.future = executor.submit(new DelegatingSecurityContextRunnable(asyncRequest));
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            asyncRequest.complete(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                  "Too many concurrent requests, please try again later");
+        }
+
+    }
+
+    /**
+     * Method to process a request synchronously, in the container thread.
+     * As for asynchronous requests, a saturated search service is reported to the client with an HTTP status 503,
+     * and an invalid search with its HTTP status 4xx (if the response was not committed yet), 
+     * instead of being handled by the container as an internal error.
+     *
+     * @param response
+     * @param handler
+     * @throws Exception : any other error
+     */
+    static void handle(final HttpServletResponse response, final RequestHandler handler) throws Exception {
+
+        try {
+            handler.handle(response);
+        } catch (HttpStatusException e) {
+            if ((e.getStatus()==HttpServletResponse.SC_SERVICE_UNAVAILABLE || e.isClientError()) && !response.isCommitted()) {
+                response.sendError(e.getStatus(), e.getMessage());
+            } else {
+                throw e;
+            }
+        }
+
+    }
+
+    /**
+     * Method to stop the processing threads.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute(description="Whether requests are processed asynchronously")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description="Number of requests being processed")
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @ManagedAttribute(description="Number of requests waiting for a thread")
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    @ManagedAttribute(description="Number of requests processed")
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    @ManagedAttribute(description="Number of requests rejected because all threads were busy")
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @ManagedAttribute(description="Number of requests that did not complete within the timeout")
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * A request being processed asynchronously, completed either by the handler or by the container on timeout or error.
+     * The completion and the writes to the response are serialized on this object.
+     */
+    private class AsyncRequest implements Runnable, AsyncListener {
+
+        private final AsyncContext context;
+        private final RequestHandler handler;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private volatile Future<?> future;
+
+        AsyncRequest(final AsyncContext context, final RequestHandler handler) {
+            this.context = context;
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+                handler.handle(new GuardedResponse(this));
+                complete(0, null);
+            } catch (HttpStatusException e) {
+                if (e.getStatus()==HttpServletResponse.SC_SERVICE_UNAVAILABLE || e.isClientError()) {
+                    // the search service is saturated, the client should retry later (or the search is invalid)
+                    complete(e.getStatus(), e.getMessage());
+                } else {
+                    if (!completed.get()) LOG.error("Error processing request", e);
+                    complete(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+                }
+            } catch (Exception e) {
+                if (!completed.get()) LOG.error("Error processing request", e);
+                complete(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            }
+
+        }
+
+        /**
+         * Method to complete the response (only once), with an HTTP error if it was not committed yet.
+         * @param sc : HTTP status, or 0 for no error
+         * @param message
+         */
+        synchronized void complete(final int sc, final String message) {
+
+            if (completed.compareAndSet(false, true)) {
+                try {
+                    final HttpServletResponse response = (HttpServletResponse)context.getResponse();
+                    if (sc>0 && !response.isCommitted()) {
+                        LOG.warn(message);
+                        response.sendError(sc, message);
+                    }
+                } catch (IOException e) {
+                    LOG.warn(e.getMessage());
+                } finally {
+                    context.complete();
+                }
+            }
+
+        }
+
+        /**
+         * Method called (while holding the lock of this request) before any write to the response.
+         * @throws IOException if the request was completed, so that the response can no longer be used
+         */
+        void checkOpen() throws IOException {
+            if (completed.get()) throw new IOException("Request already completed");
+        }
+
+        /**
+         * On timeout, the request is completed (rejecting any further write), and the processing thread is interrupted;
+         * a processing thread blocked on I/O fails on its next write to the response.
+         */
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException {
+            timedOut.incrementAndGet();
+            if (future!=null) future.cancel(true);
+            complete(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request did not complete within "+timeout+" milliseconds");
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) throws IOException {
+            if (future!=null) future.cancel(true);
+            complete(0, null);
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) throws IOException {}
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) throws IOException {}
+
+    }
+
+    /**
+     * Response of an asynchronous request, whose output rejects all writes once the request is completed.
+     * Each write holds the lock of the request, so that the request cannot be completed during a write.
+     */
+    private static class GuardedResponse extends HttpServletResponseWrapper {
+
+        private final AsyncRequest request;
+        private ServletOutputStream out = null;
+        private PrintWriter writer = null;
+
+        GuardedResponse(final AsyncRequest request) {
+            super((HttpServletResponse)request.context.getResponse());
+            this.request = request;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            synchronized (request) {
+                request.checkOpen();
+                if (out==null) {
+                    final ServletOutputStream _out = super.getOutputStream();
+                    out = new ServletOutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            synchronized (request) {
+                                request.checkOpen();
+                                _out.write(b);
+                            }
+                        }
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            synchronized (request) {
+                                request.checkOpen();
+                                _out.write(b, off, len);
+                            }
+                        }
+                        @Override
+                        public void flush() throws IOException {
+                            synchronized (request) {
+                                request.checkOpen();
+                                _out.flush();
+                            }
+                        }
+                        @Override
+                        public void close() throws IOException {
+                            synchronized (request) {
+                                request.checkOpen();
+                                _out.close();
+                            }
+                        }
+                    };
+                }
+                return out;
+            }
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            synchronized (request) {
+                request.checkOpen();
+                if (writer==null) {
+                    final PrintWriter _writer = super.getWriter();
+                    writer = new PrintWriter(new Writer() {
+                        @Override
+                        public void write(char[] cbuf, int off, int len) throws IOException {
+                            synchronized (request) {
+                                request.checkOpen();
+                                _writer.write(cbuf, off, len);
+                            }
+                        }
+                        @Override
+                        public void flush() throws IOException {
+                            synchronized (request) {
+                                request.checkOpen();
+                                _writer.flush();
+                            }
+                        }
+                        @Override
+                        public void close() throws IOException {
+                            synchronized (request) {
+                                request.checkOpen();
+                                _writer.close();
+                            }
+                        }
+                    });
+                }
+                return writer;
+            }
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            synchronized (request) {
+                request.checkOpen();
+                super.sendError(sc, msg);
+            }
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            synchronized (request) {
+                request.checkOpen();
+                super.sendError(sc);
+            }
+        }
+
+    }
+
+}
@@ -20,8 +20,10 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
 
+import esg.common.util.ESGFProperties;
 import esg.search.query.api.FacetProfile;
 import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchOutput;
 import esg.search.query.api.SearchReturnType;
 import esg.search.query.api.SearchService;
 
@@ -52,6 +54,12 @@ public class BaseController {
      * i.e. the set of facets that can be returned to decorate the search results.
      */
     final private FacetProfile facetProfile;
+    
+    /**
+     * Flag to accept geo-spatial constraints (lat/lon/radius, polygon), 
+     * which require the "geo" field to be indexed.
+     */
+    private boolean geoSpatial = QueryParameters.DEFAULT_GEO_SPATIAL;
     		
 	private final Log LOG = LogFactory.getLog(this.getClass());
 		
@@ -61,6 +69,12 @@ public class BaseController {
 	      this.facetProfile = facetProfile;
 	}
 	
+	@Autowired(required=false)
+	public void setProperties(final @Qualifier("esgfProperties") ESGFProperties props) {
+	    if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_GEO_SPATIAL)))
+	        this.geoSpatial = Boolean.parseBoolean(props.getProperty(QueryParameters.PROPERTY_GEO_SPATIAL).trim());
+	}
+	
 	/**
 	 * Method that processes the incoming HTTP request, invokes the back-end search service,
 	 * and returns the output document in Solr/XML format.
@@ -75,6 +89,105 @@ public class BaseController {
 	String process(final HttpServletRequest request, 
             final SearchCommand command, 
             final HttpServletResponse response) throws Exception {
+	    
+	    final SearchReturnType format = this.validate(request, command, response);
+	    
+        if (format!=null && !response.isCommitted()) {
+            
+            // invoke back-end search service (HTTP request to Solr), return response document
+            final String output = searchService.query(command, format);
+            this.setSkippedShardsHeader(command, response);
+            return output;
+            
+        }
+        
+        // response error, return empty body content
+        return "";
+	    
+	}
+	
+	/**
+	 * Method that processes the incoming HTTP request, invokes the back-end search service,
+	 * and streams the output document to the HTTP response as it is received from the back-end,
+	 * without buffering it in memory. The response content type is set on the first write,
+	 * so an HTTP error can still be returned if the search fails before any content is received.
+	 * 
+	 * @param request
+	 * @param command
+	 * @param contentType
+	 * @param response
+	 * @throws Exception
+	 */
+	void stream(final HttpServletRequest request, 
+	            final SearchCommand command, 
+	            final String contentType,
+	            final HttpServletResponse response) throws Exception {
+	    
+	    final SearchReturnType format = this.validate(request, command, response);
+	    
+	    if (format!=null && !response.isCommitted()) {
+	        
+	        // invoke back-end search service (HTTP request to Solr), copy response document
+	        final ResponseOutputStream out = new ResponseOutputStream(contentType, response) {
+	            @Override
+	            void setHeaders(final HttpServletResponse response) {
+	                setSkippedShardsHeader(command, response);
+	            }
+	        };
+	        searchService.query(command, format, out);
+	        out.flush();
+	        
+	    }
+	    
+	}
+	
+	/**
+	 * Method that invokes the back-end search service for an already validated search command,
+	 * and returns the results as objects.
+	 * This method can be invoked by other controllers that need to retrieve the results in multiple pages.
+	 * 
+	 * @param command
+	 * @return
+	 * @throws Exception
+	 */
+	SearchOutput search(final SearchCommand command) throws Exception {
+	    
+	    return searchService.search(command);
+	    
+	}
+	
+	/**
+	 * Method that validates the incoming HTTP request and binds its parameters to the search command.
+	 * 
+	 * @param request
+	 * @param command
+	 * @param response
+	 * @return the requested output format, or null if the request was rejected with an HTTP error
+	 * @throws Exception
+	 */
+	SearchReturnType validate(final HttpServletRequest request, 
+	        final SearchCommand command, 
+	        final HttpServletResponse response) throws Exception {
+	    
+	    return this.validate(request, command, QueryParameters.MAX_LIMIT, response);
+	    
+	}
+	
+	/**
+	 * Method that validates the incoming HTTP request and binds its parameters to the search command,
+	 * allowing up to maxLimit records to be requested.
+	 * 
+	 * @param request
+	 * @param command
+	 * @param maxLimit
+	 * @param response
+	 * @return the requested output format, or null if the request was rejected with an HTTP error
+	 * @throws Exception
+	 */
+	SearchReturnType validate(final HttpServletRequest request, 
+	        final SearchCommand command, 
+	        final int maxLimit,
+	        final HttpServletResponse response) throws Exception {
 	    	    	    
 	    // check all HTTP parameters:
 	    //  -) reject if they contain bad characters
@@ -85,7 +198,7 @@ public class BaseController {
 	        String key = obj.toString();
 	        final Matcher keyMatcher = QueryParameters.INVALID_CHARACTERS.matcher(key);
             if (keyMatcher.matches())
-                    return sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                    return reject(HttpServletResponse.SC_BAD_REQUEST, 
                                      "Invalid character(s) detected in parameter name="+key,
                                      response);  
             
@@ -93,10 +206,10 @@ public class BaseController {
             String[] values = request.getParameterValues(key);
             for (int i=0; i<values.length; i++) {
                 final Matcher valueMatcher = QueryParameters.INVALID_CHARACTERS.matcher(values[i]);
-                if (!StringUtils.hasText(values[i])) return sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                if (!StringUtils.hasText(values[i])) return reject(HttpServletResponse.SC_BAD_REQUEST, 
                                                                "Invalid empty value for parameter="+key,
                                                                response);
-                if (valueMatcher.matches()) return sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                if (valueMatcher.matches()) return reject(HttpServletResponse.SC_BAD_REQUEST, 
                                                       "Invalid character(s) detected in parameter value="+values[i],
                                                       response); 
                                                                                   
@@ -108,21 +221,21 @@ public class BaseController {
             if (   !QueryParameters.KEYWORDS.contains(_key)
                 && !QueryParameters.CORE_QUERY_FIELDS.contains(_key)
                 && !facetProfile.getTopLevelFacets().keySet().contains(_key)) {
-                return sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid HTTP query parameter="+key, response); 
+                return reject(HttpServletResponse.SC_BAD_REQUEST, "Invalid HTTP query parameter="+key, response); 
             }
 	        
 	    }
 	            
         // keyword "limit": impose maximum count on returned results
-        if (command.getLimit()>QueryParameters.MAX_LIMIT) {
-            return sendError(HttpServletResponse.SC_BAD_REQUEST, 
-                            "Too many records requested, maximum allowed value is limit="+QueryParameters.MAX_LIMIT,
+        if (command.getLimit()>maxLimit) {
+            return reject(HttpServletResponse.SC_BAD_REQUEST, 
+                            "Too many records requested, maximum allowed value is limit="+maxLimit,
                              response);  
         }
         
         // keyword "format": check requested output format
         SearchReturnType format = SearchReturnType.forMimeType(command.getFormat());
-        if (format==null) return sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, 
+        if (format==null) return reject(HttpServletResponse.SC_NOT_IMPLEMENTED, 
                                     "Invalid requested format: "+ command.getFormat(), response);
 
 	    
@@ -141,6 +254,19 @@ public class BaseController {
             }            
         }
         
+        // keywords "facet_limit", "facet_offset", "facet_sort": &facet_limit=20,variable:100
+        final String facetError = bindFacetOptions(request, command);
+        if (facetError!=null) return reject(HttpServletResponse.SC_BAD_REQUEST, facetError, response);
+        
+        // keyword "collapse": &collapse=master_id|instance_id
+        if (StringUtils.hasText(command.getCollapse())
+            && !command.getCollapse().equals(QueryParameters.FIELD_MASTER_ID)
+            && !command.getCollapse().equals(QueryParameters.FIELD_INSTANCE_ID)) {
+            return reject(HttpServletResponse.SC_BAD_REQUEST,
+                          "Invalid "+QueryParameters.COLLAPSE+"="+command.getCollapse()+", allowed values are: "
+                          +QueryParameters.FIELD_MASTER_ID+", "+QueryParameters.FIELD_INSTANCE_ID, response);
+        }
+
         // keyword "fields": &fields=field1,field2,...
         // -) translate "*" into explicit list of standard fields
         // -) process comma-separated list from HTTP request into list of string values
@@ -173,13 +299,11 @@ public class BaseController {
             if (!QueryParameters.KEYWORDS.contains( parName.toLowerCase() )) {
              
                 // Unsupported fields
-                if (   parName.equals(QueryParameters.FIELD_LAT) 
-                    || parName.equals(QueryParameters.FIELD_LON)
-                    || parName.equals(QueryParameters.FIELD_LOCATION) 
-                    || parName.equals(QueryParameters.FIELD_RADIUS)
-                    || parName.equals(QueryParameters.FIELD_POLYGON) ) {
+                // (geo-spatial fields are only supported if the "geo" field is indexed)
+                if (   parName.equals(QueryParameters.FIELD_LOCATION) 
+                    || (!geoSpatial && QueryParameters.GEO_SPATIAL_FIELDS.contains(parName)) ) {
                     
-                    return sendError(HttpServletResponse.SC_BAD_REQUEST, "Unsupported parameter: "+parName, response);
+                    return reject(HttpServletResponse.SC_BAD_REQUEST, "Unsupported parameter: "+parName, response);
                           
                 // SINGLE-VALUED CONSTRAINTS (only parse first HTTP parameter value)
                 // &type=...
@@ -189,7 +313,8 @@ public class BaseController {
                            || parName.equals(QueryParameters.FIELD_REPLICA)
                            || parName.equals(QueryParameters.FIELD_START)
                            || parName.equals(QueryParameters.FIELD_END)
-                           || parName.equals(QueryParameters.FIELD_BBOX)) {
+                           || parName.equals(QueryParameters.FIELD_BBOX)
+                           || QueryParameters.GEO_SPATIAL_FIELDS.contains(parName)) {
                     command.setConstraint(parName, request.getParameter(parName) );
               
               
@@ -211,31 +336,131 @@ public class BaseController {
             }
         }
         
+        // geo-spatial constraints: &lat=...&lon=...[&radius=...] or &polygon=lat1,lon1,lat2,lon2,...,lat1,lon1
+        final String geoError = validateGeoSpatial(command);
+        if (geoError!=null) return reject(HttpServletResponse.SC_BAD_REQUEST, geoError, response);
+        
         // Default limit of 1000 for file queries (for generation of wget scripts)
         //if (command.getConstraint(QueryParameters.FIELD_TYPE).equals(QueryParameters.TYPE_FILE)
         //    && request.getParameter(QueryParameters.LIMIT)==null) {
         //    command.setLimit(QueryParameters.DEFAULT_LIMIT);
         //}
         
-        if (!response.isCommitted()) {
-            
-            // invoke back-end search service (HTTP request to Solr), return response document
-            return searchService.query(command, format);
-            
-        }
-        
-        // response error, return empty body content
-        return "";
+        return format;
 	    	    		
 	}
 	
+	/**
+	 * Method to check that the geo-spatial constraints are well formed:
+	 * lat and lon must be given together (radius in meters is optional), 
+	 * a polygon must be a closed ring of at least 3 distinct lat,lon points,
+	 * and a bounding box must be [west,south,east,north] with south <= north.
+	 * Latitudes must be within [-90,90], longitudes within [-180,180] 
+	 * (or [-180,360] for a bounding box, which may use the 0-360 convention and cross the dateline).
+	 * @param command
+	 * @return an error message, or null if the constraints are valid
+	 */
+	private String validateGeoSpatial(final SearchCommand command) {
+	    
+	    final String lat = command.getConstraint(QueryParameters.FIELD_LAT);
+	    final String lon = command.getConstraint(QueryParameters.FIELD_LON);
+	    final String radius = command.getConstraint(QueryParameters.FIELD_RADIUS);
+	    final String polygon = command.getConstraint(QueryParameters.FIELD_POLYGON);
+	    final String bbox = command.getConstraint(QueryParameters.FIELD_BBOX);
+	    try {
+	        if ((lat==null) != (lon==null)) return "Parameters lat and lon must be specified together";
+	        if (radius!=null && lat==null) return "Parameter radius requires lat and lon";
+	        if (lat!=null && !isLatitude(lat)) return "Invalid latitude: "+lat;
+	        if (lon!=null && !isLongitude(lon, 180)) return "Invalid longitude: "+lon;
+	        if (radius!=null && Double.parseDouble(radius)<=0) return "Invalid radius: "+radius;
+	        if (polygon!=null) {
+	            final String[] coords = polygon.trim().split("\\s*,\\s*");
+	            if (coords.length<8 || coords.length%2!=0) return "Invalid polygon: "+polygon;
+	            for (int i=0; i<coords.length; i+=2) {
+	                if (!isLatitude(coords[i]) || !isLongitude(coords[i+1], 180)) return "Invalid polygon: "+polygon;
+	            }
+	            if (   Double.parseDouble(coords[0])!=Double.parseDouble(coords[coords.length-2]) 
+	                || Double.parseDouble(coords[1])!=Double.parseDouble(coords[coords.length-1]))
+	                return "Invalid polygon, the first and last points must be the same: "+polygon;
+	        }
+	        if (bbox!=null) {
+	            // [west,south,east,north]
+	            final String _bbox = bbox.trim();
+	            if (!_bbox.startsWith("[") || !_bbox.endsWith("]")) return "Invalid bbox, the format is [west,south,east,north]: "+bbox;
+	            final String[] coords = _bbox.substring(1, _bbox.length()-1).trim().split("\\s*,\\s*");
+	            if (coords.length!=4) return "Invalid bbox, the format is [west,south,east,north]: "+bbox;
+	            if (   !isLongitude(coords[0], 360) || !isLatitude(coords[1]) 
+	                || !isLongitude(coords[2], 360) || !isLatitude(coords[3])) return "Invalid bbox: "+bbox;
+	            if (Double.parseDouble(coords[1])>Double.parseDouble(coords[3])) return "Invalid bbox, south must not exceed north: "+bbox;
+	            command.setConstraint(QueryParameters.FIELD_BBOX, _bbox);
+	        }
+	    } catch (NumberFormatException e) {
+	        return "Invalid geo-spatial coordinate: "+e.getMessage();
+	    }
+	    return null;
+	    
+	}
+	
+	private static boolean isLatitude(final String value) {
+	    final double lat = Double.parseDouble(value);
+	    return lat>=-90 && lat<=90;
+	}
+	
+	private static boolean isLongitude(final String value, final double max) {
+	    final double lon = Double.parseDouble(value);
+	    return lon>=-180 && lon<=max;
+	}
+	
+	/**
+	 * Method to bind the options of the returned facet values to the search command:
+	 * each keyword value is a comma-separated list of options for all facets (value) or for a requested facet (facet:value).
+	 * The limit must be an integer >= -1 (-1 for all values), the offset an integer >= 0, the sort either "count" or "index".
+	 * @param request
+	 * @param command
+	 * @return an error message, or null if the options are valid
+	 */
+	private String bindFacetOptions(final HttpServletRequest request, final SearchCommand command) {
+	    
+	    final String[][] keywords = new String[][] { { QueryParameters.FACET_LIMIT, QueryParameters.FACET_OPTION_LIMIT },
+	                                                 { QueryParameters.FACET_OFFSET, QueryParameters.FACET_OPTION_OFFSET },
+	                                                 { QueryParameters.FACET_SORT, QueryParameters.FACET_OPTION_SORT } };
+	    for (final String[] keyword : keywords) {
+	        final String[] values = request.getParameterValues(keyword[0]);
+	        if (values==null) continue;
+	        for (final String value : values) {
+	            for (final String option : value.trim().split("\\s*,\\s*")) {
+	                final int i = option.lastIndexOf(':');
+	                final String facet = (i>=0 ? option.substring(0, i).trim() : QueryParameters.FACET_ALL);
+	                final String _value = option.substring(i+1).trim();
+	                if (i>=0 && !command.getFacets().contains(facet)) 
+	                    return "Invalid "+keyword[0]+" for facet="+facet+", which is not requested";
+	                if (keyword[1].equals(QueryParameters.FACET_OPTION_SORT)) {
+	                    if (!_value.equals(QueryParameters.FACET_SORT_COUNT) && !_value.equals(QueryParameters.FACET_SORT_INDEX))
+	                        return "Invalid "+keyword[0]+": "+option+" (allowed values are "
+	                               +QueryParameters.FACET_SORT_COUNT+" and "+QueryParameters.FACET_SORT_INDEX+")";
+	                } else {
+	                    try {
+	                        final int n = Integer.parseInt(_value);
+	                        if (n < (keyword[1].equals(QueryParameters.FACET_OPTION_LIMIT) ? -1 : 0)) return "Invalid "+keyword[0]+": "+option;
+	                    } catch (NumberFormatException e) {
+	                        return "Invalid "+keyword[0]+": "+option;
+	                    }
+	                }
+	                command.setFacetOption(facet, keyword[1], _value);
+	            }
+	        }
+	    }
+	    return null;
+	    
+	}
+	
 	/**
 	 * Utility method to split an HTTP parameter value into comma-separated values
 	 * but keep intact patterns such as "CESM1(CAM5.1,FV2)"
 	 * @param value
 	 * @return
 	 */
-	private String[] splitValue(String value) {
+	String[] splitValue(String value) {
 		
 		// first split by comma
 		String[] values = value.split("\\s*,\\s*");
@@ -309,4 +534,23 @@ public class BaseController {
         return "";
 	}
 	
+	/**
+	 * Method to list in the HTTP response the shards that were left out of the distributed search,
+	 * so that clients know that the results may be incomplete.
+	 * 
+	 * @param command
+	 * @param response
+	 */
+	void setSkippedShardsHeader(final SearchCommand command, final HttpServletResponse response) {
+	    if (!command.getSkippedShards().isEmpty() && !response.isCommitted()) {
+	        response.setHeader(QueryParameters.HEADER_SKIPPED_SHARDS, 
+	                           StringUtils.collectionToCommaDelimitedString(command.getSkippedShards()));
+	    }
+	}
+	
+	private SearchReturnType reject(int sc, final String message, final HttpServletResponse response) throws IOException {
+	    sendError(sc, message, response);
+	    return null;
+	}
+	
 }
\ No newline at end of file
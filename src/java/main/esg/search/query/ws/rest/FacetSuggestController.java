@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.ws.rest;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import esg.search.query.api.Facet;
+import esg.search.query.api.FacetSuggestService;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchReturnType;
+
+/**
+ * Web controller that returns the values of a facet starting with a given prefix (typeahead),
+ * with their number of records, for example:
+ * <pre>
+ * /search/suggest?facet=variable&amp;prefix=ta&amp;limit=10
+ * </pre>
+ * The values are looked up in memory by the underlying {@link FacetSuggestService}, without executing a search,
+ * and are returned by decreasing number of records in the same format as the facet counts of a /search response,
+ * either as Solr/XML (default) or as Solr/JSON (format=application/solr+json).
+ */
+@Controller("facetSuggestController")
+public class FacetSuggestController {
+    
+    private static final Log LOG = LogFactory.getLog(FacetSuggestController.class);
+    
+    private final static String PREFIX = "prefix";
+    private final static String FACET = "facet";
+    
+    /**
+     * Default and maximum number of values returned.
+     */
+    private final static int DEFAULT_LIMIT = 10;
+    private final static int MAX_LIMIT = 100;
+    
+    /**
+     * Seconds after which a client should retry while the facet values are being loaded.
+     */
+    private final static int RETRY_AFTER = 10;
+    
+    /**
+     * The underlying base controller, used to write the response.
+     */
+    final private BaseController baseController;
+    
+    /**
+     * The service that looks up the facet values.
+     */
+    final private FacetSuggestService facetSuggestService;
+    
+    @Autowired
+    public FacetSuggestController(final BaseController baseController,
+                                  final @Qualifier("facetSuggestService") FacetSuggestService facetSuggestService) {
+        this.baseController = baseController;
+        this.facetSuggestService = facetSuggestService;
+    }
+    
+    /**
+     * Method to return the values of a facet starting with a prefix.
+     */
+    @RequestMapping(value="/search/suggest", method={ RequestMethod.GET })
+    public void suggest(final HttpServletRequest request, final HttpServletResponse response) throws Exception {
+        
+        long startTime = System.currentTimeMillis();
+        
+        // facet
+        final String facet = request.getParameter(FACET);
+        // (the facets are not known until the facet values are first loaded)
+        if (!StringUtils.hasText(facet)) {
+            baseController.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing mandatory parameter: "+FACET, response);
+            return;
+        } else if (!facetSuggestService.isLoaded()) {
+            response.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+            baseController.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The facet values are being loaded, please retry later", response);
+            return;
+        } else if (!facetSuggestService.getFacets().contains(facet)) {
+            baseController.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid facet: "+facet, response);
+            return;
+        }
+        
+        // prefix
+        final String prefix = StringUtils.hasText(request.getParameter(PREFIX)) ? request.getParameter(PREFIX).trim() : "";
+        if (QueryParameters.INVALID_CHARACTERS.matcher(prefix).matches()) {
+            baseController.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid character(s) detected in parameter value="+prefix, response);
+            return;
+        }
+        
+        // limit
+        int limit = DEFAULT_LIMIT;
+        if (StringUtils.hasText(request.getParameter(QueryParameters.LIMIT))) {
+            try {
+                limit = Integer.parseInt(request.getParameter(QueryParameters.LIMIT).trim());
+            } catch(NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit<1 || limit>MAX_LIMIT) {
+                baseController.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                                         "Invalid "+QueryParameters.LIMIT+": must be between 1 and "+MAX_LIMIT, response);
+                return;
+            }
+        }
+        
+        // format
+        final String format = StringUtils.hasText(request.getParameter(QueryParameters.FORMAT)) ? 
+                              request.getParameter(QueryParameters.FORMAT) : SearchReturnType.SOLR_XML.getMimeType();
+        final SearchReturnType returnType = SearchReturnType.forMimeType(format);
+        if (returnType!=SearchReturnType.SOLR_XML && returnType!=SearchReturnType.SOLR_JSON) {
+            baseController.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Invalid requested format: "+format, response);
+            return;
+        }
+        
+        final List<Facet> values = facetSuggestService.suggest(facet, prefix, limit);
+        final long elapsedTime = System.currentTimeMillis() - startTime;
+        
+        if (returnType==SearchReturnType.SOLR_JSON) {
+            baseController.writeToResponse(toJson(facet, values, elapsedTime), "text/json", response);
+        } else {
+            baseController.writeToResponse(toXml(facet, values, elapsedTime), "text/xml", response);
+        }
+        
+        if (LOG.isDebugEnabled()) LOG.debug("FacetSuggestController facet="+facet+" prefix="+prefix+" values="+values.size()
+                                            +" Elapsed Time="+elapsedTime+" msecs");
+        
+    }
+    
+    private static String toXml(final String facet, final List<Facet> values, final long elapsedTime) {
+        
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>\n");
+        sb.append("<lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">").append(elapsedTime).append("</int></lst>\n");
+        sb.append("<lst name=\"facet_counts\"><lst name=\"facet_fields\"><lst name=\"").append(StringEscapeUtils.escapeXml(facet)).append("\">\n");
+        for (final Facet value : values) {
+            sb.append("<int name=\"").append(StringEscapeUtils.escapeXml(value.getKey())).append("\">").append(value.getCounts()).append("</int>\n");
+        }
+        sb.append("</lst></lst></lst>\n</response>");
+        return sb.toString();
+        
+    }
+    
+    private static String toJson(final String facet, final List<Facet> values, final long elapsedTime) {
+        
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"responseHeader\":{\"status\":0,\"QTime\":").append(elapsedTime).append("},");
+        sb.append("\"facet_counts\":{\"facet_fields\":{");
+        quote(facet, sb);
+        sb.append(":[");
+        for (int i=0; i<values.size(); i++) {
+            if (i>0) sb.append(",");
+            quote(values.get(i).getKey(), sb);
+            sb.append(",").append(values.get(i).getCounts());
+        }
+        sb.append("]}}}");
+        return sb.toString();
+        
+    }
+    
+    /**
+     * Method to append a string as a JSON string literal.
+     */
+    private static void quote(final String s, final StringBuilder sb) {
+        
+        sb.append('"');
+        for (int i=0; i<s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c=='"' || c=='\\') {
+                sb.append('\\').append(c);
+            } else if (c<0x20) {
+                sb.append(String.format("\\u%04x", (int)c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+        
+    }
+
+}
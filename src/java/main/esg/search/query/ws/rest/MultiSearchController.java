@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.ws.rest;
+
+import java.io.BufferedReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.ServletRequestDataBinder;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import esg.search.query.api.MultiSearchService;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchReturnType;
+
+/**
+ * Web controller that executes a batch of searches in a single HTTP request, 
+ * and returns all the responses together in a single document.
+ * 
+ * The body of the POST request contains one search per line, 
+ * expressed with the same (URL-encoded) parameters as a /search request, for example:
+ * <pre>
+ * type=Dataset&amp;id=cmip5.output1.MOHC.HadGEM2-ES.rcp85.mon.atmos.Amon.r1i1p1.v20111215|esgf-node.llnl.gov
+ * type=File&amp;dataset_id=cmip5.output1.MOHC.HadGEM2-ES.rcp85.mon.atmos.Amon.r1i1p1.v20111215|esgf-node.llnl.gov&amp;limit=100
+ * </pre>
+ * Each search is validated as a /search request, and the whole batch is rejected if any search is invalid.
+ * The output format is set for the whole batch by the "format" parameter of the request URL.
+ * The searches are executed concurrently by the underlying {@link MultiSearchService}, 
+ * and their responses are returned in the same order, 
+ * either as the children of a &lt;responses&gt; element (Solr/XML) or as the elements of an array (Solr/JSON).
+ */
+@Controller("multiSearchController")
+public class MultiSearchController {
+    
+    private static final Log LOG = LogFactory.getLog(MultiSearchController.class);
+    
+    private final static String UTF8 = "UTF-8";
+    
+    /**
+     * The underlying base controller, used to validate each search.
+     */
+    final private BaseController baseController;
+    
+    /**
+     * The service that executes the searches concurrently.
+     */
+    final private MultiSearchService multiSearchService;
+    
+    /**
+     * Maximum number of searches in a batch.
+     */
+    @Value("${esg.search.batch.max}")
+    private int maxSearches = 20;
+    
+    /**
+     * Optional executor that processes the requests asynchronously, releasing the container threads.
+     */
+    private AsyncRequestExecutor asyncRequestExecutor = null;
+    
+    @Autowired
+    public MultiSearchController(final BaseController baseController, 
+                                 final @Qualifier("multiSearchService") MultiSearchService multiSearchService) {
+        this.baseController = baseController;
+        this.multiSearchService = multiSearchService;
+    }
+    
+    @Autowired(required=false)
+    public void setAsyncRequestExecutor(final @Qualifier("searchRequestExecutor") AsyncRequestExecutor asyncRequestExecutor) {
+        this.asyncRequestExecutor = asyncRequestExecutor;
+    }
+    
+    /**
+     * Method to execute a batch of searches, one per line of the request body.
+     */
+    @RequestMapping(value="/search/batch", method={ RequestMethod.POST })
+    public void search(final HttpServletRequest request, final HttpServletResponse response) throws Exception {
+        
+        // read the request body before the parameters, so that it is not parsed as a form
+        // (stop reading as soon as the batch has too many searches)
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader = request.getReader();
+        String line = null;
+        while (lines.size()<=maxSearches && (line = reader.readLine())!=null) {
+            if (StringUtils.hasText(line) && !line.trim().startsWith("#")) lines.add(line.trim());
+        }
+        if (lines.isEmpty() || lines.size()>maxSearches) {
+            baseController.sendError(HttpServletResponse.SC_BAD_REQUEST, 
+                                     "A batch must contain between 1 and "+maxSearches+" searches, one per line", response);
+            return;
+        }
+        
+        final AsyncRequestExecutor.RequestHandler handler = new AsyncRequestExecutor.RequestHandler() {
+            @Override
+            public void handle(final HttpServletResponse _response) throws Exception {
+                process(request, lines, _response);
+            }
+        };
+        
+        if (asyncRequestExecutor!=null) {
+            asyncRequestExecutor.execute(request, response, handler);
+        } else {
+            AsyncRequestExecutor.handle(response, handler);
+        }
+        
+    }
+    
+    private void process(final HttpServletRequest request, 
+                         final List<String> lines, 
+                         final HttpServletResponse response) throws Exception {
+        
+        long startTime = System.currentTimeMillis();
+        
+        // output format for the whole batch
+        final String format = StringUtils.hasText(request.getParameter(QueryParameters.FORMAT)) ? 
+                              request.getParameter(QueryParameters.FORMAT) : SearchReturnType.SOLR_XML.getMimeType();
+        final SearchReturnType returnType = SearchReturnType.forMimeType(format);
+        if (returnType==null) {
+            baseController.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Invalid requested format: "+format, response);
+            return;
+        }
+        
+        // bind and validate each search as a /search request
+        final List<SearchInput> inputs = new ArrayList<SearchInput>();
+        for (final String line : lines) {
+            final HttpServletRequest subRequest = new SubRequest(request, parse(line));
+            final SearchCommand command = new SearchCommand();
+            new ServletRequestDataBinder(command).bind(subRequest);
+            command.setFormat(format);
+            command.setPartialAllowed(true);
+            if (baseController.validate(subRequest, command, response)==null) return;
+            inputs.add(command);
+        }
+        
+        // execute the searches concurrently
+        final List<String> outputs = multiSearchService.query(inputs, returnType);
+        
+        // list the shards left out of any of the searches
+        final Set<String> skippedShards = new LinkedHashSet<String>();
+        for (final SearchInput input : inputs) skippedShards.addAll(input.getSkippedShards());
+        if (!skippedShards.isEmpty()) {
+            response.setHeader(QueryParameters.HEADER_SKIPPED_SHARDS, StringUtils.collectionToCommaDelimitedString(skippedShards));
+        }
+        
+        // combine the responses
+        final StringBuilder sb = new StringBuilder();
+        if (returnType==SearchReturnType.SOLR_JSON) {
+            sb.append("[");
+            for (int i=0; i<outputs.size(); i++) {
+                if (i>0) sb.append(",\n");
+                sb.append(outputs.get(i).trim());
+            }
+            sb.append("]");
+        } else {
+            sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<responses>\n");
+            for (final String output : outputs) {
+                sb.append(stripXmlDeclaration(output).trim()).append("\n");
+            }
+            sb.append("</responses>");
+        }
+        baseController.writeToResponse(sb.toString(), returnType==SearchReturnType.SOLR_JSON ? "text/json" : "text/xml", response);
+        
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        if (LOG.isInfoEnabled()) LOG.info("Overall MultiSearchController searches="+inputs.size()+" Elapsed Time="+elapsedTime+" msecs");
+        
+    }
+    
+    /**
+     * Method to parse a URL-encoded query string into HTTP parameters.
+     */
+    static Map<String, String[]> parse(final String queryString) throws UnsupportedEncodingException {
+        
+        final Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+        for (final String pair : queryString.split("&")) {
+            if (!StringUtils.hasText(pair)) continue;
+            final int index = pair.indexOf('=');
+            final String name = URLDecoder.decode(index>=0 ? pair.substring(0, index) : pair, UTF8);
+            final String value = URLDecoder.decode(index>=0 ? pair.substring(index+1) : "", UTF8);
+            if (!values.containsKey(name)) values.put(name, new ArrayList<String>());
+            values.get(name).add(value);
+        }
+        
+        final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        for (final Map.Entry<String, List<String>> entry : values.entrySet()) {
+            parameters.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
+        }
+        return parameters;
+        
+    }
+    
+    private static String stripXmlDeclaration(final String xml) {
+        if (xml.startsWith("<?xml")) {
+            final int end = xml.indexOf("?>");
+            if (end>0) return xml.substring(end+2);
+        }
+        return xml;
+    }
+    
+    /**
+     * HTTP request that exposes the parameters of a single search of a batch,
+     * instead of the parameters of the batch request.
+     */
+    private static class SubRequest extends HttpServletRequestWrapper {
+        
+        private final Map<String, String[]> parameters;
+        
+        SubRequest(final HttpServletRequest request, final Map<String, String[]> parameters) {
+            super(request);
+            this.parameters = Collections.unmodifiableMap(parameters);
+        }
+        
+        @Override
+        public String getParameter(final String name) {
+            final String[] values = parameters.get(name);
+            return (values!=null && values.length>0 ? values[0] : null);
+        }
+        
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return parameters;
+        }
+        
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(parameters.keySet());
+        }
+        
+        @Override
+        public String[] getParameterValues(final String name) {
+            return parameters.get(name);
+        }
+        
+    }
+
+}
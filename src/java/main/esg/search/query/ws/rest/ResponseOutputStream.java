@@ -0,0 +1,74 @@
+package esg.search.query.ws.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Output stream that writes to the body of an HTTP response,
+ * but only sets the response content type and opens the servlet output stream on the first write.
+ * Until then, the response is not committed and an HTTP error can still be sent to the client.
+ * Optionally, the content can be marked as an attachment with a given file name,
+ * and subclasses can set additional headers that are only known once the content is available.
+ */
+class ResponseOutputStream extends OutputStream {
+
+    private final static String CHARSET = "UTF-8";
+
+    private final String contentType;
+
+    private final String fileName;
+
+    private final HttpServletResponse response;
+
+    private OutputStream out = null;
+
+    ResponseOutputStream(final String contentType, final HttpServletResponse response) {
+        this(contentType, null, response);
+    }
+
+    ResponseOutputStream(final String contentType, final String fileName, final HttpServletResponse response) {
+        this.contentType = contentType;
+        this.fileName = fileName;
+        this.response = response;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getOutputStream().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len>0) getOutputStream().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out!=null) out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out!=null) out.close();
+    }
+
+    private OutputStream getOutputStream() throws IOException {
+        if (out==null) {
+            response.setContentType(contentType);
+            response.setCharacterEncoding(CHARSET);
+            if (fileName!=null) response.addHeader("Content-Disposition", "attachment; filename=" + fileName);
+            setHeaders(response);
+            out = response.getOutputStream();
+        }
+        return out;
+    }
+    
+    /**
+     * Hook to set additional response headers before the first write (no-op by default).
+     * @param response
+     */
+    void setHeaders(final HttpServletResponse response) {}
+
+}
@@ -6,6 +6,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -31,12 +33,29 @@ public class SearchController {
      */
     final private BaseController baseController;
     
+    /**
+     * Flag to copy the Solr response directly to the HTTP response as it is received,
+     * as opposed to buffering the whole document in memory first.
+     */
+    @Value("${esg.search.query.streaming}")
+    private boolean streaming = true;
+    
+    /**
+     * Optional executor that processes the requests asynchronously, releasing the container threads.
+     */
+    private AsyncRequestExecutor asyncRequestExecutor = null;
+    
 		
 	@Autowired
 	public SearchController(final BaseController baseController) {
 	      this.baseController = baseController;
 	}
 	
+	@Autowired(required=false)
+	public void setAsyncRequestExecutor(final @Qualifier("searchRequestExecutor") AsyncRequestExecutor asyncRequestExecutor) {
+	    this.asyncRequestExecutor = asyncRequestExecutor;
+	}
+	
 	/**
 	 * Method to execute a generic metadata search and return the untransformed Solr/XML output document.
 	 */
@@ -45,19 +64,48 @@ public class SearchController {
 			           final SearchCommand command, 
 			           final HttpServletResponse response) throws Exception {
 	    
+	    // interactive searches return partial results rather than waiting for slow or failed shards
+	    command.setPartialAllowed(true);
+	    
+	    final AsyncRequestExecutor.RequestHandler handler = new AsyncRequestExecutor.RequestHandler() {
+	        @Override
+	        public void handle(final HttpServletResponse _response) throws Exception {
+	            process(request, command, _response);
+	        }
+	    };
+	    
+	    if (asyncRequestExecutor!=null) {
+	        asyncRequestExecutor.execute(request, response, handler);
+	    } else {
+	        AsyncRequestExecutor.handle(response, handler);
+	    }
+	    
+	}
+	
+	private void process(final HttpServletRequest request, 
+	                     final SearchCommand command, 
+	                     final HttpServletResponse response) throws Exception {
+	    
 	    long startTime = System.currentTimeMillis();
 	    
-	    // process request, obtain Solr/XML output
-        String output = baseController.process(request, command, response);
-        
-        // write Solr/XML to response
-        if (!response.isCommitted()) {
-            if (command.getFormat().equals(SearchReturnType.SOLR_JSON.getMimeType())) {
-                baseController.writeToResponse(output, "text/json", response); 
-            } else {
-                baseController.writeToResponse(output, "text/xml", response); 
-            }
-        }
+	    final String contentType = command.getFormat().equals(SearchReturnType.SOLR_JSON.getMimeType()) ? "text/json" : "text/xml";
+	    
+	    if (streaming) {
+	        
+	        // process request, stream Solr output to response
+	        baseController.stream(request, command, contentType, response);
+	        
+	    } else {
+	    
+	        // process request, obtain Solr/XML output
+	        String output = baseController.process(request, command, response);
+	        
+	        // write Solr/XML to response
+	        if (!response.isCommitted()) {
+	            baseController.writeToResponse(output, contentType, response); 
+	        }
+	        
+	    }
         
         long elapsedTime = System.currentTimeMillis() - startTime;
         if (LOG.isInfoEnabled()) LOG.info("Overall SearchController Elapsed Time="+elapsedTime+" msecs");
@@ -1,8 +1,11 @@
 package esg.search.query.ws.rest;
 
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -17,20 +20,22 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.jdom2.Document;
-import org.jdom2.Element;
-import org.jdom2.xpath.XPath;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Controller;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 
 import edu.emory.mathcs.backport.java.util.Arrays;
+import esg.search.core.Record;
 import esg.search.core.RecordHelper;
 import esg.search.publish.thredds.ThreddsPars;
 import esg.search.query.api.QueryParameters;
-import esg.search.utils.XmlParser;
+import esg.search.query.api.SearchOutput;
+import esg.search.query.api.SearchReturnType;
+import esg.search.query.api.SearchService;
+import esg.search.query.impl.solr.Bulkhead;
 
 /**
  * Controller that returns a wget script that can be executed to retrieve all files matching the search criteria.
@@ -62,6 +67,8 @@ public class WgetController {
     }));
     //to prevent facets values for extending too much
     private static final int MAX_DIR_LEGTH = 50; 
+    //number of files retrieved from the search service in each request
+    private static final int PAGE_SIZE = 1000;
     
     private final Log LOG = LogFactory.getLog(this.getClass());
     /**
@@ -69,9 +76,46 @@ public class WgetController {
      */
     final private BaseController baseController;
     
+    /**
+     * The search service used to retrieve the files.
+     */
+    final private SearchService searchService;
+    
+    /**
+     * The concurrency limit of wget scripts: a permit is held while each script is generated.
+     */
+    final private Bulkhead wgetBulkhead;
+    
+    /**
+     * Optional executor that processes the requests asynchronously, releasing the container threads.
+     */
+    private AsyncRequestExecutor asyncRequestExecutor = null;
+    
     @Autowired
-    public WgetController(final BaseController baseController) {
+    public WgetController(final BaseController baseController, 
+                          final @Qualifier("searchServiceCache") SearchService searchService,
+                          final @Qualifier("wgetBulkhead") Bulkhead wgetBulkhead) {
           this.baseController = baseController;
+          this.searchService = searchService;
+          this.wgetBulkhead = wgetBulkhead;
+    }
+    
+    @Autowired(required=false)
+    public void setAsyncRequestExecutor(final @Qualifier("wgetRequestExecutor") AsyncRequestExecutor asyncRequestExecutor) {
+        this.asyncRequestExecutor = asyncRequestExecutor;
+    }
+    
+    /**
+     * Returns the (first) value of a record field, including the special fields id and version.
+     */
+    private static String getValue(final Record record, final String name) {
+        if (name.equals(QueryParameters.FIELD_ID)) {
+            return record.getId();
+        } else if (name.equals(QueryParameters.FIELD_VERSION)) {
+            return (record.getVersion() > 0 ? String.valueOf(record.getVersion()) : null);
+        } else {
+            return record.getFieldValue(name);
+        }
     }
     
     /**
@@ -83,6 +127,56 @@ public class WgetController {
                        final SearchCommand command, 
                        final HttpServletResponse response) throws Exception {
         
+        this.execute(request, command, response, QueryParameters.LARGE_LIMIT, QueryParameters.MAX_LIMIT);
+        
+    }
+    
+    /**
+     * Method to process a bulk export of all files matching the given criteria,
+     * and return a single wget script. By default, the whole result set is exported
+     * (up to MAX_EXPORT_LIMIT files), retrieving the files from the index in constant-cost pages.
+     */
+    @RequestMapping(value="/export", method={ RequestMethod.GET, RequestMethod.POST })
+    public void export(final HttpServletRequest request, 
+                       final SearchCommand command, 
+                       final HttpServletResponse response) throws Exception {
+        
+        this.execute(request, command, response, QueryParameters.MAX_EXPORT_LIMIT, QueryParameters.MAX_EXPORT_LIMIT);
+        
+    }
+    
+    /**
+     * Method that generates a wget script, asynchronously if an executor is configured.
+     */
+    private void execute(final HttpServletRequest request, 
+                         final SearchCommand command, 
+                         final HttpServletResponse response,
+                         final int defaultLimit, final int maxLimit) throws Exception {
+        
+        final AsyncRequestExecutor.RequestHandler handler = new AsyncRequestExecutor.RequestHandler() {
+            @Override
+            public void handle(final HttpServletResponse _response) throws Exception {
+                script(request, command, _response, defaultLimit, maxLimit);
+            }
+        };
+        
+        if (asyncRequestExecutor!=null) {
+            asyncRequestExecutor.execute(request, response, handler);
+        } else {
+            AsyncRequestExecutor.handle(response, handler);
+        }
+        
+    }
+    
+    /**
+     * Method that generates a wget script for up to maxLimit files.
+     * If no limit is specified in the request, defaultLimit files are included.
+     */
+    private void script(final HttpServletRequest request, 
+                        final SearchCommand command, 
+                        final HttpServletResponse response,
+                        final int defaultLimit, final int maxLimit) throws Exception {
+        
         // prevent requests with no constraints
         if (!StringUtils.hasText(request.getQueryString()) && request.getMethod().toUpperCase().equals("GET")) {
             response.sendRedirect(request.getRequestURI()+"?limit=1&distrib=false");
@@ -147,7 +241,7 @@ public class WgetController {
         
         //see if we have a directory structure to generate
         // set limit=DEFAULT_LIMIT to enable large retrieval through wget scripting, unless explicitly set already
-        if (request.getParameter(QueryParameters.LIMIT)==null) command.setLimit(QueryParameters.LARGE_LIMIT);
+        if (request.getParameter(QueryParameters.LIMIT)==null) command.setLimit(defaultLimit);
         
         String[] path = new String[0];
         if (request.getParameter(QueryParameters.FIELD_WGET_PATH) != null &&
@@ -165,16 +259,13 @@ public class WgetController {
             emptyPath = "";
         }
         
-        // process request, obtain Solr/XML output
-        String xml = baseController.process(new_req, command, response);
-        if (xml == null || xml.length() == 0) return;
+        // validate request
+        final SearchReturnType format = baseController.validate(new_req, command, maxLimit, response);
+        if (format == null || response.isCommitted()) return;
         
-        // parse the Solr/XML document
-        // build list of HTTPServer urls
-        final XmlParser xmlParser = new XmlParser(false);
-        final Document doc = xmlParser.parseString(xml);
-        XPath xpath = XPath.newInstance("/response/result/doc");
-
+        // results are always retrieved as Solr/XML, without facets
+        command.setFormat(SearchReturnType.SOLR_XML.getMimeType());
+        command.setFacets(new ArrayList<String>());
         
         // write out the URL + GET/POST parameters to the wget script
         StringBuilder parameters = new StringBuilder().append('?');
@@ -188,96 +279,97 @@ public class WgetController {
         }
         //there's always one more. either '?' if empty or '&' if not.
         parameters.setLength(parameters.length()-1);
+        
+        // the script is streamed to the response as the files are added
+        // (the response is not committed until the first file line is written)
+        final Writer out = new OutputStreamWriter(
+                new ResponseOutputStream("text/x-sh", String.format(SCRIPT_NAME, timestamp.format(new Date())), response), "UTF-8");
         WgetScriptGenerator.WgetDescriptor desc = new WgetScriptGenerator.WgetDescriptor(
                 request.getServerName(), null, 
-                request.getRequestURL().toString() + parameters.toString());
+                request.getRequestURL().toString() + parameters.toString(), out);
         
         //check we got all
-        int offset = 0;
-        if (request.getParameter(QueryParameters.OFFSET) != null) {
-            offset = Integer.parseInt(request.getParameter(QueryParameters.OFFSET));
-        }
-        int res_count = ((Element) XPath.newInstance("/response/result").selectSingleNode(doc)
-                ).getAttribute("numFound").getIntValue();
-        int ret_count = xpath.selectNodes(doc).size();
-            
-        if (res_count> ret_count) {
-            //this is just apart!
-            desc.addMessage(String.format("Warning! The total number of files was " +
-                    "%s but this script will only process %s.", res_count, ret_count));                                    
-        }
+        int offset = command.getOffset();
+        int limit = command.getLimit();
+        int res_count = 0;
+        int ret_count = 0;
         
-        // loop over records
-        final String[] fieldsToExtract = new String[] {
-                QueryParameters.FIELD_CHECKSUM,
-                QueryParameters.FIELD_CHECKSUM_TYPE,
-                QueryParameters.FIELD_SIZE, 
-                QueryParameters.FIELD_URL };
-        StringBuilder dir = new StringBuilder();
-        for (Object obj : xpath.selectNodes(doc)) {
-            dir.setLength(0);
-            Element docEl = (Element)obj;
-                        
-            //prepare all attributes we need
-            Map<String, String> attrib = new HashMap<String, String>();
-            for (String s : fieldsToExtract)
-                attrib.put(s, null);
-            for (String s : path)
-                attrib.put(s, emptyPath);
-
-            //gather them
-            for (final Object childObj : docEl.getChildren()) {
-                Element childEl = (Element) childObj;
-                if (attrib.containsKey(childEl.getAttributeValue("name"))) {
-                    //Handle exceptions!
-                    if (childEl.getAttributeValue("name")
-                            .equals(QueryParameters.FIELD_URL)) {
-                        for (final Object subChildObj : childEl.getChildren("str")) {
-                            Element subChildEl = (Element)subChildObj;
-                            String tuple = subChildEl.getTextNormalize();
-                            String[] parts = RecordHelper.decodeTuple(tuple);
-                            if (parts[2]
-                                    .equalsIgnoreCase(ThreddsPars.SERVICE_TYPE_HTTP)) {
-                                attrib.put(childEl.getAttributeValue("name"), parts[0]);
-                            }
+        // page through the results with a cursor (constant cost per page),
+        // unless an offset was requested (in which case successive offsets are used)
+        final boolean cursor = StringUtils.hasText(command.getCursor()) || offset == 0;
+        if (cursor && !StringUtils.hasText(command.getCursor())) command.setCursor(QueryParameters.CURSOR_START);
+        
+        // a single permit is held while the whole script is generated, 
+        // so that a script is never rejected after it was partially sent
+        wgetBulkhead.acquire();
+        
+        try {
+            
+            // loop over pages of results
+            StringBuilder dir = new StringBuilder();
+            while (true) {
+            
+                if (!cursor) command.setOffset(offset + ret_count);
+                command.setLimit(Math.min(PAGE_SIZE, limit - ret_count));
+                final SearchOutput output = searchService.search(command);
+                res_count = output.getCounts();
+            
+                // loop over records
+                for (final Record record : output.getResults()) {
+                    dir.setLength(0);
+                
+                    for (String facet : path) {
+                        String value = getValue(record, facet);
+                        if (value == null) value = emptyPath;
+                        //prevent strange values while generating names as well as too long names
+                        value = value.replaceAll("['<>?*\"\n\t\r\0]", "").replaceAll("[ /\\\\|:;]+", "_");
+                        if (value.length() > MAX_DIR_LEGTH) {
+                            value = value.substring(0, MAX_DIR_LEGTH);
+                        }
+                        dir.append(value).append('/');
+                    }
+                
+                    // use the last HTTPServer endpoint
+                    String url = null;
+                    for (String tuple : record.getFieldValues(QueryParameters.FIELD_URL)) {
+                        String[] parts = RecordHelper.decodeTuple(tuple);
+                        if (parts[2].equalsIgnoreCase(ThreddsPars.SERVICE_TYPE_HTTP)) {
+                            url = parts[0];
                         }
-                        //handle all arrays
-                    } else if (childEl.getName() == "arr"){
-                        attrib.put(childEl.getAttributeValue("name"), childEl
-                                .getChild("str").getTextNormalize());
-                        //and the rest as usual
-                    } else {
-                        attrib.put(childEl.getAttributeValue("name"), childEl
-                                   .getTextNormalize());                        
                     }
+                
+                    desc.addFile(url,
+                                 dir.toString(), record.getFieldValue(QueryParameters.FIELD_SIZE), 
+                                 record.getFieldValue(QueryParameters.FIELD_CHECKSUM_TYPE),
+                                 record.getFieldValue(QueryParameters.FIELD_CHECKSUM));
+                
                 }
-            }
             
-            for (String facet : path) {
-                //prevent strange values while generating names as well as too long names
-                String value = attrib.get(facet).replaceAll("['<>?*\"\n\t\r\0]", "").replaceAll("[ /\\\\|:;]+", "_");
-                if (value.length() > MAX_DIR_LEGTH) {
-                    value = value.substring(0, MAX_DIR_LEGTH);
+                // stop at the requested limit, or at the last page of results
+                ret_count += output.getResults().size();
+                if (output.getResults().isEmpty() || ret_count >= limit || offset + ret_count >= res_count) break;
+            
+                // the cursor does not move past the last page
+                if (cursor) {
+                    if (output.getNextCursor() == null || output.getNextCursor().equals(command.getCursor())) break;
+                    command.setCursor(output.getNextCursor());
                 }
-                dir.append(value).append('/');
-            }
-            desc.addFile(attrib.get(QueryParameters.FIELD_URL),
-                         dir.toString(), attrib.get(QueryParameters.FIELD_SIZE), 
-                         attrib.get(QueryParameters.FIELD_CHECKSUM_TYPE),
-                         attrib.get(QueryParameters.FIELD_CHECKSUM));
             
-        }
+            }
+        
+            if (res_count > ret_count) {
+                //this is just apart!
+                desc.addMessage(String.format("Warning! The total number of files was " +
+                        "%s but this script will only process %s.", res_count, ret_count));                                    
+            }
         
-        if (!response.isCommitted()) {
-            
             // display message as plain text
             if (res_count==0) {
-                
+            
                 response.setContentType("text/plain");
                 response.getWriter().print("No files were found that matched the query");
-                
-              
-            // generate the wget script
+            
+            // nothing was written yet
             } else if (desc.getFileCount() == 0) {
                 response.setContentType("text/plain");
                 response.getWriter().print(String.format("No files to download.\n"
@@ -285,6 +377,8 @@ public class WgetController {
                      + "%d file(s) were skipped because of missing valid Url endpoints.\n"
                      + "\t(i.e. they can't be downloaded with this wget script)",
                      res_count, offset, desc.getNoUrlCount()));                
+            
+            // complete the wget script
             } else {
                 if (desc.getNoUrlCount() > 0) {
                     desc.addMessage(String.format(
@@ -292,22 +386,26 @@ public class WgetController {
                           " downloaded because they have no HTTP Access.", 
                           desc.getNoUrlCount()));
                 }
-                
+            
                 //last message
                 desc.addMessage(String.format("Script created for %s file(s)\n(The count won't match if you manually edit this file!)\n", desc.getFileCount()));
-                
-                // generate wget script
-                final String wgetScript = WgetScriptGenerator.getWgetScript(desc);
-                
-                // write out the script to the HTTP response
-                response.setContentType("text/x-sh");
-                response.addHeader("Content-Disposition", "attachment; filename=" + String.format(SCRIPT_NAME, timestamp.format(new Date())) );
-                response.setContentLength((int) wgetScript.length());
-                PrintWriter out = response.getWriter();
-                out.print(wgetScript);
+            
+                // write out the rest of the script to the HTTP response
+                WgetScriptGenerator.finish(desc);
             
             }
-
+            
+        } catch (Exception error) {
+            // the response is already committed once the first file line was written:
+            // terminate the script with an error instead of leaving an incomplete listing
+            try {
+                WgetScriptGenerator.abort(desc);
+            } catch (IOException e2) {
+                // the client is gone
+            }
+            throw error;
+        } finally {
+            wgetBulkhead.release();
         }
         
     }
@@ -2,12 +2,11 @@ package esg.search.query.ws.rest;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -23,6 +22,12 @@ import org.springframework.web.context.support.ServletContextResource;
  * the information will get filled. In order to do so, some specific structures
  * must be filled.
  * 
+ * The script is streamed: the part of the template before the file listing is written
+ * when the first file is added, each file line is written as soon as it is added,
+ * and the rest of the template (including the messages) is written by {@link #finish(WgetDescriptor)}.
+ * The file listing itself is never held in memory, only the destination and checksum
+ * of each added file, for detecting duplicates.
+ * 
  * @author egonzalez
  */
 public class WgetScriptGenerator {
@@ -60,12 +65,14 @@ public class WgetScriptGenerator {
 		String userOpenId;	
 		String hostName;
 		String searchUrl;
-		String files;
 		String message;
 		
 		private StringBuffer messg_sb = new StringBuffer();
-		List<File> all_files = new LinkedList<File>();
-		Map<String, String> checksums = new HashMap<String, String>();
+		//destination of the script, and number of file lines written to it
+		private final Writer out;
+		private int file_count = 0;
+		//destination -> checksum of all added files (a few MB at most, since the number of files is limited)
+		private final Map<String, String> checksums = new HashMap<String, String>();
 		
 		
         private final String MSG_FILE_COLLISION = "There were files with the "
@@ -80,19 +87,21 @@ public class WgetScriptGenerator {
 		 * @param hostName hostname where this wget script got generated
 		 * @param userOpenId OpenId of the user (if known, it can be null)
 		 * @param searchUrl searchUrl that produced this results.
+		 * @param out writer the script is streamed to (nothing is written until the first file is added)
 		 */
 		public WgetDescriptor(String hostName, String userOpenId,
-				String searchUrl) {
+				String searchUrl, Writer out) {
 			this.hostName = hostName;
 			this.userOpenId = userOpenId;
 			this.searchUrl = searchUrl;
+			this.out = out;
 		}
 
         /**
          * Adds a file description to the files used in the wget script. There
          * are some checks taking place, so it's not guaranteed that the file is
          * really stored (e.g. if the url is empty it will be skipped, if
-         * there's already a file with the same checksum and the same
+         * another file has the same checksum and the same
          * destination it will also be silently skipped; if two files with the
          * same name but different checksums are found, then only the first will
          * be written and a warning will be given to the user about this issue.
@@ -108,9 +117,10 @@ public class WgetScriptGenerator {
          *            checksum type
          * @param chksum
          *            checksum value
+         * @throws IOException if the file line can't be written out
          */
 		public void addFile(String url, String dir_structure, String size,
-				String chksumType, String chksum) {
+				String chksumType, String chksum) throws IOException {
 			File fd = new File();
 			if (url == null || url.length() == 0) {
 			    //we can't do anything with this! just skip it...
@@ -133,7 +143,7 @@ public class WgetScriptGenerator {
 			    //this file would overwrite a file already downloaded.
 			    //we won't be adding it.
 			    if (!collision_msg_sent && fd.chksum != null &&
-			            fd.chksum.equals(this.checksums.get(fd.dir + fd.name))){
+			            !fd.chksum.equals(this.checksums.get(fd.dir + fd.name))){
 			        //ouch! we have a file with a different checksum going
 			        //to the same location. We need to inform the user about this.
                     this.addMessage(MSG_FILE_COLLISION);
@@ -141,7 +151,7 @@ public class WgetScriptGenerator {
 			    }
 			} else {
 			    //everything is fine proceed as usual
-			    all_files.add(fd);
+			    writeFile(fd);
 			    this.checksums.put(fd.dir + fd.name, fd.chksum);
 			}
 		}
@@ -158,7 +168,7 @@ public class WgetScriptGenerator {
 		 * @return the number of files that will be displayed in the wget script.
 		 */
 		public int getFileCount() {
-		    return all_files.size();
+		    return file_count;
 		}
 		
 		/**
@@ -172,42 +182,46 @@ public class WgetScriptGenerator {
 		    StringBuilder sb = new StringBuilder();
 		    sb.append(String.format("OpenID:%s\nhostanme:%s\nsearchUrl:%s\nmessage:%s\n",
 		                            userOpenId,hostName,searchUrl,message));
-		    sb.append("Files:\n");
-		    for (File f : all_files) {
-		        sb.append('\t').append(f);
-            }
+		    sb.append("Files:").append(file_count).append('\n');
 		    
 		    return sb.toString();
 		}
+		
+		/**
+		 * Writes out the line for a single file, preceded by the head of the
+		 * template if this is the first file.
+		 */
+		private void writeFile(File fd) throws IOException {
+		    if (file_count == 0) {
+		        out.write(replace(TEMPLATE_HEAD, getTags(this)));
+		    } else {
+		        //line break between files, but not after the last one
+		        out.write('\n');
+		    }
+		    
+		    final String sep = "' '";
+		    StringBuilder sb = new StringBuilder();
+		    sb.append('\'');
+		    if (fd.dir != null) sb.append(fd.dir);
+		    
+		    //get the name                                          
+		    sb.append(fd.name);
+		    
+		    sb.append(sep).append(fd.url);
+		    sb.append(sep).append(fd.chksumType);
+		    sb.append(sep).append(fd.chksum).append('\'');
+		    out.write(sb.toString());
+		    file_count++;
+		}
 
         /**
-         * Assure everything is ready for script generation.
+         * Assure everything is ready for writing the tail of the script.
          * After this call all non private Strings with names matched in the
          * template must be contain the required information.
          */
-        public void flush() {
+        void flush() {
             //set the message
             this.message = this.messg_sb.toString();
-            
-            // add files
-            StringBuilder sb = new StringBuilder();
-            final String sep = "' '";
-            for (WgetDescriptor.File fd : this.all_files) {
-
-                sb.append('\'');
-                if (fd.dir != null) sb.append(fd.dir);
-                
-                //get the name                                          
-                sb.append(fd.name);
-                
-                sb.append(sep).append(fd.url);
-                sb.append(sep).append(fd.chksumType);
-                sb.append(sep).append(fd.chksum).append("'\n");
-            }
-            // correct last line break
-            if (sb.length() >0) sb.setLength(sb.length() - 1);
-            this.files = sb.toString();
-            
         }
 	}
 
@@ -233,14 +247,44 @@ public class WgetScriptGenerator {
 	}
 
 	/**
-	 * Returns the Wget bash script as a string.
+	 * Completes the Wget bash script, writing out the rest of the template
+	 * (including all messages) after the file listing.
+	 * Nothing is written if no file was added to the script.
 	 * @param desc descriptor to fill into the script
-	 * @return the string containing the whole script
+	 * @throws IOException
 	 */
-	static public String getWgetScript(WgetDescriptor desc) {
-		String template = getTemplate(null);
+	static public void finish(WgetDescriptor desc) throws IOException {
+		if (desc.getFileCount() == 0) return;
 		desc.flush();
 		
+		desc.out.write(replace(TEMPLATE_TAIL, getTags(desc)));
+		desc.out.flush();
+	}
+	
+	/**
+	 * Terminates a Wget bash script that cannot be completed (e.g. because a page of
+	 * files could not be retrieved after the first lines were sent): the file listing
+	 * is closed, and the script exits with an error before downloading anything,
+	 * instead of silently processing an incomplete listing.
+	 * Nothing is written if no file was added to the script.
+	 * @param desc descriptor of the script being written
+	 * @throws IOException
+	 */
+	static public void abort(WgetDescriptor desc) throws IOException {
+		if (desc.getFileCount() == 0) return;
+		
+		desc.out.write(TEMPLATE_FILES_END);
+		desc.out.write(String.format("\necho \"ERROR: this script is incomplete, the search failed after %d file(s). "
+		                             + "Please download it again.\" >&2\nexit 1\n", desc.getFileCount()));
+		desc.out.flush();
+	}
+	
+	/**
+	 * Extracts all the tags used in the template from the descriptor.
+	 * @param desc
+	 * @return a map<tag, value>
+	 */
+	static private Map<String, String> getTags(WgetDescriptor desc) {
 		Map<String, String> tags = new HashMap<String, String>();
 		// extract using reflections all string from the description
 		try {
@@ -260,15 +304,20 @@ public class WgetScriptGenerator {
 			e.printStackTrace();
 		}
 		tags.put("date", DATE_FORMAT.format(new Date()));
-
-		template = replace(template, tags);
-		return template;
+		return tags;
 	}
 
 	//point to the resource holding the template (where?)
 	static private final String TEMPLATE_LOC = "WEB-INF/wget-template";
 	static private String TEMPLATE;
 	
+	//the template is split at the file listing
+	static private final String FILES_TAG = "{{files}}";
+	static private String TEMPLATE_HEAD;
+	static private String TEMPLATE_TAIL;
+	//the end of the file listing: EOF--... )"
+	static private String TEMPLATE_FILES_END;
+	
 	static private final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat(
 			"yyyy/MM/dd HH:mm:ss");
 
@@ -294,6 +343,14 @@ public class WgetScriptGenerator {
 				sb.append(buff, 0, read);
 
 				TEMPLATE = sb.toString();
+				
+				int pos = TEMPLATE.indexOf(FILES_TAG);
+				if (pos < 0) throw new IOException("Missing " + FILES_TAG + " tag in template");
+				TEMPLATE_HEAD = TEMPLATE.substring(0, pos);
+				TEMPLATE_TAIL = TEMPLATE.substring(pos + FILES_TAG.length());
+				int end = TEMPLATE_TAIL.indexOf(")\"");
+				if (end < 0) throw new IOException("Missing end of the file listing in template");
+				TEMPLATE_FILES_END = TEMPLATE_TAIL.substring(0, end + 2);
 
 			} catch (IOException e) {
 			    //would we actually want to let the servlet load?
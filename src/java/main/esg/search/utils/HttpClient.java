@@ -18,23 +18,53 @@
  ******************************************************************************/
 package esg.search.utils;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
 
 /**
  * Simple class to execute an HTTP GET/POST request,
  * and return the HTTP response as a single string.
+ * 
+ * All requests are executed over persistent connections drawn from the shared {@link HttpConnectionPool},
+ * so that successive requests to the same server do not pay the cost of a new TCP/TLS handshake.
+ * Responses that are copied to an output stream, or returned as a stream to a streaming client (see {@link #setStreaming(boolean)}),
+ * use the separate streaming pool instead, as they can hold their connection for as long as the client takes to read them.
+ * Instances of this class are lightweight and can be created on demand.
+ * A request in progress can be aborted from another thread, which releases its connection.
  */
 public class HttpClient {
         
     // default time outs ("A timeout of zero is interpreted as an infinite timeout.")
     private int connectionTimeout = 0;
     private int readTimeout = 0;
+    
+    // use the streaming connection pool
+    private boolean streaming = false;
+    
+    private final static String UTF8 = "UTF-8";
+    
+    // size of the buffer used when copying a response to an output stream
+    private final static int BUFFER_SIZE = 8192;
+    
+    // the last request executed by this client, and whether it was aborted
+    private volatile HttpRequestBase request = null;
+    private volatile boolean aborted = false;
     	
 	/**
 	 * Method to execute an HTTP GET request.
@@ -44,24 +74,10 @@ public class HttpClient {
 	 */
 	public String doGet(final URL url) throws IOException {
 		
-		HttpURLConnection connection = null;
-		try {
-
-			// prepare HTTP request
-			connection = (HttpURLConnection)url.openConnection();
-			if (connectionTimeout!=0) connection.setConnectTimeout(connectionTimeout);
-			if (readTimeout!=0) connection.setReadTimeout(readTimeout);
-			connection.setUseCaches(false);
-
-			// execute HTTP request
-			String response = getResponse(connection);
-			return response;
-
-		} finally {
-		    if (connection != null) {
-		    	connection.disconnect();
-		    }
-		}
+		final HttpGet request = new HttpGet(toUri(url));
+		
+		// execute HTTP request
+		return getResponse(request);
 		
 	}
 	
@@ -75,76 +91,225 @@ public class HttpClient {
 	 */
 	public String doPost(final URL url, final String data, boolean xml) throws IOException {
 		
-		HttpURLConnection connection = null;
-		OutputStreamWriter wr = null;
-		
-		try {
-
-		    // prepare HTTP request
-			connection = (HttpURLConnection)url.openConnection();
-		    connection.setUseCaches(false);
-		    connection.setDoOutput(true); // POST method
-		    if (connectionTimeout!=0) connection.setConnectTimeout(connectionTimeout);
-		    if (readTimeout!=0) connection.setReadTimeout(readTimeout);
-		    if (xml) connection.setRequestProperty("Content-Type", "text/xml");
-		    connection.setRequestProperty("Charset", "utf-8");
-		    
-		    // send HTTP request
-		    wr = new OutputStreamWriter(connection.getOutputStream());
-		    wr.write(data);
-		    wr.flush();
-
-		    // receive HTTP response
-		    String response = getResponse(connection);
-		    return response;
-
-		} finally {		
-		    if (wr != null) {
-		        try {
-		            wr.close();
-		        } catch (IOException e) {
-		        }
-		    }
-		    if (connection != null) {
-		    	connection.disconnect();
-		    }
-		}
+	    // prepare HTTP request
+	    final HttpPost request = buildPost(url, data, xml);
+	    
+	    // send HTTP request, receive HTTP response
+	    return getResponse(request);
 		
 	}
 	
+	/**
+	 * Method to send a POST request and copy the HTTP response body directly to the given output stream,
+	 * through a buffer of bounded size, without ever holding the full response in memory.
+	 * Note that if the server returns an error, an exception is thrown before anything is written to the output stream,
+	 * and that if the copy fails (for example, because the output stream is closed), the request is aborted.
+	 * 
+	 * @param url : the URL to post the request to - without any additional HTTP parameters
+	 * @param data : the data to be posted - possibly an XML document
+	 * @param xml : true to post an XML document - sets the request content-type accordingly
+	 * @param out : the output stream the response body is written to
+	 * @return : the number of bytes written
+	 * @throws IOException
+	 */
+	public long doPost(final URL url, final String data, boolean xml, final OutputStream out) throws IOException {
+	    
+	    final InputStream in = openStream(buildPost(url, data, xml), true);
+	    try {
+	        return copy(in, out);
+	    } finally {
+	        in.close();
+	    }
+	    
+	}
+	
+	/**
+	 * Method to send a POST request and return the HTTP response body as an input stream,
+	 * as soon as the response status and headers are received.
+	 * The caller must close the stream, which releases the underlying connection
+	 * (or shuts it down, if the response body was not read to the end).
+	 * 
+	 * @param url : the URL to post the request to - without any additional HTTP parameters
+	 * @param data : the data to be posted - possibly an XML document
+	 * @param xml : true to post an XML document - sets the request content-type accordingly
+	 * @return
+	 * @throws HttpStatusException if the server returned an error status code
+	 * @throws IOException
+	 */
+	public InputStream doPostStream(final URL url, final String data, boolean xml) throws IOException {
+	    
+	    return openStream(buildPost(url, data, xml), this.streaming);
+	    
+	}
+	
+	/**
+	 * Method to execute a request and return the HTTP response body as an input stream.
+	 * If the stream is closed before the end of the response body (for example, because the client of a streamed response 
+	 * went away), the request is aborted, rather than reading the rest of the response body to re-use the connection.
+	 * @param streaming : true to use the streaming connection pool
+	 */
+	private InputStream openStream(final HttpRequestBase request, final boolean streaming) throws IOException {
+	    
+	    final CloseableHttpResponse response = execute(request, streaming);
+	    
+	    final HttpEntity entity = response.getEntity();
+	    if (entity==null) {
+	        response.close();
+	        return new ByteArrayInputStream(new byte[0]);
+	    }
+	    
+	    return new FilterInputStream(entity.getContent()) {
+	        
+	        private boolean eof = false;
+	        
+	        @Override
+	        public int read() throws IOException {
+	            final int b = super.read();
+	            if (b==-1) eof = true;
+	            return b;
+	        }
+	        
+	        @Override
+	        public int read(byte[] b, int off, int len) throws IOException {
+	            final int n = super.read(b, off, len);
+	            if (n==-1) eof = true;
+	            return n;
+	        }
+	        
+	        @Override
+	        public void close() throws IOException {
+	            try {
+	                if (eof) {
+	                    super.close();
+	                } else {
+	                    request.abort();
+	                }
+	            } finally {
+	                response.close();
+	            }
+	        }
+	        
+	    };
+	    
+	}
+	
+	/**
+	 * Method to abort the request being executed by this client (if any), from another thread.
+	 * The request fails with an exception, or its response stream is closed if it was already received,
+	 * and the connection is shut down rather than returned to the pool.
+	 */
+	public void abort() {
+	    
+	    aborted = true;
+	    final HttpRequestBase request = this.request;
+	    if (request!=null) request.abort();
+	    
+	}
+	
+	/**
+	 * Method to copy a response body to an output stream, through a buffer of bounded size.
+	 * @param in
+	 * @param out
+	 * @return : the number of bytes written
+	 * @throws IOException
+	 */
+	public static long copy(final InputStream in, final OutputStream out) throws IOException {
+	    
+	    final byte[] buffer = new byte[BUFFER_SIZE];
+	    long count = 0;
+	    int n = 0;
+	    while ((n = in.read(buffer)) != -1) {
+	        out.write(buffer, 0, n);
+	        count += n;
+	    }
+	    return count;
+	    
+	}
+	
 	/**
 	 * Method to execute an HTTP request (GET/POST) and return the HTTP response.
-	 * @param connection
+	 * The response body is always fully consumed, so that the underlying connection is returned to the pool for re-use.
+	 * 
+	 * @param request
 	 * @return
 	 * @throws IOException
 	 */
-	private String getResponse(final URLConnection connection) throws IOException {
+	private String getResponse(final HttpRequestBase request) throws IOException {
 		
-	    BufferedReader rd = null;
+	    final CloseableHttpResponse response = execute(request, false);
 	    
 	    try {
-	    	
-	    	rd = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-		    final StringBuilder sb = new StringBuilder();
-		    String line = null;
-		    while ((line = rd.readLine()) != null) {
-		    	sb.append(line + "\n");
-		    }
-		    return sb.toString();
-	    
+	        final HttpEntity entity = response.getEntity();
+	        return (entity==null ? "" : EntityUtils.toString(entity, UTF8));
 	    } finally {
-	    	
-	    	if (rd != null) {
-	    		try {
-	    			rd.close();
-	    		} catch(Exception e) {
-	    		}
-	    	}
-	    	
+	    	response.close();
 	    }
 	    
 	}
 	
+	/**
+	 * Method to execute an HTTP request and check the response status.
+	 * In case of error, the response body is discarded and an exception is thrown.
+	 * 
+	 * @param request
+	 * @param streaming : true to use the streaming connection pool
+	 * @return : the open HTTP response, which must be closed by the caller
+	 * @throws HttpStatusException if the server returned an error status code
+	 * @throws IOException
+	 */
+	private CloseableHttpResponse execute(final HttpRequestBase request, final boolean streaming) throws IOException {
+	    
+	    request.setConfig(getRequestConfig());
+	    this.request = request;
+	    if (aborted) request.abort();
+	    final HttpConnectionPool pool = HttpConnectionPool.getInstance();
+	    final CloseableHttpResponse response = (streaming ? pool.getStreamingHttpClient() : pool.getHttpClient()).execute(request);
+	    
+	    final int status = response.getStatusLine().getStatusCode();
+	    if (status>=400) {
+	        try {
+	            EntityUtils.consume(response.getEntity());
+	        } finally {
+	            response.close();
+	        }
+	        throw new HttpStatusException(status, "Server returned HTTP response code: "+status+" for URL: "+request.getURI());
+	    }
+	    
+	    return response;
+	    
+	}
+	
+	private HttpPost buildPost(final URL url, final String data, boolean xml) throws IOException {
+	    
+	    final HttpPost request = new HttpPost(toUri(url));
+	    final ContentType contentType = xml ? ContentType.create("text/xml", UTF8) 
+	                                        : ContentType.create("application/x-www-form-urlencoded", UTF8);
+	    request.setEntity(new StringEntity(data, contentType));
+	    return request;
+	    
+	}
+	
+	/**
+	 * Method to build the per-request configuration from this client's timeouts.
+	 * Note that the connection timeout also bounds the time spent waiting for a free connection from the pool.
+	 * @return
+	 */
+	private RequestConfig getRequestConfig() {
+	    return RequestConfig.custom()
+	                        .setConnectTimeout(connectionTimeout)
+	                        .setConnectionRequestTimeout(connectionTimeout)
+	                        .setSocketTimeout(readTimeout)
+	                        .build();
+	}
+	
+	private static URI toUri(final URL url) throws IOException {
+	    try {
+	        return url.toURI();
+	    } catch(URISyntaxException e) {
+	        throw new IOException("Invalid URL: "+url, e);
+	    }
+	}
+	
     public void setConnectionTimeout(int connectionTimeout) {
         this.connectionTimeout = connectionTimeout;
     }
@@ -152,6 +317,15 @@ public class HttpClient {
     public void setReadTimeout(int readTimeout) {
         this.readTimeout = readTimeout;
     }
+    
+    /**
+     * Method to draw the connections from the streaming pool, 
+     * when the response streams returned by this client are copied to a client of the application.
+     * @param streaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
 
 
 }
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.utils;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.util.StringUtils;
+
+import esg.search.query.api.QueryParameters;
+
+/**
+ * Singleton pool of persistent (keep-alive) HTTP connections, 
+ * shared by all instances of {@link HttpClient} within the same JVM.
+ * 
+ * The pool limits the number of open connections (overall, and to each single host),
+ * and runs a background thread that closes the connections that have been idle for longer than a configurable time.
+ * Responses that are streamed to a client draw their connections from a separate streaming pool with its own limits,
+ * so that long running downloads cannot use up the connections of the regular requests.
+ * The pool limits and idle time can be changed at runtime through the configure() method, 
+ * which is invoked by Spring at application startup with the node-specific ESGF properties.
+ */
+public class HttpConnectionPool {
+    
+    /**
+     * The single shared instance.
+     */
+    private static HttpConnectionPool instance = null;
+    
+    /**
+     * Time interval (in milliseconds) between successive checks for idle connections.
+     */
+    private final static long EVICTION_INTERVAL = 5000;
+    
+    /**
+     * Time interval (in milliseconds) after which a connection is validated before being re-used.
+     */
+    private final static int VALIDATE_AFTER_INACTIVITY = 2000;
+    
+    private final PoolingHttpClientConnectionManager connectionManager;
+    
+    private final CloseableHttpClient httpClient;
+    
+    private final PoolingHttpClientConnectionManager streamingConnectionManager;
+    
+    private final CloseableHttpClient streamingHttpClient;
+    
+    private final Thread evictor;
+    
+    private volatile long idleTimeout = QueryParameters.DEFAULT_HTTP_IDLE_TIMEOUT;
+    
+    private volatile boolean shutdown = false;
+    
+    private static final Log LOG = LogFactory.getLog(HttpConnectionPool.class);
+    
+    /**
+     * Private constructor initializes the pool with default values.
+     */
+    private HttpConnectionPool() {
+        
+        connectionManager = newConnectionManager(QueryParameters.DEFAULT_HTTP_MAX_CONNECTIONS, 
+                                                 QueryParameters.DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST);
+        httpClient = newHttpClient(connectionManager);
+        streamingConnectionManager = newConnectionManager(QueryParameters.DEFAULT_HTTP_STREAMING_MAX_CONNECTIONS, 
+                                                          QueryParameters.DEFAULT_HTTP_STREAMING_MAX_CONNECTIONS_PER_HOST);
+        streamingHttpClient = newHttpClient(streamingConnectionManager);
+        
+        evictor = new Thread("esg-search-http-evictor") {
+            @Override
+            public void run() {
+                while (!shutdown) {
+                    try {
+                        Thread.sleep(EVICTION_INTERVAL);
+                        for (final PoolingHttpClientConnectionManager cm : new PoolingHttpClientConnectionManager[] { 
+                                connectionManager, streamingConnectionManager }) {
+                            cm.closeExpiredConnections();
+                            cm.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                        }
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        evictor.setDaemon(true);
+        evictor.start();
+        
+    }
+    
+    private static PoolingHttpClientConnectionManager newConnectionManager(final int maxTotal, final int maxPerRoute) {
+        
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+        return connectionManager;
+        
+    }
+    
+    private static CloseableHttpClient newHttpClient(final PoolingHttpClientConnectionManager connectionManager) {
+        
+        // note: honor the standard JVM proxy settings, as the previous HttpURLConnection-based transport did
+        return HttpClients.custom()
+                          .setConnectionManager(connectionManager)
+                          .disableCookieManagement()
+                          .useSystemProperties()
+                          .build();
+        
+    }
+    
+    /**
+     * Method to return the shared instance, initialized with default values if not configured yet.
+     * @return
+     */
+    public static synchronized HttpConnectionPool getInstance() {
+        if (instance==null) instance = new HttpConnectionPool();
+        return instance;
+    }
+    
+    /**
+     * Factory method that configures the shared instance from the given properties
+     * (properties that are not set retain their current value).
+     * 
+     * @param props
+     * @return
+     */
+    public static synchronized HttpConnectionPool configure(final Properties props) {
+        
+        final HttpConnectionPool pool = getInstance();
+        
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HTTP_MAX_CONNECTIONS)))
+            pool.connectionManager.setMaxTotal(Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_HTTP_MAX_CONNECTIONS)));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HTTP_MAX_CONNECTIONS_PER_HOST)))
+            pool.connectionManager.setDefaultMaxPerRoute(Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_HTTP_MAX_CONNECTIONS_PER_HOST)));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HTTP_STREAMING_MAX_CONNECTIONS)))
+            pool.streamingConnectionManager.setMaxTotal(Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_HTTP_STREAMING_MAX_CONNECTIONS)));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HTTP_STREAMING_MAX_CONNECTIONS_PER_HOST)))
+            pool.streamingConnectionManager.setDefaultMaxPerRoute(Integer.parseInt(props.getProperty(QueryParameters.PROPERTY_HTTP_STREAMING_MAX_CONNECTIONS_PER_HOST)));
+        if (StringUtils.hasText(props.getProperty(QueryParameters.PROPERTY_HTTP_IDLE_TIMEOUT)))
+            pool.idleTimeout = Long.parseLong(props.getProperty(QueryParameters.PROPERTY_HTTP_IDLE_TIMEOUT));
+        
+        if (LOG.isInfoEnabled()) {
+            LOG.info("HTTP connection pool max connections="+pool.connectionManager.getMaxTotal());
+            LOG.info("HTTP connection pool max connections per host="+pool.connectionManager.getDefaultMaxPerRoute());
+            LOG.info("HTTP streaming connection pool max connections="+pool.streamingConnectionManager.getMaxTotal());
+            LOG.info("HTTP streaming connection pool max connections per host="+pool.streamingConnectionManager.getDefaultMaxPerRoute());
+            LOG.info("HTTP connection pool idle timeout="+pool.idleTimeout);
+        }
+        
+        return pool;
+        
+    }
+    
+    /**
+     * Method to return the thread-safe HTTP client that draws its connections from this pool.
+     * @return
+     */
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+    
+    /**
+     * Method to return the thread-safe HTTP client that draws its connections from the streaming pool.
+     * @return
+     */
+    public CloseableHttpClient getStreamingHttpClient() {
+        return streamingHttpClient;
+    }
+    
+    /**
+     * Method to report the current usage of the pool (leased, pending and available connections).
+     * @return
+     */
+    public String getStats() {
+        return connectionManager.getTotalStats().toString();
+    }
+    
+    /**
+     * Method to report the current usage of the streaming pool.
+     * @return
+     */
+    public String getStreamingStats() {
+        return streamingConnectionManager.getTotalStats().toString();
+    }
+    
+    /**
+     * Method to close all pooled connections and stop the eviction thread.
+     * It is invoked by Spring when the application context is closed.
+     */
+    public void shutdown() {
+        
+        shutdown = true;
+        evictor.interrupt();
+        connectionManager.shutdown();
+        streamingConnectionManager.shutdown();
+        
+        synchronized (HttpConnectionPool.class) {
+            if (instance==this) instance = null;
+        }
+        
+    }
+
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.perf;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+
+/**
+ * Utility class that composes Solr/XML "select" responses of realistic size for the benchmarks.
+ * 
+ * The documents are copies of the example CMIP5 records in resources/records (with distinct identifiers),
+ * formatted as returned by the ESGF Solr cores. The facet counts cover all the CMIP5 facets (as for facets=*),
+ * with the typical number of values of a federated CMIP5 index.
+ */
+public class SolrResponses {
+    
+    /**
+     * Fields that are single-valued in the ESGF Solr schema, by element type.
+     */
+    private final static Set<String> STR_FIELDS = new HashSet<String>(Arrays.asList(new String[] {
+            "id", "type", "title", "dataset_id", "master_id", "instance_id", "data_node", "index_node" }));
+    private final static Set<String> BOOL_FIELDS = new HashSet<String>(Arrays.asList(new String[] { "replica", "latest" }));
+    private final static Set<String> LONG_FIELDS = new HashSet<String>(Arrays.asList(new String[] { "version", "size", "number_of_files" }));
+    private final static Set<String> DATE_FIELDS = new HashSet<String>(Arrays.asList(new String[] { "timestamp", "datetime_start", "datetime_stop" }));
+    private final static Set<String> FLOAT_FIELDS = new HashSet<String>(Arrays.asList(new String[] { 
+            "east_degrees", "west_degrees", "north_degrees", "south_degrees", "height_top", "height_bottom" }));
+    
+    /**
+     * CMIP5 facets, with the number of distinct values of each facet.
+     */
+    private final static Map<String, Integer> FACETS = new LinkedHashMap<String, Integer>();
+    static {
+        FACETS.put("project", 40);
+        FACETS.put("product", 10);
+        FACETS.put("institute", 45);
+        FACETS.put("model", 110);
+        FACETS.put("experiment", 100);
+        FACETS.put("experiment_family", 10);
+        FACETS.put("time_frequency", 12);
+        FACETS.put("realm", 8);
+        FACETS.put("cmor_table", 40);
+        FACETS.put("ensemble", 300);
+        FACETS.put("variable", 1000);
+        FACETS.put("variable_long_name", 1000);
+        FACETS.put("cf_standard_name", 800);
+        FACETS.put("data_node", 50);
+        FACETS.put("index_node", 10);
+    }
+    
+    private SolrResponses() {}
+    
+    /**
+     * @return : the facets included in the responses
+     */
+    public static List<String> getFacets() {
+        return new ArrayList<String>(FACETS.keySet());
+    }
+    
+    /**
+     * Method to compose a response containing dataset records.
+     * @param n : number of records
+     * @param facets : true to include the counts of all facets
+     */
+    public static String datasets(final int n, final boolean facets) throws Exception {
+        return response(load("cmip5_dataset.xml"), n, facets);
+    }
+    
+    /**
+     * Method to compose a response containing file records (without facets).
+     * @param n : number of records
+     */
+    public static String files(final int n) throws Exception {
+        return response(load("cmip5_file.xml"), n, false);
+    }
+    
+    private static String response(final Map<String, List<String>> record, final int n, final boolean facets) {
+        
+        final StringBuilder sb = new StringBuilder(n*4096);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>\n");
+        sb.append("<lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">42</int>")
+          .append("<lst name=\"params\"><str name=\"indent\">true</str><str name=\"q\">*:*</str>")
+          .append("<str name=\"start\">0</str><str name=\"rows\">").append(n).append("</str></lst></lst>\n");
+        
+        sb.append("<result name=\"response\" numFound=\"").append(n*100).append("\" start=\"0\" maxScore=\"1.0\">\n");
+        for (int i=0; i<n; i++) {
+            sb.append("<doc><float name=\"score\">1.0</float>");
+            for (final Map.Entry<String, List<String>> field : record.entrySet()) {
+                final String name = field.getKey();
+                final String type = getType(name);
+                if (type!=null) {
+                    appendElement(sb, type, name, vary(name, field.getValue().get(0), i));
+                } else {
+                    sb.append("<arr name=\"").append(name).append("\">");
+                    for (final String value : field.getValue()) {
+                        appendElement(sb, "str", null, vary(name, value, i));
+                    }
+                    sb.append("</arr>");
+                }
+            }
+            sb.append("</doc>\n");
+        }
+        sb.append("</result>\n");
+        
+        if (facets) {
+            final Random random = new Random(0);
+            sb.append("<lst name=\"facet_counts\"><lst name=\"facet_queries\"/><lst name=\"facet_fields\">\n");
+            for (final Map.Entry<String, Integer> facet : FACETS.entrySet()) {
+                sb.append("<lst name=\"").append(facet.getKey()).append("\">");
+                for (int j=0; j<facet.getValue(); j++) {
+                    sb.append("<int name=\"").append(facet.getKey()).append("_value_").append(j).append("\">")
+                      .append(random.nextInt(100000)).append("</int>");
+                }
+                sb.append("</lst>\n");
+            }
+            sb.append("</lst><lst name=\"facet_dates\"/><lst name=\"facet_ranges\"/></lst>\n");
+        }
+        
+        sb.append("</response>\n");
+        return sb.toString();
+        
+    }
+    
+    private static String getType(final String name) {
+        if (STR_FIELDS.contains(name)) return "str";
+        if (BOOL_FIELDS.contains(name)) return "bool";
+        if (LONG_FIELDS.contains(name)) return "long";
+        if (DATE_FIELDS.contains(name)) return "date";
+        if (FLOAT_FIELDS.contains(name)) return "float";
+        return null;
+    }
+    
+    /**
+     * Method to make the identifiers, file names and checksums of each record distinct.
+     */
+    private static String vary(final String name, final String value, final int i) {
+        if (name.equals("id") || name.equals("instance_id") || name.equals("master_id") 
+         || name.equals("title") || name.equals("url")) {
+            return value.replace(".nc", "_"+i+".nc").replace("v2011", "v"+i+"_2011");
+        } else if (name.equals("checksum")) {
+            return value.substring(0, value.length()-8) + String.format("%08x", i);
+        } else {
+            return value;
+        }
+    }
+    
+    private static void appendElement(final StringBuilder sb, final String type, final String name, final String value) {
+        sb.append("<").append(type);
+        if (name!=null) sb.append(" name=\"").append(name).append("\"");
+        sb.append(">").append(escape(value)).append("</").append(type).append(">");
+    }
+    
+    private static String escape(final String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+    
+    /**
+     * Method to load an example record (in Solr update format) from the classpath.
+     */
+    private static Map<String, List<String>> load(final String resource) throws Exception {
+        
+        final InputStream in = SolrResponses.class.getResourceAsStream(resource);
+        if (in==null) throw new IllegalStateException("Missing benchmark resource: "+resource);
+        try {
+            final Document doc = new SAXBuilder().build(in);
+            final Map<String, List<String>> record = new LinkedHashMap<String, List<String>>();
+            for (final Element field : doc.getRootElement().getChildren("field")) {
+                final String name = field.getAttributeValue("name");
+                if (!record.containsKey(name)) record.put(name, new ArrayList<String>());
+                record.get(name).add(field.getTextNormalize());
+            }
+            return record;
+        } finally {
+            in.close();
+        }
+        
+    }
+
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.perf;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import esg.search.query.api.QueryParameters;
+import esg.search.query.impl.solr.SearchInputImpl;
+import esg.search.query.impl.solr.SolrUrlBuilder;
+
+/**
+ * Benchmark of {@link SolrUrlBuilder#buildSelectQueryString()}, which is executed for every search request,
+ * for typical CMIP5 constraint sets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SolrUrlBuilderBenchmark {
+    
+    /**
+     * simple: a single facet constraint
+     * cmip5: several multi-valued facet constraints, as sent by the CMIP5 search pages
+     * negated: negative facet constraints, free text, latest/replica
+     * temporal: time range, version range, bounding box, sorted
+     */
+    @Param({"simple", "cmip5", "negated", "temporal"})
+    public String constraints;
+    
+    private SolrUrlBuilder builder;
+    
+    @Setup
+    public void setup() throws Exception {
+        
+        final SearchInputImpl input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        if (constraints.equals("simple")) {
+            input.addConstraint("project", "CMIP5");
+            
+        } else if (constraints.equals("cmip5")) {
+            input.addConstraint("project", "CMIP5");
+            input.addConstraint("experiment", "historical");
+            input.addConstraint("experiment", "rcp45");
+            input.addConstraint("experiment", "rcp85");
+            input.addConstraint("model", "CESM1(CAM5.1,FV2)");
+            input.addConstraint("model", "HadGEM2-ES");
+            input.addConstraint("time_frequency", "mon");
+            input.addConstraint("realm", "atmos");
+            input.addConstraint("variable", "tas");
+            input.addConstraint("variable", "pr");
+            input.addConstraint("ensemble", "r1i1p1");
+            
+        } else if (constraints.equals("negated")) {
+            input.setQuery("surface air temperature");
+            input.addConstraint("project", "CMIP5");
+            input.addConstraint("institute!", "NCAR");
+            input.addConstraint("institute!", "MOHC");
+            input.setConstraint(QueryParameters.FIELD_LATEST, "true");
+            input.setConstraint(QueryParameters.FIELD_REPLICA, "false");
+            
+        } else {
+            input.addConstraint("project", "CMIP5");
+            input.setConstraint(QueryParameters.FIELD_START, "2000-01-01T00:00:00Z");
+            input.setConstraint(QueryParameters.FIELD_END, "2010-12-31T23:59:59Z");
+            input.setConstraint(QueryParameters.FIELD_MIN_VERSION, "20110101");
+            input.setConstraint(QueryParameters.FIELD_BBOX, "[-10, -20, 30, 40]");
+            input.setSort(true);
+        }
+        
+        builder = new SolrUrlBuilder(new URL("http://localhost:8983/solr"));
+        builder.setSearchInput(input);
+        builder.setFacets(SolrResponses.getFacets());
+        builder.setDefaultShards(new LinkedHashSet<String>(Arrays.asList(new String[] { 
+                "localhost:8983/solr", "esgf-node.llnl.gov:8983/solr", "esgf-data.dkrz.de:8983/solr" })));
+        
+    }
+    
+    @Benchmark
+    public String buildSelectQueryString() throws Exception {
+        return builder.buildSelectQueryString();
+    }
+
+}
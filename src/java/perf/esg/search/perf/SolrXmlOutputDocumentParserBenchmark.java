@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.perf;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.springframework.mock.web.MockServletContext;
+
+import esg.search.query.impl.solr.SolrXmlOutputDocumentParser;
+import esg.search.query.ws.rest.WgetScriptGenerator;
+
+/**
+ * Benchmark of {@link SolrXmlOutputDocumentParser#extractFiles(String, WgetScriptGenerator.WgetDescriptor)}
+ * on a page of 10,000 files, writing the wget script to a writer that discards its output.
+ * The wget template is loaded from WEB-INF/wget-template on the benchmark classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SolrXmlOutputDocumentParserBenchmark {
+    
+    private final SolrXmlOutputDocumentParser parser = new SolrXmlOutputDocumentParser();
+    private String xml;
+    
+    @Setup
+    public void setup() throws Exception {
+        WgetScriptGenerator.init(new MockServletContext());
+        xml = SolrResponses.files(10000);
+    }
+    
+    @Benchmark
+    public int extractFiles() throws Exception {
+        final WgetScriptGenerator.WgetDescriptor desc = new WgetScriptGenerator.WgetDescriptor("localhost", "", "http://localhost/esg-search/wget", new NullWriter());
+        return parser.extractFiles(xml, desc);
+    }
+    
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {}
+        @Override
+        public void flush() {}
+        @Override
+        public void close() {}
+    }
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.perf;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchOutput;
+import esg.search.query.impl.solr.SearchInputImpl;
+import esg.search.query.impl.solr.SolrXmlParser;
+
+/**
+ * Benchmark of {@link SolrXmlParser#parse(String, esg.search.query.api.SearchInput)}, for both parser implementations,
+ * on a page of 10 datasets with all facets, and on a page of 10,000 files (as requested by wget scripts).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SolrXmlParserBenchmark {
+    
+    @Param({QueryParameters.XML_PARSER_STAX, QueryParameters.XML_PARSER_JDOM})
+    public String parser;
+    
+    @Param({"datasets", "files"})
+    public String response;
+    
+    private SolrXmlParser xmlParser;
+    private SearchInputImpl input;
+    private String xml;
+    
+    @Setup
+    public void setup() throws Exception {
+        
+        final Properties props = new Properties();
+        props.setProperty(QueryParameters.PROPERTY_XML_PARSER, parser);
+        xmlParser = SolrXmlParser.getInstance(props);
+        
+        if (response.equals("datasets")) {
+            input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+            input.addConstraint("project", "CMIP5");
+            input.setFacets(SolrResponses.getFacets());
+            xml = SolrResponses.datasets(10, true);
+        } else {
+            input = new SearchInputImpl(QueryParameters.TYPE_FILE);
+            xml = SolrResponses.files(10000);
+        }
+        
+    }
+    
+    @Benchmark
+    public SearchOutput parse() throws Exception {
+        return xmlParser.parse(xml, input);
+    }
+
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.ws.rest;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import esg.search.perf.SolrResponses;
+import esg.search.query.api.SearchReturnType;
+import esg.search.query.impl.solr.PropertiesFileFacetProfileImpl;
+
+/**
+ * Benchmark of the validation of the HTTP request parameters by {@link BaseController},
+ * for a typical CMIP5 search request (the back-end search service is never invoked).
+ * This benchmark is located in the controller package because the validation methods are package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BaseControllerBenchmark {
+    
+    private BaseController controller;
+    private MockHttpServletRequest request;
+    
+    @Setup
+    public void setup() throws Exception {
+        
+        final LinkedHashMap<String, String> facets = new LinkedHashMap<String, String>();
+        for (final String facet : SolrResponses.getFacets()) {
+            facets.put(facet, facet);
+        }
+        controller = new BaseController(null, new PropertiesFileFacetProfileImpl(facets));
+        
+        request = new MockHttpServletRequest("GET", "/esg-search/search");
+        request.addParameter("type", "Dataset");
+        request.addParameter("project", "CMIP5");
+        request.addParameter("experiment", "historical,rcp45,rcp85");
+        request.addParameter("model", "CESM1(CAM5.1,FV2)");
+        request.addParameter("model", "HadGEM2-ES");
+        request.addParameter("time_frequency", "mon");
+        request.addParameter("variable", "tas,pr");
+        request.addParameter("facets", "*");
+        request.addParameter("fields", "id,title,size");
+        request.addParameter("limit", "10");
+        request.addParameter("format", SearchReturnType.SOLR_XML.getMimeType());
+        
+    }
+    
+    @Benchmark
+    public SearchReturnType validate() throws Exception {
+        
+        final SearchCommand command = new SearchCommand();
+        command.setFacets(Arrays.asList(request.getParameterValues("facets")));
+        command.setFields(new HashSet<String>(Arrays.asList(request.getParameterValues("fields"))));
+        command.setFormat(request.getParameter("format"));
+        return controller.validate(request, command, new MockHttpServletResponse());
+        
+    }
+    
+    @Benchmark
+    public String[] splitValue() {
+        return controller.splitValue("CESM1(CAM5.1,FV2),HadGEM2-ES,MPI-ESM-LR");
+    }
+
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+
+/**
+ * Test class for {@link SolrUrlBuilder}: equivalent searches must generate byte-identical query strings,
+ * so that they hit the same Solr filter cache entries (and the same cache entries of this application).
+ */
+public class SolrUrlBuilderTest {
+    
+    @Test
+    public void testConstraintOrder() throws Exception {
+        
+        final SearchInput input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.addConstraint("project", "CMIP5");
+        input1.addConstraint("experiment", "historical");
+        input1.addConstraint("model", "HadGEM2-ES");
+        
+        final SearchInput input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.addConstraint("model", "HadGEM2-ES");
+        input2.addConstraint("experiment", "historical");
+        input2.addConstraint("project", "CMIP5");
+        
+        final String queryString = assertSameQueryString(input1, input2);
+        assertTrue(queryString.contains("&fq=experiment%3A%22historical%22&fq=model%3A%22HadGEM2-ES%22&fq=project%3A%22CMIP5%22"));
+        
+    }
+    
+    @Test
+    public void testRepeatedValues() throws Exception {
+        
+        final SearchInput input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.addConstraint("variable", "tas");
+        input1.addConstraint("variable", "clt");
+        input1.addConstraint("variable", "tas");
+        
+        final SearchInput input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.addConstraint("variable", "clt");
+        input2.addConstraint("variable", "tas");
+        
+        final String queryString = assertSameQueryString(input1, input2);
+        assertTrue(queryString.contains("&fq=variable%3A%22clt%22+%7C%7C+variable%3A%22tas%22&"));
+        
+    }
+    
+    @Test
+    public void testNegativeValues() throws Exception {
+        
+        final SearchInput input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.addConstraint("variable!", "huss");
+        input1.addConstraint("variable!", "clt");
+        input1.addConstraint("experiment", "historical");
+        
+        final SearchInput input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.addConstraint("experiment", "historical");
+        input2.addConstraint("variable!", "clt");
+        input2.addConstraint("variable!", "huss");
+        input2.addConstraint("variable!", "clt");
+        
+        // a single purely negative filter query
+        final String queryString = assertSameQueryString(input1, input2);
+        assertTrue(queryString.contains("&fq=-variable%3A%22clt%22+-variable%3A%22huss%22&"));
+        
+    }
+    
+    @Test
+    public void testFieldOrder() throws Exception {
+        
+        final SearchInput input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.setFields(new LinkedHashSet<String>(Arrays.asList("title", "id", "size")));
+        
+        final SearchInput input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.setFields(new LinkedHashSet<String>(Arrays.asList("size", "title", "id")));
+        
+        final String queryString = assertSameQueryString(input1, input2);
+        assertTrue(queryString.contains("&fl=id,size,title,score&"));
+        
+    }
+    
+    @Test
+    public void testWhitespace() throws Exception {
+        
+        // free text
+        SearchInput input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.setQuery("  temperature ");
+        SearchInput input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.setQuery("temperature");
+        assertTrue(assertSameQueryString(input1, input2).contains("&q=temperature&"));
+        
+        // bounding box: [west, south, east, north]
+        input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.addConstraint(QueryParameters.FIELD_BBOX, "[-10, 20 ,30 ,  40.0]");
+        input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.addConstraint(QueryParameters.FIELD_BBOX, "[-10.0,20,30,40]");
+        assertSameQueryString(input1, input2);
+        assertSameQueryString(input1, input2, true);
+        
+        // point and radius
+        input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.addConstraint(QueryParameters.FIELD_LAT, " 10");
+        input1.addConstraint(QueryParameters.FIELD_LON, "20 ");
+        input1.addConstraint(QueryParameters.FIELD_RADIUS, " 1000 ");
+        input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.addConstraint(QueryParameters.FIELD_RADIUS, "1000");
+        input2.addConstraint(QueryParameters.FIELD_LON, "20.0");
+        input2.addConstraint(QueryParameters.FIELD_LAT, "10");
+        assertSameQueryString(input1, input2, true);
+        
+        // polygon
+        input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.addConstraint(QueryParameters.FIELD_POLYGON, " 10, 20 ,30,40 , 10,20");
+        input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.addConstraint(QueryParameters.FIELD_POLYGON, "10,20,30,40,10,20");
+        assertSameQueryString(input1, input2, true);
+        
+    }
+    
+    @Test
+    public void testDateRounding() throws Exception {
+        
+        // relative dates are rounded to the hour by default: lower bounds down, upper bounds up
+        final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input.setFrom("NOW-1DAY");
+        input.setTo("NOW");
+        assertTrue(build(input, false).contains("&fq=_timestamp%3A%5BNOW%2FHOUR-1DAY+TO+NOW%2FHOUR%2B1HOUR%5D&"));
+        
+        // absolute dates are unchanged
+        final SearchInput input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.setFrom("2012-01-01T00:00:00Z");
+        assertTrue(build(input2, false).contains("&fq=_timestamp%3A%5B2012-01-01T00%3A00%3A00Z+TO+*%5D&"));
+        
+    }
+    
+    @Test
+    public void testDifferentSearches() throws Exception {
+        
+        final SearchInput input1 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input1.addConstraint("variable", "clt");
+        final SearchInput input2 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input2.addConstraint("variable", "clt");
+        input2.addConstraint("variable", "tas");
+        final SearchInput input3 = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input3.addConstraint("variable!", "clt");
+        
+        assertFalse(build(input1, false).equals(build(input2, false)));
+        assertFalse(build(input1, false).equals(build(input3, false)));
+        
+    }
+    
+    @Test
+    public void testUncachedFilters() throws Exception {
+        
+        final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input.addConstraint(QueryParameters.FIELD_ID, "abc");
+        input.addConstraint("project", "CMIP5");
+        
+        final String queryString = build(input, false);
+        assertTrue(queryString.contains("&fq=%7B%21cache%3Dfalse%7Did%3A%22abc%22&"));
+        assertTrue(queryString.contains("&fq=project%3A%22CMIP5%22&"));
+        
+    }
+    
+    @Test
+    public void testShardMergeFields() throws Exception {
+        
+        // the shards of a federated search return the sort fields even if not requested
+        final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input.setFields(new HashSet<String>(Arrays.asList(new String[] { "title" })));
+        input.setSort(true);
+        
+        final SolrUrlBuilder builder = new SolrUrlBuilder(new URL("http://localhost:8983/solr"));
+        builder.setSearchInput(input);
+        final String queryString = builder.buildShardQueryString();
+        assertTrue(queryString.contains("&fl=title,_timestamp,id,score&"));
+        assertTrue(queryString.contains("&sort=_timestamp+desc%2Cid+asc"));
+        assertEquals(new TreeSet<String>(Arrays.asList(new String[] { "_timestamp", "id" })), SolrUrlBuilder.getMergeFields(input));
+        
+        // no extra fields when all fields are returned
+        input.setFields(new HashSet<String>());
+        assertTrue(SolrUrlBuilder.getMergeFields(input).isEmpty());
+        
+    }
+    
+    @Test
+    public void testFacetOptions() throws Exception {
+        
+        // the shards of a federated search return the facet values up to the end of the requested page
+        // (all values if no limit is requested), in the requested or default (index) order
+        final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input.setFacetOption(QueryParameters.FACET_ALL, QueryParameters.FACET_OPTION_OFFSET, "20");
+        input.setFacetOption("model", QueryParameters.FACET_OPTION_LIMIT, "10");
+        input.setFacetOption("model", QueryParameters.FACET_OPTION_SORT, QueryParameters.FACET_SORT_COUNT);
+        
+        final SolrUrlBuilder builder = new SolrUrlBuilder(new URL("http://localhost:8983/solr"));
+        builder.setSearchInput(input);
+        builder.setFacets(Arrays.asList(new String[] { "model", "project" }));
+        final String queryString = builder.buildShardQueryString();
+        assertTrue(queryString.contains("&f.model.facet.limit=30&f.model.facet.sort=count&"));
+        assertTrue(queryString.contains("&f.project.facet.limit=-1&f.project.facet.sort=index&"));
+        assertFalse(queryString.contains("facet.offset"));
+        
+        // the options requested for all facets are sent for each facet, as the global options are invariants of the /select handler
+        final String selectQueryString = builder.buildSelectQueryString();
+        assertTrue(selectQueryString.contains("&f.model.facet.limit=10&f.model.facet.offset=20&f.model.facet.sort=count&"));
+        assertTrue(selectQueryString.contains("&f.project.facet.offset=20&"));
+        assertFalse(selectQueryString.contains("&facet.offset"));
+        
+    }
+    
+    private static String assertSameQueryString(final SearchInput input1, final SearchInput input2) throws Exception {
+        return assertSameQueryString(input1, input2, false);
+    }
+    
+    private static String assertSameQueryString(final SearchInput input1, final SearchInput input2, final boolean geoSpatial) throws Exception {
+        
+        final String queryString = build(input1, geoSpatial);
+        assertEquals(queryString, build(input2, geoSpatial));
+        return queryString;
+        
+    }
+    
+    private static String build(final SearchInput input, final boolean geoSpatial) throws Exception {
+        
+        final SolrUrlBuilder builder = new SolrUrlBuilder(new URL("http://localhost:8983/solr"));
+        builder.setSearchInput(input);
+        builder.setGeoSpatial(geoSpatial);
+        return builder.buildSelectQueryString();
+        
+    }
+
+}
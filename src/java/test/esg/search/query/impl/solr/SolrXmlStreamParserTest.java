@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Earth System Grid Federation
+ * ALL RIGHTS RESERVED. 
+ * U.S. Government sponsorship acknowledged.
+ * 
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ * 
+ * Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ * 
+ * Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ * 
+ * Neither the name of the <ORGANIZATION> nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. 
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+package esg.search.query.impl.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import org.junit.Test;
+
+import esg.search.core.Record;
+import esg.search.query.api.Facet;
+import esg.search.query.api.QueryParameters;
+import esg.search.query.api.SearchInput;
+import esg.search.query.api.SearchOutput;
+
+/**
+ * Test class for {@link SolrXmlStreamParser}: each document of the test corpus must be parsed
+ * into exactly the same {@link SearchOutput} as the tree-based {@link SolrXmlParser}.
+ */
+public class SolrXmlStreamParserTest {
+    
+    private final SolrXmlParser jdomParser = new SolrXmlParser();
+    private final SolrXmlParser staxParser = new SolrXmlStreamParser();
+    
+    @Test
+    public void testDatasets() throws Exception {
+        
+        final SearchOutput output = assertSameOutput("solr_datasets.xml", new SearchInputImpl(QueryParameters.TYPE_DATASET));
+        assertEquals(1254, output.getCounts());
+        assertEquals(10, output.getOffset());
+        assertEquals(2, output.getResults().size());
+        
+        // whitespace normalization, entities, CDATA, multi-valued fields
+        final Record record = output.getResults().get(0);
+        assertEquals("project=CMIP5, model=HadGEM2-ES, experiment=RCP8.5", record.getFieldValue("title"));
+        assertEquals("Temperature & precipitation <monthly>", record.getFieldValue("description"));
+        assertEquals(3, record.getFieldValues("variable").size());
+        assertEquals(20111215, record.getVersion());
+        assertEquals("AIRS <L3> \"monthly\"", output.getResults().get(1).getFieldValue("title"));
+        
+    }
+    
+    @Test
+    public void testFiles() throws Exception {
+        
+        final SearchOutput output = assertSameOutput("solr_files.xml", new SearchInputImpl(QueryParameters.TYPE_FILE));
+        assertEquals(3, output.getResults().size());
+        assertEquals(2, output.getResults().get(0).getFieldValues("url").size());
+        assertEquals("AoE/f2NtaXA1Lm91dHB1dDEuTU9IQy5IYWRHRU0yLUVT", output.getNextCursor());
+        
+    }
+    
+    @Test
+    public void testFacets() throws Exception {
+        
+        SearchOutput output = assertSameOutput("solr_facets.xml", new SearchInputImpl(QueryParameters.TYPE_DATASET));
+        assertEquals(3, output.getFacets().size());
+        assertEquals(3, output.getFacets().get("model").getSubFacets().size()); // zero counts are left out
+        assertTrue(output.getFacets().get("variable").getSubFacets().isEmpty());
+        
+        // constrained facet: only the selected value is returned
+        final SearchInput input = new SearchInputImpl(QueryParameters.TYPE_DATASET);
+        input.addConstraint("model", "CESM1(CAM5.1,FV2)");
+        output = assertSameOutput("solr_facets.xml", input);
+        assertEquals(1, output.getFacets().get("model").getSubFacets().size());
+        assertEquals(20, output.getFacets().get("model").getSubFacets().get(0).getCounts());
+        
+    }
+    
+    @Test
+    public void testEmpty() throws Exception {
+        
+        final SearchOutput output = assertSameOutput("solr_empty.xml", new SearchInputImpl(QueryParameters.TYPE_DATASET));
+        assertEquals(0, output.getCounts());
+        assertTrue(output.getResults().isEmpty());
+        assertFalse(output.getFacets().isEmpty());
+        assertNull(output.getNextCursor());
+        
+    }
+    
+    /**
+     * Method to parse a document of the test corpus with both parsers, and compare their outputs.
+     * @return the output of the streaming parser
+     */
+    private SearchOutput assertSameOutput(final String resource, final SearchInput input) throws Exception {
+        
+        final String xml = load(resource);
+        final SearchOutput expected = jdomParser.parse(xml, input);
+        final SearchOutput actual = staxParser.parse(xml, input);
+        assertEquals(resource, describe(expected), describe(actual));
+        return actual;
+        
+    }
+    
+    /**
+     * Method to list all the content of a search output, in order.
+     */
+    private static List<String> describe(final SearchOutput output) {
+        
+        final List<String> lines = new ArrayList<String>();
+        lines.add("counts="+output.getCounts()+" offset="+output.getOffset()+" nextCursor="+output.getNextCursor());
+        for (final Record record : output.getResults()) {
+            lines.add("record id="+record.getId()+" version="+record.getVersion());
+            for (final Map.Entry<String, List<String>> field : record.getFields().entrySet()) {
+                lines.add("  "+field.getKey()+"="+field.getValue());
+            }
+        }
+        for (final Map.Entry<String, Facet> facet : output.getFacets().entrySet()) {
+            lines.add("facet "+facet.getKey()+" key="+facet.getValue().getKey()+" counts="+facet.getValue().getCounts());
+            for (final Facet subFacet : facet.getValue().getSubFacets()) {
+                lines.add("  "+subFacet.getKey()+"="+subFacet.getCounts());
+            }
+        }
+        return lines;
+        
+    }
+    
+    private static String load(final String resource) throws Exception {
+        
+        final InputStream in = SolrXmlStreamParserTest.class.getResourceAsStream(resource);
+        try {
+            final Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+            return scanner.next();
+        } finally {
+            in.close();
+        }
+        
+    }
+
+}